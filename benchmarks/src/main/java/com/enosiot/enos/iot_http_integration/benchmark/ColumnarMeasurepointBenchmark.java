@@ -0,0 +1,97 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointColumnarPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * High-frequency series of a few measurepoints per device, built and encoded with the map-based
+ * and with the columnar builder
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnarMeasurepointBenchmark {
+    @Param({"1", "10"})
+    public int devices;
+
+    @Param({"1000", "5000"})
+    public int samples;
+
+    private DeviceInfo[] deviceInfos;
+    private long[] times;
+    private double[] temperatures;
+    private double[] pressures;
+    private long[] counters;
+    private int[] states;
+
+    @Setup
+    public void setup() {
+        deviceInfos = Fixtures.devices(devices);
+        times = new long[samples];
+        temperatures = new double[samples];
+        pressures = new double[samples];
+        counters = new long[samples];
+        states = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            times[i] = Fixtures.TIME + i * 10L;
+            temperatures[i] = 20.0 + i % 100 * 0.01;
+            pressures[i] = 101.325 + i % 7;
+            counters[i] = 1000000L + i;
+            states[i] = i % 3;
+        }
+    }
+
+    @Benchmark
+    public long mapBuilder() throws IOException {
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        for (DeviceInfo deviceInfo : deviceInfos) {
+            for (int i = 0; i < samples; i++) {
+                Map<String, Object> values = new HashMap<>();
+                values.put("temperature", temperatures[i]);
+                values.put("pressure", pressures[i]);
+                values.put("counter", counters[i]);
+                values.put("state", states[i]);
+                builder.addMeasurepoint(deviceInfo, times[i], values);
+            }
+        }
+        return encode(builder.build());
+    }
+
+    @Benchmark
+    public long columnarBuilder() throws IOException {
+        IntegrationMeasurepointColumnarPostRequest.Builder builder =
+                IntegrationMeasurepointColumnarPostRequest.builder();
+        for (DeviceInfo deviceInfo : deviceInfos) {
+            builder.addSeries(deviceInfo, times)
+                    .column("temperature", temperatures)
+                    .column("pressure", pressures)
+                    .column("counter", counters)
+                    .column("state", states);
+        }
+        return encode(builder.build());
+    }
+
+    private static long encode(BaseIntegrationRequest request)
+            throws IOException {
+        CountingSink countingSink = new CountingSink(Okio.blackhole());
+        BufferedSink sink = Okio.buffer(countingSink);
+        request.encode(sink, Collections.emptyMap());
+        sink.flush();
+        return countingSink.getBytesWritten();
+    }
+}
@@ -0,0 +1,31 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** {@code BaseIntegrationRequest.encode()} of a built request */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodeBenchmark {
+    @Param({"1", "100", "10000"})
+    public int devices;
+
+    private IntegrationMeasurepointPostRequest request;
+
+    @Setup
+    public void setup() {
+        request = Fixtures.request(devices);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return request.encode();
+    }
+}
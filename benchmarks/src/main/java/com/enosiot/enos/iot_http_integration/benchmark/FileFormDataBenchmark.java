@@ -0,0 +1,55 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.FileDigestCache;
+import com.enosiot.enos.iot_http_integration.FileFormData;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import okhttp3.MultipartBody;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File parts: {@code md5} of a file, and {@code createFormData} with the digest cached (the
+ * usual case of a file attached again) and not cached (the first publish of a file)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileFormDataBenchmark {
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+
+    private File file;
+    private UploadFileInfo fileInfo;
+    private FileDigestCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Fixtures.randomFile(fileSize);
+        IntegrationMeasurepointPostRequest request = Fixtures.requestWithFile(1, file);
+        fileInfo = request.getFiles().get(0);
+        cache = new FileDigestCache(FileDigestCache.DEFAULT_MAXIMUM_SIZE);
+    }
+
+    @Benchmark
+    public String md5() throws IOException {
+        return FileFormData.md5(file);
+    }
+
+    @Benchmark
+    public MultipartBody.Part createFormDataCached() throws IOException {
+        return FileFormData.createFormData(fileInfo, cache.digest(file));
+    }
+
+    @Benchmark
+    public MultipartBody.Part createFormDataUncached() throws IOException {
+        cache.invalidateAll();
+        return FileFormData.createFormData(fileInfo, cache.digest(file));
+    }
+}
@@ -0,0 +1,80 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/** Test data shared by the benchmarks */
+final class Fixtures {
+    static final long TIME = 1600000000000L;
+
+    private Fixtures() {
+    }
+
+    static DeviceInfo[] devices(int count) {
+        DeviceInfo[] devices = new DeviceInfo[count];
+        for (int i = 0; i < count; i++) {
+            devices[i] = new DeviceInfo().setAssetId("asset" + i);
+        }
+        return devices;
+    }
+
+    /** A typical set of measurepoints of one device */
+    static Map<String, Object> measurepoints(int seed) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("IntMeasurePoint1", seed);
+        values.put("DoubleMeasurePoint1", seed * 0.5);
+        values.put("StringMeasurePoint1", "value" + seed);
+        values.put("ArrayMeasurePoint1", new double[] {seed, seed + 1, seed + 2});
+        return values;
+    }
+
+    static IntegrationMeasurepointPostRequest request(int devices) {
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        DeviceInfo[] deviceInfos = devices(devices);
+        for (int i = 0; i < devices; i++) {
+            builder.addMeasurepoint(deviceInfos[i], TIME, measurepoints(i));
+        }
+        IntegrationMeasurepointPostRequest request = builder.build();
+        request.setId("1");
+        return request;
+    }
+
+    /** A request with one file-type measurepoint referencing {@code file} */
+    static IntegrationMeasurepointPostRequest requestWithFile(int devices, File file) {
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        DeviceInfo[] deviceInfos = devices(devices);
+        for (int i = 0; i < devices; i++) {
+            Map<String, Object> values = measurepoints(i);
+            if (i == 0) {
+                values.put("FileMeasurePoint1", file);
+            }
+            builder.addMeasurepoint(deviceInfos[i], TIME, values);
+        }
+        IntegrationMeasurepointPostRequest request = builder.build();
+        request.setId("1");
+        return request;
+    }
+
+    /** A temporary file of random content, deleted on exit */
+    static File randomFile(int size) throws IOException {
+        File file = File.createTempFile("enos-benchmark", ".bin");
+        file.deleteOnExit();
+        byte[] chunk = new byte[64 * 1024];
+        Random random = new Random(size);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+}
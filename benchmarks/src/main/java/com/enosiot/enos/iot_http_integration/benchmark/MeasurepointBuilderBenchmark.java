@@ -0,0 +1,42 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** {@code addMeasurepoint} for every device, then {@code build()} */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MeasurepointBuilderBenchmark {
+    @Param({"1", "100", "10000"})
+    public int devices;
+
+    private DeviceInfo[] deviceInfos;
+    private Map<String, Object>[] values;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        deviceInfos = Fixtures.devices(devices);
+        values = new Map[devices];
+        for (int i = 0; i < devices; i++) {
+            values[i] = Fixtures.measurepoints(i);
+        }
+    }
+
+    @Benchmark
+    public IntegrationMeasurepointPostRequest addAndBuild() {
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        for (int i = 0; i < devices; i++) {
+            builder.addMeasurepoint(deviceInfos[i], Fixtures.TIME, values[i]);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,66 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.FileDigestCache;
+import com.enosiot.enos.iot_http_integration.FileFormData;
+import com.enosiot.enos.iot_http_integration.IntegrationMessageBody;
+import com.enosiot.enos.iot_http_integration.message.FileDigest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import okhttp3.MultipartBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The multipart body of a publish, assembled the way {@code HttpConnection} does and written into
+ * a sink discarding the bytes, so neither network nor authentication is involved
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBodyBenchmark {
+    @Param({"1", "100", "10000"})
+    public int devices;
+
+    /** size of the attached file, {@code 0} for no file */
+    @Param({"0", "65536"})
+    public int fileSize;
+
+    private IntegrationMeasurepointPostRequest request;
+    private FileDigestCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        request = fileSize > 0
+                ? Fixtures.requestWithFile(devices, Fixtures.randomFile(fileSize))
+                : Fixtures.request(devices);
+        cache = new FileDigestCache(FileDigestCache.DEFAULT_MAXIMUM_SIZE);
+    }
+
+    @Benchmark
+    public long writeBody() throws IOException {
+        Map<UploadFileInfo, FileDigest> digests = request.digestFiles(cache);
+
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addPart(IntegrationMessageBody.createFormData(request, digests));
+        if (request.getFiles() != null) {
+            for (UploadFileInfo file : request.getFiles()) {
+                builder.addPart(FileFormData.createFormData(file, digests.get(file)));
+            }
+        }
+        MultipartBody body = builder.build();
+
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        body.writeTo(sink);
+        sink.flush();
+        return body.contentLength();
+    }
+}
@@ -0,0 +1,59 @@
+package com.enosiot.enos.iot_http_integration.benchmark;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.message.ResponseDecoder;
+import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** Decoding a lark-mode publish response, streamed versus read into a string first */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseDecodeBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json;charset=utf-8");
+
+    @Param({"1", "100", "10000"})
+    public int uriInfos;
+
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder("{\"code\":0,\"msg\":\"OK\",\"requestId\":\"1\",\"data\":{\"uriInfoList\":[");
+        for (int i = 0; i < uriInfos; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"fileUri\":\"enos-connect://file-").append(i)
+                    .append("\",\"uploadUrl\":\"https://storage.example.com/bucket/file-").append(i)
+                    .append("?signature=0123456789abcdef\",\"filename\":\"file-").append(i)
+                    .append("\",\"headers\":{\"Content-Type\":\"application/octet-stream\"}}");
+        }
+        payload = json.append("]}}").toString().getBytes(UTF_8);
+    }
+
+    private ResponseBody body() {
+        return ResponseBody.create(JSON, payload.length, new Buffer().write(payload));
+    }
+
+    @Benchmark
+    public IntegrationResponse streamed() throws IOException {
+        return ResponseDecoder.decode(body(), IntegrationResponse.class);
+    }
+
+    @Benchmark
+    public IntegrationResponse viaString() throws IOException {
+        try (ResponseBody body = body()) {
+            return GsonUtil.fromJson(new String(body.bytes(), UTF_8), IntegrationResponse.class);
+        }
+    }
+}
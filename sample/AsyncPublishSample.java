@@ -0,0 +1,52 @@
+import com.enosiot.enos.iot_http_integration.CallFuture;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncPublishSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String ORG_ID = "orgId";
+
+    public static void main(String[] args) throws EnosException {
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Fan out the publishes, each of them given 10 seconds including its retries
+        List<CallFuture<IntegrationResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                    .addMeasurepoint(new DeviceInfo().setAssetId("assetId"), System.currentTimeMillis() + i,
+                            ImmutableMap.of("IntMeasurePoint1", i))
+                    .build();
+            futures.add(connection.publishAsync(request, null).orTimeout(10, TimeUnit.SECONDS));
+        }
+
+        // Join them without a thread per publish
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .exceptionally(failure -> null)
+                .join();
+        long succeeded = futures.stream()
+                .filter(future -> !future.isCompletedExceptionally() && future.join().isSuccess())
+                .count();
+        System.out.println(succeeded + " of " + futures.size() + " publishes succeeded");
+
+        // Cancelling a future cancels its HTTP call
+        futures.forEach(future -> future.cancel(true));
+    }
+}
@@ -0,0 +1,48 @@
+import com.enosiot.enos.iot_http_integration.AttributeShadow;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class AttributeShadowSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String ORG_ID = "orgId";
+
+    public static void main(String[] args) throws EnosException, IOException, InterruptedException {
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Publish all the attributes of a device once an hour, and only the changed ones in between.
+        // The shadow is kept across restarts in a local file.
+        try (AttributeShadow shadow = AttributeShadow.builder()
+                .resyncInterval(1, TimeUnit.HOURS)
+                .persistTo(Paths.get("attribute-shadow.bin"))
+                .build()) {
+            for (int poll = 0; poll < 10; poll++) {
+                // The full attribute set, as read from the devices on every poll
+                Map<DeviceInfo, Map<String, Object>> attributes = new HashMap<>();
+                attributes.put(new DeviceInfo().setAssetId("assetId"),
+                        ImmutableMap.of("firmwareVersion", "1.0.2", "location", "site-1", "uptime", poll / 5));
+
+                IntegrationResponse response = shadow.publish(connection, attributes);
+                System.out.println(response == null ? "no attribute changed" : response);
+                TimeUnit.SECONDS.sleep(10);
+            }
+        }
+    }
+}
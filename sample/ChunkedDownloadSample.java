@@ -0,0 +1,45 @@
+import com.enosiot.enos.iot_http_integration.ChunkedDownloader;
+import com.enosiot.enos.iot_http_integration.FileCategory;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+public class ChunkedDownloadSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    // Device credentials, which can be obtained from Device Details page in EnOS Console
+    private static final String ORG_ID = "orgId";
+    private static final String ASSET_ID = "assetId";
+
+    public static void main(String[] args) throws EnosException, IOException {
+        // Construct a http connection
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Fetch 4 ranges of 8 MB at a time
+        ChunkedDownloader downloader = ChunkedDownloader.builder(connection)
+                .chunkSize(8 * 1024 * 1024)
+                .parallelism(4)
+                .maxRetries(3)
+                .build();
+
+        // fileUri is an enos scheme file uri
+        String fileUri = "enos-connect://xxx.mp4";
+        long size = downloader.downloadFile(new DeviceInfo().setAssetId(ASSET_ID), fileUri, FileCategory.FEATURE,
+                Paths.get("recording.mp4"),
+                (bytesWritten, contentLength) -> System.out.println(bytesWritten + "/" + contentLength));
+        System.out.println("downloaded " + size + " bytes");
+
+        downloader.downloadFirmwareFile("firmwareId", Paths.get("firmware.bin"), null);
+    }
+}
@@ -7,6 +7,7 @@ import com.enosiot.enos.sdk.data.DeviceInfo;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 
 /**
  * @author :charlescai
@@ -50,6 +51,15 @@ public class DownloadFileSample {
             e.printStackTrace();
         }
 
+        // Download straight into a file, without copying the content through the heap
+        try {
+            long size = connection.downloadFile(deviceInfo, fileUri, FileCategory.FEATURE, Paths.get("xxx.txt"),
+                    (bytesWritten, contentLength) -> System.out.println(bytesWritten + "/" + contentLength));
+            System.out.println("downloaded " + size + " bytes");
+        } catch (EnosException | IOException e) {
+            e.printStackTrace();
+        }
+
         // Asynchronously call the file download request
         try {
             connection.downloadFile(deviceInfo, fileUri, FileCategory.FEATURE, new IFileCallback() {
@@ -0,0 +1,83 @@
+import com.enosiot.enos.iot_http_integration.BoundedPublisher;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.metrics.InMemoryHttpMetrics;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.iot_http_integration.testkit.LatencyDistribution;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.Maps;
+import okhttp3.mockwebserver.MockWebServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load test of the SDK against the in-process fake broker of the enos-http-integration-testkit
+ * module, without an EnOS environment
+ */
+public class FakeServerLoadSample {
+    static final String APP_KEY = "appKey";
+    static final String APP_SECRET = "appSecret";
+    static final String ORG_ID = "orgId";
+
+    static final int REQUESTS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        // MockWebServer logs every request it serves
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+
+        // A broker answering in 20 ms at the median and 250 ms at the 99th percentile,
+        // failing 1% of the calls and throttling above 2000 calls per second
+        FaultProfile faults = FaultProfile.builder()
+                .latency(LatencyDistribution.logNormal(20, 250))
+                .errorRate(0.01)
+                .maxRequestsPerSecond(2000)
+                .build();
+
+        try (FakeEnosServer server = FakeEnosServer.builder()
+                .credentials(APP_KEY, APP_SECRET)
+                .faults(faults)
+                .start()) {
+            InMemoryHttpMetrics metrics = new InMemoryHttpMetrics();
+
+            // The fake serves both the integration channel and the API gateway
+            HttpConnection connection = new HttpConnection.Builder(
+                    server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, ORG_ID)
+                    .setMetrics(metrics)
+                    .build();
+
+            BoundedPublisher publisher = BoundedPublisher.builder(connection)
+                    .maxInFlightRequests(64)
+                    .build();
+
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<IntegrationResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                HashMap<String, Object> hashMap = Maps.newHashMap();
+                hashMap.put("IntMeasurePoint1", i);
+
+                IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                        .addMeasurepoint(new DeviceInfo().setAssetId("asset" + i % 100), System.currentTimeMillis(), hashMap)
+                        .build();
+                futures.add(publisher.publish(request, null));
+            }
+
+            long failed = futures.stream()
+                    .map(future -> future.handle((response, failure) -> failure != null))
+                    .map(CompletableFuture::join)
+                    .filter(Boolean::booleanValue)
+                    .count();
+            long elapsed = System.currentTimeMillis() - start;
+
+            System.out.println(String.format("%d requests in %d ms, %d failed, %d throttled, %d errors injected",
+                    REQUESTS, elapsed, failed, server.getThrottledCount(), server.getErrorCount()));
+            System.out.print(metrics.dump());
+        }
+    }
+}
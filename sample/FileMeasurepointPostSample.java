@@ -1,4 +1,5 @@
 import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
 import com.enosiot.enos.iot_http_integration.message.IIntegrationCallback;
 import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
 import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
@@ -40,6 +41,8 @@ public class FileMeasurepointPostSample {
         hashMap.put("IntMeasurePoint1", 123);
         hashMap.put("FileMeasurePoint1", new File("sample1.txt"));
         hashMap.put("file_arrays", new File[]{new File("sample1.txt"), new File("sample2.txt")});
+        // Content generated in memory is attached without writing a temporary file
+        hashMap.put("FileMeasurePoint2", FilePayload.of("waveform.bin", new byte[]{1, 2, 3, 4}));
 
         return IntegrationMeasurepointPostRequest.builder()
                 .addMeasurepoint(deviceInfo1, System.currentTimeMillis(), hashMap)
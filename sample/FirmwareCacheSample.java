@@ -0,0 +1,40 @@
+import com.enosiot.enos.iot_http_integration.FirmwareCache;
+import com.enosiot.enos.iot_http_integration.FirmwareImage;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+public class FirmwareCacheSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String ORG_ID = "orgId";
+
+    public static void main(String[] args) throws EnosException, IOException {
+        // Construct a http connection
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Keep up to 2 GB of firmware images, shared by the processes of the host
+        FirmwareCache firmwareCache = FirmwareCache.builder(connection, Paths.get("firmware-cache"))
+                .maxDiskBytes(2L * 1024 * 1024 * 1024)
+                .build();
+
+        // The image is downloaded by the first request only, and verified against the MD5 of the OTA job
+        try (FirmwareImage image = firmwareCache.open("firmwareId", "md5OfTheFirmware")) {
+            ByteBuffer content = image.map().duplicate();
+            System.out.println("firmware of " + image.getSize() + " bytes, first byte " + content.get(0));
+        }
+
+        System.out.println("hits: " + firmwareCache.hitCount() + ", downloads: " + firmwareCache.missCount());
+    }
+}
@@ -0,0 +1,49 @@
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.MeasurepointBatchPublisher;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.Maps;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MeasurepointBatchPublishSample {
+    // EnOS API Gateway URL and HTTP Integration Channel URL, which can be obtained from Environment Information page in EnOS Console
+    static final String API_GW_URL = "http://api_gw_url";
+    static final String INTEGRATION_CHANNEL_URL = "http://integration_channel_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    static final String APP_KEY = "appKey";
+    static final String APP_SECRET = "appSecret";
+
+    // Device credentials, which can be obtained from Device Details page in EnOS Console
+    static final String ORG_ID = "orgId";
+    static final String ASSET_ID = "assetId";
+
+    public static void main(String[] args) throws EnosException {
+        // Construct a http connection
+        HttpConnection connection = new HttpConnection.Builder(
+                INTEGRATION_CHANNEL_URL, API_GW_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Values handed over by any thread are merged into one request per flush
+        MeasurepointBatchPublisher publisher = MeasurepointBatchPublisher.builder(connection)
+                .maxPoints(1000)
+                .maxBytes(256 * 1024)
+                .maxLinger(100, TimeUnit.MILLISECONDS)
+                .build();
+
+        DeviceInfo deviceInfo = new DeviceInfo().setAssetId(ASSET_ID);
+        CompletableFuture<IntegrationResponse> last = null;
+        for (int i = 0; i < 100; i++) {
+            HashMap<String, Object> hashMap = Maps.newHashMap();
+            hashMap.put("IntMeasurePoint1", i);
+            last = publisher.submit(deviceInfo, System.currentTimeMillis(), hashMap);
+        }
+
+        System.out.println("last batch succeeded: " + last.join().isSuccess());
+        publisher.close();
+    }
+}
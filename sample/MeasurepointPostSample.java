@@ -9,6 +9,7 @@ import com.google.gson.GsonBuilder;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.Executors;
 
 /**
  * @author :charlescai
@@ -44,9 +45,10 @@ public class MeasurepointPostSample {
     }
 
     public static void main(String[] args) throws EnosException {
-        // Construct a http connection
+        // Construct a http connection, whose asynchronous callbacks run on a pool of their own
         HttpConnection connection = new HttpConnection.Builder(
                 INTEGRATION_CHANNEL_URL, API_GW_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .setCallbackExecutor(Executors.newFixedThreadPool(4))
                 .build();
 
         IntegrationMeasurepointPostRequest request = buildMeasurepointPostRequest();
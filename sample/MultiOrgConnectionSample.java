@@ -0,0 +1,48 @@
+import com.enosiot.enos.iot_http_integration.ConnectionManager;
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+
+public class MultiOrgConnectionSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String[] ORG_IDS = {"orgId1", "orgId2", "orgId3"};
+
+    public static void main(String[] args) throws EnosException, IOException {
+        // One client, one token per application, and at most 8 calls in flight per organization
+        try (ConnectionManager manager = ConnectionManager.builder()
+                .maxRequests(32)
+                .maxRequestsPerOrg(8)
+                .build()) {
+            for (String orgId : ORG_IDS) {
+                HttpConnection connection = manager.getConnection(
+                        BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, orgId);
+
+                IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                        .addMeasurepoint(new DeviceInfo().setAssetId("assetId"), System.currentTimeMillis(),
+                                ImmutableMap.of("IntMeasurePoint1", 100))
+                        .build();
+                IntegrationResponse response = connection.publish(request, null);
+                System.out.println(orgId + ": " + response.getCode());
+            }
+
+            // Connections with specific options still share the transport and tokens
+            HttpConnection larkConnection = manager.newConnectionBuilder(
+                    BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_IDS[0])
+                    .setUseLark(true)
+                    .build();
+            System.out.println("lark: " + larkConnection.isUseLark() + ", tokens: " + manager.getTokenRegistry().size());
+        }
+    }
+}
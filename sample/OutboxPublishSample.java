@@ -0,0 +1,57 @@
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.OutboxPublisher;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.outbox.Outbox;
+import com.enosiot.enos.iot_http_integration.outbox.OverflowPolicy;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+public class OutboxPublishSample {
+    // EnOS API Gateway URL and HTTP Integration Channel URL, which can be obtained from Environment Information page in EnOS Console
+    static final String API_GW_URL = "http://api_gw_url";
+    static final String INTEGRATION_CHANNEL_URL = "http://integration_channel_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    static final String APP_KEY = "appKey";
+    static final String APP_SECRET = "appSecret";
+
+    // Device credentials, which can be obtained from Device Details page in EnOS Console
+    static final String ORG_ID = "orgId";
+    static final String ASSET_ID = "assetId";
+
+    public static void main(String[] args) throws EnosException, IOException, InterruptedException {
+        // Construct a http connection
+        HttpConnection connection = new HttpConnection.Builder(
+                INTEGRATION_CHANNEL_URL, API_GW_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Requests are stored here while the broker is unreachable
+        Outbox outbox = Outbox.builder(Paths.get("outbox"))
+                .maxDiskBytes(256 * 1024 * 1024)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build();
+
+        OutboxPublisher publisher = OutboxPublisher.builder(connection, outbox)
+                .drainRate(5)
+                .build();
+
+        while (true) {
+            HashMap<String, Object> hashMap = Maps.newHashMap();
+            hashMap.put("IntMeasurePoint1", 123);
+
+            IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                    .addMeasurepoint(new DeviceInfo().setAssetId(ASSET_ID), System.currentTimeMillis(), hashMap)
+                    .build();
+
+            IntegrationResponse response = publisher.publish(request);
+            System.out.println(response == null ? "stored in outbox" : "published: " + response.isSuccess());
+            Thread.sleep(10000);
+        }
+    }
+}
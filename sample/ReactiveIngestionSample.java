@@ -0,0 +1,109 @@
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.IntegrationProcessor;
+import com.enosiot.enos.iot_http_integration.IntegrationRecord;
+import com.enosiot.enos.iot_http_integration.IntegrationResult;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.ImmutableMap;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ReactiveIngestionSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String ORG_ID = "orgId";
+
+    public static void main(String[] args) throws EnosException, InterruptedException {
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // Up to 500 records per request, 4 requests in flight, and no record waiting longer than 200 ms
+        IntegrationProcessor processor = IntegrationProcessor.builder(connection)
+                .maxRecordsPerRequest(500)
+                .maxInFlight(4)
+                .maxLinger(200, TimeUnit.MILLISECONDS)
+                .build();
+
+        // Any reactive-streams publisher, such as a Flux or a Flowable, can be the source
+        records(100_000).subscribe(processor);
+
+        CountDownLatch done = new CountDownLatch(1);
+        processor.subscribe(new Subscriber<IntegrationResult>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(IntegrationResult result) {
+                if (!result.isSuccess()) {
+                    System.out.println("failed to publish " + result.getRecords() + " records: "
+                            + (result.getFailure() != null ? result.getFailure() : result.getResponse()));
+                }
+                // Records are requested from the source only as fast as the results are taken
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable failure) {
+                failure.printStackTrace();
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("all the records are published");
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    /** A publisher of measurement points, emitting no more than requested */
+    private static Publisher<IntegrationRecord> records(long count) {
+        return subscriber -> subscriber.onSubscribe(new Subscription() {
+            private long emitted;
+            private long requested;
+            private boolean emitting;
+
+            @Override
+            public void request(long n) {
+                requested += n;
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+                while (requested > 0 && emitted < count) {
+                    requested--;
+                    subscriber.onNext(IntegrationRecord.measurepoint(
+                            new DeviceInfo().setAssetId("assetId"), System.currentTimeMillis(),
+                            ImmutableMap.of("IntMeasurePoint1", emitted++)));
+                }
+                emitting = false;
+                if (emitted == count) {
+                    emitted++;
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                emitted = count + 1;
+            }
+        });
+    }
+}
@@ -0,0 +1,53 @@
+import com.enosiot.enos.iot_http_integration.HttpConnection;
+import com.enosiot.enos.iot_http_integration.RequestSplitter;
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.SplitIntegrationResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+
+public class SplitPublishSample {
+    // EnOS Token Server URL and HTTP Broker URL, which can be obtained from Environment Information page in EnOS Console
+    private static final String TOKEN_SERVER_URL = "http://token_server_url";
+    private static final String BROKER_URL = "http://broker_url";
+
+    // EnOS Application AccessKey and SecretKey, which can be obtain in Application Registration page in EnOS Console
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private static final String ORG_ID = "orgId";
+
+    public static void main(String[] args) throws EnosException, IOException {
+        HttpConnection connection = new HttpConnection.Builder(
+                BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID)
+                .build();
+
+        // A day of minutely values of 100 devices, far too much for one POST
+        long start = System.currentTimeMillis() - 24 * 3600 * 1000L;
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        for (int device = 0; device < 100; device++) {
+            for (int minute = 0; minute < 24 * 60; minute++) {
+                builder.addMeasurepoint(new DeviceInfo().setAssetId("assetId" + device),
+                        start + minute * 60_000L, ImmutableMap.of("IntMeasurePoint1", minute));
+            }
+        }
+        IntegrationMeasurepointPostRequest request = builder.build();
+
+        // Parts of up to 1 MB or 5000 values, 4 of them published at a time
+        RequestSplitter splitter = RequestSplitter.builder(connection)
+                .maxBytes(1024 * 1024)
+                .maxPoints(5000)
+                .maxConcurrency(4)
+                .build();
+        SplitIntegrationResponse response = splitter.publish(request);
+        System.out.println(response.getMsg());
+
+        // Publish the failed parts again, instead of the whole request
+        for (BaseIntegrationRequest part : response.getFailedRequests()) {
+            System.out.println(connection.publish(part, null));
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
+import com.enosiot.enos.iot_http_integration.message.IntegrationAttributePostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.message.JsonValueWriter;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.stream.JsonWriter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Local shadow of the attributes published for each device, so that a gateway re-sending the
+ * full attribute set on every poll only publishes the attributes that changed.
+ *
+ * <p>The shadow keeps a 64-bit hash of the last value the broker accepted for each attribute of
+ * a device, not the value itself. Attributes are compared by their JSON encoding, with the keys
+ * of nested maps sorted. File values are always published, their content is not hashed.
+ *
+ * <p>Publishes for the same device may run concurrently. An attribute is committed only if its
+ * hash is still the one the publish compared it to, otherwise another publish sent it in the
+ * meantime, the broker may have kept either value, and the attribute is forgotten so that it is
+ * published again.
+ *
+ * <p>Every {@code resyncInterval}, all the attributes of a device are published again whether
+ * they changed or not, which repairs any divergence from the cloud. With {@link
+ * Builder#persistTo}, the shadow is loaded at start, and saved atomically every {@code
+ * persistInterval} and when closed, so a restart doesn't publish everything again.
+ *
+ * <pre>
+ * AttributeShadow shadow = AttributeShadow.builder()
+ *         .resyncInterval(1, TimeUnit.HOURS)
+ *         .persistTo(Paths.get("/var/lib/gateway/attribute-shadow"))
+ *         .build();
+ * // on every poll
+ * shadow.publish(connection, attributesByDevice);
+ * </pre>
+ */
+@Slf4j
+public class AttributeShadow implements Closeable {
+    private static final int FILE_MAGIC = 0x454e4153;
+    private static final int FILE_VERSION = 1;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long resyncIntervalMillis = TimeUnit.HOURS.toMillis(1L);
+
+        private Path file;
+
+        private long persistIntervalMillis = TimeUnit.SECONDS.toMillis(30L);
+
+        private boolean isRealtimeIntegration = true;
+
+        Builder() {
+        }
+
+        /** Publish all the attributes of a device at least this often, {@code 1 hour} by default */
+        public Builder resyncInterval(long resyncInterval, TimeUnit unit) {
+            Preconditions.checkArgument(resyncInterval > 0, "resyncInterval must be positive");
+            this.resyncIntervalMillis = unit.toMillis(resyncInterval);
+            return this;
+        }
+
+        /** File the shadow is loaded from and saved to, kept in memory only if not set */
+        public Builder persistTo(Path file) {
+            this.file = file;
+            return this;
+        }
+
+        /** How often a changed shadow is saved, {@code 30 seconds} by default */
+        public Builder persistInterval(long persistInterval, TimeUnit unit) {
+            Preconditions.checkArgument(persistInterval > 0, "persistInterval must be positive");
+            this.persistIntervalMillis = unit.toMillis(persistInterval);
+            return this;
+        }
+
+        public Builder realTimeIntegration(boolean isRealtimeIntegration) {
+            this.isRealtimeIntegration = isRealtimeIntegration;
+            return this;
+        }
+
+        /**
+         * Create the shadow, loading the persisted one if any. A file that can't be read is
+         * ignored, and everything is published once again.
+         */
+        public AttributeShadow build() {
+            return new AttributeShadow(this);
+        }
+    }
+
+    /** Hashes of the published attributes of a device */
+    private static class DeviceShadow {
+        final Map<String, Long> hashes;
+        /** when all the attributes were last accepted, {@code 0} if never */
+        long lastResync;
+
+        DeviceShadow(Map<String, Long> hashes, long lastResync) {
+            this.hashes = hashes;
+            this.lastResync = lastResync;
+        }
+    }
+
+    /** Attributes of a device to publish, with their hashes to commit once accepted */
+    private static class Delta {
+        final DeviceInfo deviceInfo;
+        final Map<String, Object> values = new LinkedHashMap<>();
+        final Map<String, Long> hashes = new HashMap<>();
+        final boolean resync;
+        /** hashes the attributes were compared to, {@code null} to commit them unconditionally */
+        final Map<String, Long> base;
+
+        Delta(DeviceInfo deviceInfo, boolean resync, Map<String, Long> base) {
+            this.deviceInfo = deviceInfo;
+            this.resync = resync;
+            this.base = base;
+        }
+    }
+
+    private final long resyncIntervalMillis;
+    private final Path file;
+    private final boolean isRealtimeIntegration;
+    private final ScheduledExecutorService persister;
+
+    private final ConcurrentMap<String, DeviceShadow> devices = new ConcurrentHashMap<>();
+
+    private volatile boolean dirty = false;
+
+    private AttributeShadow(Builder builder) {
+        this.resyncIntervalMillis = builder.resyncIntervalMillis;
+        this.file = builder.file;
+        this.isRealtimeIntegration = builder.isRealtimeIntegration;
+        if (file == null) {
+            this.persister = null;
+            return;
+        }
+
+        try {
+            load();
+        } catch (IOException e) {
+            log.warn("failed to load attribute shadow from {}, starting empty", file, e);
+            devices.clear();
+        }
+        this.persister =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("enos-attribute-shadow-%d")
+                                .build());
+        persister.scheduleWithFixedDelay(
+                this::saveQuietly,
+                builder.persistIntervalMillis,
+                builder.persistIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publish the attributes that changed since last accepted by the broker, and all of them for
+     * the devices due for a resync. The shadow is updated only if the broker accepts them.
+     *
+     * @param connection
+     * @param attributes attribute values keyed by device, typically the full set of each device
+     * @return response of the broker, {@code null} if no attribute changed and nothing was
+     *     published
+     * @throws EnosException
+     * @throws IOException
+     */
+    public IntegrationResponse publish(
+            @NonNull HttpConnection connection, @NonNull Map<DeviceInfo, Map<String, Object>> attributes)
+            throws EnosException, IOException {
+        List<Delta> deltas = diff(attributes);
+        if (deltas.isEmpty()) {
+            return null;
+        }
+        IntegrationResponse response = connection.publish(buildRequest(deltas), null);
+        if (response.isSuccess()) {
+            commit(deltas);
+        }
+        return response;
+    }
+
+    /**
+     * Publish the attributes that changed, asynchronously, see {@link #publish(HttpConnection,
+     * Map)}
+     *
+     * @return future of the response of the broker, completed with {@code null} if no attribute
+     *     changed and nothing was published
+     */
+    public CompletableFuture<IntegrationResponse> publishAsync(
+            @NonNull HttpConnection connection, @NonNull Map<DeviceInfo, Map<String, Object>> attributes) {
+        List<Delta> deltas;
+        try {
+            deltas = diff(attributes);
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<IntegrationResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (deltas.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return connection.publishAsync(buildRequest(deltas), null)
+                .thenApply(
+                        response -> {
+                            if (response.isSuccess()) {
+                                commit(deltas);
+                            }
+                            return response;
+                        });
+    }
+
+    /**
+     * Select the attributes of a device that changed since last accepted, all of them if the
+     * device is due for a resync
+     *
+     * @param deviceInfo
+     * @param attributes
+     * @return attributes to publish, empty if none changed
+     * @throws IOException if failed to encode a value
+     */
+    public Map<String, Object> changed(@NonNull DeviceInfo deviceInfo, @NonNull Map<String, Object> attributes)
+            throws IOException {
+        return diff(deviceInfo, attributes).values;
+    }
+
+    /**
+     * Record attributes of a device as accepted by the broker, for those published without
+     * {@link #publish}
+     *
+     * @param deviceInfo
+     * @param attributes the attributes published, see {@link #changed}
+     * @param resync whether they are all the attributes of the device
+     * @throws IOException if failed to encode a value
+     */
+    public void commit(@NonNull DeviceInfo deviceInfo, @NonNull Map<String, Object> attributes, boolean resync)
+            throws IOException {
+        Delta delta = new Delta(deviceInfo, resync, null);
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            if (!isFile(entry.getValue())) {
+                delta.hashes.put(entry.getKey(), hash(entry.getValue()));
+            }
+        }
+        commit(Collections.singletonList(delta));
+    }
+
+    /** Forget a device, whose attributes are all published next time */
+    public void forget(@NonNull DeviceInfo deviceInfo) {
+        devices.remove(deviceKey(deviceInfo));
+        dirty = true;
+    }
+
+    /** Forget every device */
+    public void clear() {
+        devices.clear();
+        dirty = true;
+    }
+
+    /** @return number of devices in the shadow */
+    public int size() {
+        return devices.size();
+    }
+
+    /**
+     * Save the shadow to its file right away, replacing the previous one atomically
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        dirty = false;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            List<Map.Entry<String, DeviceShadow>> entries = new ArrayList<>(devices.entrySet());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, DeviceShadow> entry : entries) {
+                DeviceShadow shadow = entry.getValue();
+                synchronized (shadow) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(shadow.lastResync);
+                    out.writeInt(shadow.hashes.size());
+                    for (Map.Entry<String, Long> hash : shadow.hashes.entrySet()) {
+                        out.writeUTF(hash.getKey());
+                        out.writeLong(hash.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /** Save the shadow if it has changed, and stop saving it periodically */
+    @Override
+    public void close() throws IOException {
+        if (persister == null) {
+            return;
+        }
+        persister.shutdown();
+        if (dirty) {
+            save();
+        }
+    }
+
+    private List<Delta> diff(Map<DeviceInfo, Map<String, Object>> attributes) throws IOException {
+        List<Delta> deltas = new ArrayList<>();
+        for (Map.Entry<DeviceInfo, Map<String, Object>> entry : attributes.entrySet()) {
+            Delta delta = diff(entry.getKey(), entry.getValue());
+            if (!delta.values.isEmpty()) {
+                deltas.add(delta);
+            }
+        }
+        return deltas;
+    }
+
+    private Delta diff(DeviceInfo deviceInfo, Map<String, Object> attributes) throws IOException {
+        DeviceShadow shadow = devices.get(deviceKey(deviceInfo));
+        long now = System.currentTimeMillis();
+        boolean resync;
+        Map<String, Long> published;
+        if (shadow == null) {
+            resync = true;
+            published = Collections.emptyMap();
+        } else {
+            synchronized (shadow) {
+                resync = now - shadow.lastResync >= resyncIntervalMillis;
+                published = new HashMap<>(shadow.hashes);
+            }
+        }
+
+        Delta delta = new Delta(deviceInfo, resync, published);
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            Object value = entry.getValue();
+            if (isFile(value)) {
+                delta.values.put(entry.getKey(), value);
+                continue;
+            }
+            long hash = hash(value);
+            if (resync || !Long.valueOf(hash).equals(published.get(entry.getKey()))) {
+                delta.values.put(entry.getKey(), value);
+                delta.hashes.put(entry.getKey(), hash);
+            }
+        }
+        return delta;
+    }
+
+    private IntegrationAttributePostRequest buildRequest(List<Delta> deltas) {
+        IntegrationAttributePostRequest.Builder builder =
+                IntegrationAttributePostRequest.builder().realTimeIntegration(isRealtimeIntegration);
+        for (Delta delta : deltas) {
+            builder.addAttribute(delta.deviceInfo, delta.values);
+        }
+        return builder.build();
+    }
+
+    private void commit(List<Delta> deltas) {
+        long now = System.currentTimeMillis();
+        for (Delta delta : deltas) {
+            DeviceShadow shadow =
+                    devices.computeIfAbsent(deviceKey(delta.deviceInfo), key -> new DeviceShadow(new HashMap<>(), 0L));
+            synchronized (shadow) {
+                for (Map.Entry<String, Long> hash : delta.hashes.entrySet()) {
+                    Long stored = shadow.hashes.get(hash.getKey());
+                    if (delta.base == null
+                            || Objects.equals(stored, delta.base.get(hash.getKey()))
+                            || hash.getValue().equals(stored)) {
+                        shadow.hashes.put(hash.getKey(), hash.getValue());
+                    } else {
+                        // committed by a concurrent publish of another value
+                        shadow.hashes.remove(hash.getKey());
+                    }
+                }
+                if (delta.resync) {
+                    shadow.lastResync = now;
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        try {
+            Preconditions.checkState(in.readInt() == FILE_MAGIC, "not an attribute shadow: %s", file);
+            int version = in.readInt();
+            Preconditions.checkState(version == FILE_VERSION, "unknown attribute shadow version %s", version);
+            int deviceCount = in.readInt();
+            for (int i = 0; i < deviceCount; i++) {
+                String key = in.readUTF();
+                long lastResync = in.readLong();
+                int hashCount = in.readInt();
+                Map<String, Long> hashes = new HashMap<>(hashCount * 4 / 3 + 1);
+                for (int j = 0; j < hashCount; j++) {
+                    hashes.put(in.readUTF(), in.readLong());
+                }
+                devices.put(key, new DeviceShadow(hashes, lastResync));
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+        log.info("loaded attribute shadow of {} devices from {}", devices.size(), file);
+    }
+
+    private void saveQuietly() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            log.warn("failed to save attribute shadow to {}", file, e);
+        }
+    }
+
+    private static String deviceKey(DeviceInfo deviceInfo) {
+        if (StringUtil.isNotEmpty(deviceInfo.getAssetId())) {
+            return deviceInfo.getAssetId();
+        }
+        return deviceInfo.getProductKey() + "/" + deviceInfo.getDeviceKey();
+    }
+
+    private static boolean isFile(Object value) {
+        return value instanceof File || value instanceof FilePayload;
+    }
+
+    /** Hash the JSON encoding of a value, with the keys of its maps sorted */
+    private static long hash(Object value) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        BufferedSink sink = Okio.buffer(Okio.sink(Funnels.asOutputStream(hasher)));
+        JsonWriter writer = JsonValueWriter.newWriter(sink);
+        JsonValueWriter.write(writer, canonical(value));
+        writer.flush();
+        sink.flush();
+        return hasher.hash().asLong();
+    }
+
+    private static Object canonical(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), canonical(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (value instanceof Iterable) {
+            List<Object> list = new ArrayList<>();
+            for (Iterator<?> it = ((Iterable<?>) value).iterator(); it.hasNext(); ) {
+                list.add(canonical(it.next()));
+            }
+            return list;
+        }
+        if (value instanceof Object[]) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (Object[]) value) {
+                list.add(canonical(element));
+            }
+            return list;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,403 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
+import com.enosiot.enos.iot_http_integration.message.IIntegrationCallback;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.progress.IProgressListener;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous publisher that bounds the number of requests and the encoded bytes in flight.
+ *
+ * <p>{@link HttpConnection#publish(BaseIntegrationRequest, IIntegrationCallback,
+ * IProgressListener)} enqueues every call into the OkHttp dispatcher, whose queue grows without
+ * limit when the broker slows down. This publisher only hands a request over once it fits into
+ * the limits; what happens to a request that does not fit is decided by its {@link
+ * SaturationPolicy}. Requests wait in submission order.
+ *
+ * <p>A single request larger than {@code maxInFlightBytes} is let through once nothing else is in
+ * flight.
+ *
+ * <p>A request is sent from the thread that submits it if it fits at once. Queued requests are
+ * sent from the {@code executor} instead of the thread completing the request before them, which
+ * may be an OkHttp dispatcher thread, because sending one encodes its message and hashes its
+ * files.
+ */
+@Slf4j
+public class BoundedPublisher {
+    private static final ExecutorService DEFAULT_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("enos-bounded-publisher-%d")
+                            .build());
+
+    /** What to do with a request that does not fit into the in-flight limits */
+    public enum SaturationPolicy {
+        /** Block the caller until the request can be sent */
+        BLOCK,
+
+        /** Return a future failed with a {@link RejectedExecutionException} */
+        FAIL_FAST,
+
+        /**
+         * Queue the request and return a future that completes once it has been sent. Once
+         * {@code maxQueued} requests are queued, the future fails with a {@link
+         * RejectedExecutionException} instead.
+         */
+        QUEUE
+    }
+
+    public static Builder builder(@NonNull HttpConnection connection) {
+        return new Builder(connection);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private int maxInFlightRequests = 64;
+
+        private long maxInFlightBytes = 64 * 1024 * 1024L;
+
+        private SaturationPolicy saturationPolicy = SaturationPolicy.BLOCK;
+
+        private int maxQueued = 1024;
+
+        private Executor executor;
+
+        Builder(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        public Builder maxInFlightRequests(int maxInFlightRequests) {
+            Preconditions.checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be positive");
+            this.maxInFlightRequests = maxInFlightRequests;
+            return this;
+        }
+
+        /** Limit of the encoded messages and attached files in flight */
+        public Builder maxInFlightBytes(long maxInFlightBytes) {
+            Preconditions.checkArgument(maxInFlightBytes > 0, "maxInFlightBytes must be positive");
+            this.maxInFlightBytes = maxInFlightBytes;
+            return this;
+        }
+
+        /** Policy of {@link #publish(BaseIntegrationRequest, IProgressListener)} */
+        public Builder saturationPolicy(@NonNull SaturationPolicy saturationPolicy) {
+            this.saturationPolicy = saturationPolicy;
+            return this;
+        }
+
+        /** Requests {@link SaturationPolicy#QUEUE} keeps waiting, {@code 1024} by default */
+        public Builder maxQueued(int maxQueued) {
+            Preconditions.checkArgument(maxQueued > 0, "maxQueued must be positive");
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * Executor sending the queued requests once capacity frees up, a shared pool of daemon
+         * threads by default
+         */
+        public Builder executor(@NonNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public BoundedPublisher build() {
+            return new BoundedPublisher(this);
+        }
+    }
+
+    private final HttpConnection connection;
+    private final int maxInFlightRequests;
+    private final long maxInFlightBytes;
+    private final SaturationPolicy saturationPolicy;
+    private final int maxQueued;
+    private final Executor executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition capacityAvailable = lock.newCondition();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+    private int inFlightRequests;
+    private long inFlightBytes;
+    private int blockedCallers;
+
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private BoundedPublisher(Builder builder) {
+        this.connection = builder.connection;
+        this.maxInFlightRequests = builder.maxInFlightRequests;
+        this.maxInFlightBytes = builder.maxInFlightBytes;
+        this.saturationPolicy = builder.saturationPolicy;
+        this.maxQueued = builder.maxQueued;
+        this.executor = builder.executor != null ? builder.executor : DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * Publish a request asynchronously, applying the default saturation policy
+     *
+     * @param request
+     * @param progressListener used to handle file uploading progress, {@code null} if not available
+     * @return future completed with the response
+     * @throws InterruptedException if interrupted while blocked by {@link SaturationPolicy#BLOCK}
+     */
+    public CompletableFuture<IntegrationResponse> publish(
+            BaseIntegrationRequest request, IProgressListener progressListener)
+            throws InterruptedException {
+        return publish(request, progressListener, saturationPolicy);
+    }
+
+    /**
+     * Publish a request asynchronously
+     *
+     * @param request
+     * @param progressListener used to handle file uploading progress, {@code null} if not available
+     * @param policy what to do if the request does not fit into the in-flight limits
+     * @return future completed with the response
+     * @throws InterruptedException if interrupted while blocked by {@link SaturationPolicy#BLOCK}
+     */
+    public CompletableFuture<IntegrationResponse> publish(
+            @NonNull BaseIntegrationRequest request,
+            IProgressListener progressListener,
+            @NonNull SaturationPolicy policy)
+            throws InterruptedException {
+        Pending pending = new Pending(request, progressListener, estimateSize(request));
+
+        lock.lock();
+        try {
+            if (!fits(pending.bytes)) {
+                switch (policy) {
+                    case FAIL_FAST:
+                        rejectedCount.incrementAndGet();
+                        pending.future.completeExceptionally(
+                                new RejectedExecutionException(
+                                        "in-flight limit reached: "
+                                                + inFlightRequests
+                                                + " requests, "
+                                                + inFlightBytes
+                                                + " bytes"));
+                        return pending.future;
+                    case QUEUE:
+                        if (queue.size() >= maxQueued) {
+                            rejectedCount.incrementAndGet();
+                            pending.future.completeExceptionally(
+                                    new RejectedExecutionException(
+                                            "queue limit reached: " + queue.size() + " requests"));
+                            return pending.future;
+                        }
+                        queue.add(pending);
+                        return pending.future;
+                    case BLOCK:
+                    default:
+                        blockedCallers++;
+                        try {
+                            while (!fits(pending.bytes)) {
+                                capacityAvailable.await();
+                            }
+                        } finally {
+                            blockedCallers--;
+                        }
+                        break;
+                }
+            }
+            acquire(pending);
+        } finally {
+            lock.unlock();
+        }
+
+        dispatch(pending);
+        return pending.future;
+    }
+
+    /** @return requests waiting for capacity, queued or blocked */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size() + blockedCallers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlightRequests() {
+        lock.lock();
+        try {
+            return inFlightRequests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return number of requests that have been sent, waited for capacity or not */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /** @return total time requests have waited for capacity */
+    public long getTotalWait(TimeUnit unit) {
+        return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return requests refused by {@link SaturationPolicy#FAIL_FAST}, or by {@link
+     *     SaturationPolicy#QUEUE} once the queue is full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Check the limits, must be called while holding the lock */
+    private boolean fits(long bytes) {
+        if (inFlightRequests == 0) {
+            return queue.isEmpty();
+        }
+        return queue.isEmpty()
+                && inFlightRequests < maxInFlightRequests
+                && inFlightBytes + bytes <= maxInFlightBytes;
+    }
+
+    private void acquire(Pending pending) {
+        inFlightRequests++;
+        inFlightBytes += pending.bytes;
+
+        long waitNanos = System.nanoTime() - pending.submitNanos;
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    private void release(Pending pending) {
+        List<Pending> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            inFlightRequests--;
+            inFlightBytes -= pending.bytes;
+
+            // hand capacity over to queued requests first, in submission order
+            while (!queue.isEmpty()) {
+                Pending next = queue.peek();
+                boolean nextFits =
+                        inFlightRequests == 0
+                                || (inFlightRequests < maxInFlightRequests
+                                        && inFlightBytes + next.bytes <= maxInFlightBytes);
+                if (!nextFits) {
+                    break;
+                }
+                queue.poll();
+                acquire(next);
+                ready.add(next);
+            }
+            capacityAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending next : ready) {
+            try {
+                executor.execute(() -> dispatch(next));
+            } catch (RejectedExecutionException e) {
+                fail(next, e);
+            }
+        }
+    }
+
+    private void dispatch(Pending pending) {
+        AtomicBoolean done = new AtomicBoolean(false);
+        try {
+            connection.publish(
+                    pending.request,
+                    new IIntegrationCallback() {
+                        @Override
+                        public void onResponse(IntegrationResponse response) {
+                            if (done.compareAndSet(false, true)) {
+                                release(pending);
+                                pending.future.complete(response);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception failure) {
+                            if (done.compareAndSet(false, true)) {
+                                fail(pending, failure);
+                            }
+                        }
+                    },
+                    pending.progressListener);
+        } catch (Exception e) {
+            if (done.compareAndSet(false, true)) {
+                fail(pending, e);
+            }
+        }
+    }
+
+    private void fail(Pending pending, Exception failure) {
+        release(pending);
+        pending.future.completeExceptionally(failure);
+    }
+
+    private static long estimateSize(BaseIntegrationRequest request) {
+        long bytes = 0L;
+        try {
+            bytes = request.encodedParamsLength();
+        } catch (IOException | RuntimeException e) {
+            log.debug("failed to measure request {}", request.getId(), e);
+        }
+        if (request.getFiles() != null) {
+            for (UploadFileInfo fileInfo : request.getFiles()) {
+                bytes += FilePayload.from(fileInfo).length();
+            }
+        }
+        return bytes;
+    }
+
+    private static class Pending {
+        final BaseIntegrationRequest request;
+        final IProgressListener progressListener;
+        final long bytes;
+        final long submitNanos = System.nanoTime();
+        final CompletableFuture<IntegrationResponse> future = new CompletableFuture<>();
+
+        Pending(BaseIntegrationRequest request, IProgressListener progressListener, long bytes) {
+            this.request = request;
+            this.progressListener = progressListener;
+            this.bytes = bytes;
+        }
+    }
+}
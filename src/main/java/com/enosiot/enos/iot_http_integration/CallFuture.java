@@ -0,0 +1,99 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import okhttp3.Call;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outcome of an asynchronous operation of {@link HttpConnection}. It completes exactly once, on
+ * the callback executor of the connection if any, otherwise on an OkHttp dispatcher thread.
+ *
+ * <p>Cancelling the future, or failing it in any other way before the operation has completed,
+ * such as by its {@link #orTimeout deadline}, cancels the HTTP call in flight and any retry of
+ * it. Futures derived with {@code thenApply} and the like don't cancel the call.
+ *
+ * @param <T> type of the result
+ */
+public class CallFuture<T> extends CompletableFuture<T> {
+    private static final ScheduledThreadPoolExecutor DEADLINES = newDeadlineScheduler();
+
+    /** call of the current attempt */
+    private volatile Call call;
+
+    CallFuture() {
+        whenComplete(
+                (result, failure) -> {
+                    if (failure != null) {
+                        cancelCall();
+                    }
+                });
+    }
+
+    static <T> CallFuture<T> failed(Throwable failure) {
+        CallFuture<T> future = new CallFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * Fail with a {@link TimeoutException} unless completed within the timeout, measured from
+     * now. Meant to be called right after the operation has started, so that the timeout covers
+     * its retries too.
+     *
+     * @return this future
+     */
+    public CallFuture<T> orTimeout(long timeout, @NonNull TimeUnit unit) {
+        Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+        if (isDone()) {
+            return this;
+        }
+        ScheduledFuture<?> deadline =
+                DEADLINES.schedule(
+                        () -> {
+                            completeExceptionally(
+                                    new TimeoutException(
+                                            "not completed within "
+                                                    + unit.toMillis(timeout)
+                                                    + " ms"));
+                        },
+                        timeout,
+                        unit);
+        whenComplete((result, failure) -> deadline.cancel(false));
+        return this;
+    }
+
+    /** Track the call of an attempt, cancelled right away if this future has already failed */
+    void setCall(Call call) {
+        this.call = call;
+        if (isCompletedExceptionally()) {
+            call.cancel();
+        }
+    }
+
+    private void cancelCall() {
+        Call current = call;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newDeadlineScheduler() {
+        ScheduledThreadPoolExecutor scheduler =
+                new ScheduledThreadPoolExecutor(
+                        1,
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("enos-call-deadline-%d")
+                                .build());
+        // most deadlines are met, their tasks must not pile up until they are due
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
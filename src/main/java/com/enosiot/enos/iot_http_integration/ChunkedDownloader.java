@@ -0,0 +1,527 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FileInfoResponse;
+import com.enosiot.enos.iot_http_integration.progress.IProgressListener;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.enosiot.enos.iot_http_integration.HttpConnectionError.*;
+
+/**
+ * Downloads a file as byte ranges fetched concurrently, so that a single large download is not
+ * bound to the throughput of one TCP stream.
+ *
+ * <p>The total size is taken from {@link HttpConnection#getFileInfo} or probed with a one byte
+ * range. The target is preallocated as {@code <target>.part}, every chunk is written at its own
+ * position, and the file is moved to the target once all chunks have completed. Every request goes
+ * through the retry policy and the concurrency limit of the connection; a chunk failing in the
+ * middle of its body is retried from the last byte written. If the broker does not serve ranges,
+ * or the file is empty, the file is fetched as a single stream, which is retried as well: from the
+ * last byte written if the rest of the file can be requested as a range, otherwise from the start.
+ *
+ * <p>The chunks of a download are fetched by at most {@code parallelism} tasks of the executor, a
+ * pool of daemon threads shared by the downloaders by default.
+ */
+@Slf4j
+public class ChunkedDownloader {
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService DEFAULT_EXECUTOR =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("enos-chunked-download-%d")
+                            .build());
+
+    public static Builder builder(@NonNull HttpConnection connection) {
+        return new Builder(connection);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private long chunkSize = 8 * 1024 * 1024L;
+
+        private int parallelism = 4;
+
+        private int maxRetries = 3;
+
+        private long initialBackoffMillis = 500L;
+
+        private Executor executor = DEFAULT_EXECUTOR;
+
+        Builder(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        public Builder chunkSize(long chunkSize) {
+            Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /** Maximum number of chunks fetched at the same time */
+        public Builder parallelism(int parallelism) {
+            Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /** Retries of a single chunk, {@code 0} to fail at the first error */
+        public Builder maxRetries(int maxRetries) {
+            Preconditions.checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /** Backoff before the first retry of a chunk, doubled on each further retry */
+        public Builder initialBackoff(long backoff, TimeUnit unit) {
+            this.initialBackoffMillis = Math.max(1L, unit.toMillis(backoff));
+            return this;
+        }
+
+        /**
+         * Executor fetching the chunks, a pool shared by the downloaders by default. It must run
+         * {@code parallelism} tasks at a time for the chunks to be fetched concurrently.
+         */
+        public Builder executor(@NonNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public ChunkedDownloader build() {
+            return new ChunkedDownloader(this);
+        }
+    }
+
+    /** Creates the call fetching a byte range, {@code null} bounds for the whole file */
+    private interface RangeCallFactory {
+        Call newCall(Long startRange, Long endRange) throws EnosException;
+    }
+
+    private final HttpConnection connection;
+    private final long chunkSize;
+    private final int parallelism;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final Executor executor;
+
+    private ChunkedDownloader(Builder builder) {
+        this.connection = builder.connection;
+        this.chunkSize = builder.chunkSize;
+        this.parallelism = builder.parallelism;
+        this.maxRetries = builder.maxRetries;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.executor = builder.executor;
+    }
+
+    /**
+     * Download a file into {@code target}, replacing it if it exists
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @param category
+     * @param target
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return size of the file
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFile(
+            DeviceInfo deviceInfo,
+            String fileUri,
+            FileCategory category,
+            @NonNull Path target,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        RangeCallFactory callFactory =
+                (startRange, endRange) ->
+                        connection.generateFileDownloadCall(
+                                connection.getOrgId(),
+                                deviceInfo,
+                                fileUri,
+                                category,
+                                startRange,
+                                endRange);
+
+        long size = -1L;
+        try {
+            FileInfoResponse fileInfo = connection.getFileInfo(deviceInfo, fileUri, category);
+            if (fileInfo != null
+                    && fileInfo.getData() != null
+                    && fileInfo.getData().getFileSize() != null) {
+                size = fileInfo.getData().getFileSize();
+            }
+        } catch (EnosException e) {
+            log.debug("failed to get info of file {}, probe its size instead", fileUri, e);
+        }
+        return download(callFactory, size, target, progressListener);
+    }
+
+    /**
+     * Download a firmware file into {@code target}, replacing it if it exists
+     *
+     * @param firmwareId
+     * @param target
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return size of the file
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFirmwareFile(
+            String firmwareId, @NonNull Path target, IProgressListener progressListener)
+            throws EnosException, IOException {
+        RangeCallFactory callFactory =
+                (startRange, endRange) ->
+                        connection.generateFirmwareFileDownloadCall(
+                                connection.getOrgId(), firmwareId, startRange, endRange);
+        return download(callFactory, -1L, target, progressListener);
+    }
+
+    private long download(
+            RangeCallFactory callFactory,
+            long size,
+            Path target,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        if (size < 0) {
+            size = probeSize(callFactory);
+        }
+
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        boolean completed = false;
+        try {
+            if (size > 0) {
+                try {
+                    writeChunks(callFactory, part, size, progressListener);
+                } catch (RangeNotServedException e) {
+                    log.info("{}, fetch the file in a single stream", e.getMessage());
+                    size = writeWhole(callFactory, part, size, progressListener);
+                }
+            } else {
+                // the size is unknown, or the file is empty and has no range to request
+                size = writeWhole(callFactory, part, size, progressListener);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(part);
+            }
+        }
+
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /** Preallocate {@code part} and fetch its chunks into it */
+    private void writeChunks(
+            RangeCallFactory callFactory, Path part, long size, IProgressListener progressListener)
+            throws EnosException, IOException {
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            file.setLength(size);
+            fetchChunks(callFactory, channel, size, new AtomicLong(), progressListener);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Fetch the whole file into {@code part} in a single stream. A failed stream is resumed with a
+     * range from the last byte written, or fetched again from the start if the range is not served.
+     *
+     * @param size expected size, only reported to the progress listener, {@code -1} if unknown
+     * @return bytes written
+     */
+    private long writeWhole(
+            RangeCallFactory callFactory, Path part, long size, IProgressListener progressListener)
+            throws EnosException, IOException {
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            file.setLength(0L);
+            AtomicLong downloaded = new AtomicLong();
+            long position = 0L;
+            long backoffMillis = initialBackoffMillis;
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    position += fetch(callFactory, channel, position, -1L, size, downloaded, progressListener);
+                    channel.force(false);
+                    return position;
+                } catch (RangeNotServedException e) {
+                    log.info("{}, fetch the file again from the start", e.getMessage());
+                    position = 0L;
+                    downloaded.set(0L);
+                    channel.truncate(0L);
+                } catch (EnosException | IOException e) {
+                    if (attempt >= maxRetries || !isRetryable(e)) {
+                        throw e;
+                    }
+                    if (e instanceof PartialFetchException) {
+                        position += ((PartialFetchException) e).written;
+                    }
+                    log.info("failed to fetch the file from byte {}, retry: {}", position, e.getMessage());
+                    sleep(backoffMillis);
+                    backoffMillis *= 2;
+                }
+            }
+        }
+    }
+
+    private void fetchChunks(
+            RangeCallFactory callFactory,
+            FileChannel channel,
+            long size,
+            AtomicLong downloaded,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (chunks == 0) {
+            return;
+        }
+
+        // each task fetches the next chunk not taken yet, until none is left
+        AtomicLong nextChunk = new AtomicLong();
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        try {
+            for (long i = 0; i < Math.min(parallelism, chunks); i++) {
+                FutureTask<Void> task =
+                        new FutureTask<>(
+                                () -> {
+                                    for (long chunk = nextChunk.getAndIncrement();
+                                            chunk < chunks;
+                                            chunk = nextChunk.getAndIncrement()) {
+                                        long first = chunk * chunkSize;
+                                        long last = Math.min(size, first + chunkSize) - 1;
+                                        fetchWithRetry(
+                                                callFactory,
+                                                channel,
+                                                first,
+                                                last,
+                                                size,
+                                                downloaded,
+                                                progressListener);
+                                    }
+                                    return null;
+                                });
+                tasks.add(task);
+                executor.execute(task);
+            }
+            for (FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (RejectedExecutionException e) {
+            throw new EnosException(CLIENT_ERROR, "download rejected by the executor: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EnosException(CLIENT_ERROR, "download interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EnosException) {
+                throw (EnosException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new EnosException(CLIENT_ERROR, String.valueOf(cause));
+        } finally {
+            // stop the other chunks once one has failed
+            nextChunk.set(chunks);
+            tasks.forEach(task -> task.cancel(true));
+        }
+    }
+
+    private void fetchWithRetry(
+            RangeCallFactory callFactory,
+            FileChannel channel,
+            long first,
+            long last,
+            long size,
+            AtomicLong downloaded,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        long position = first;
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                long written =
+                        fetch(callFactory, channel, position, last, size, downloaded, progressListener);
+                position += written;
+                if (position > last) {
+                    return;
+                }
+                // the range ended early, fetch the rest of it
+                throw new EnosException(
+                        SOCKET_ERROR, "range ended at " + position + ", expected " + (last + 1));
+            } catch (EnosException | IOException e) {
+                if (attempt >= maxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+                log.info(
+                        "failed to fetch bytes {}-{}, retry: {}", position, last, e.getMessage());
+                // resume after the bytes that have already been written
+                if (e instanceof PartialFetchException) {
+                    position += ((PartialFetchException) e).written;
+                }
+                sleep(backoffMillis);
+                backoffMillis *= 2;
+            }
+        }
+    }
+
+    /** Sleep a random time up to {@code backoffMillis} */
+    private static void sleep(long backoffMillis) throws EnosException {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EnosException(CLIENT_ERROR, "download interrupted");
+        }
+    }
+
+    /**
+     * Fetch a byte range and write it at its position
+     *
+     * @param last last byte of the range, {@code -1} for the rest of the file from {@code first}
+     * @return bytes written
+     * @throws RangeNotServedException if a range has been requested and not served
+     */
+    private long fetch(
+            RangeCallFactory callFactory,
+            FileChannel channel,
+            long first,
+            long last,
+            long size,
+            AtomicLong downloaded,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        Call call =
+                last >= 0
+                        ? callFactory.newCall(first, last)
+                        : first > 0 ? callFactory.newCall(first, null) : callFactory.newCall(null, null);
+        long written = 0L;
+        try (Response response = connection.getCallExecutor().execute(call)) {
+            if (!response.isSuccessful()) {
+                throw new EnosException(response.code(), response.message());
+            }
+            if ((last >= 0 || first > 0) && response.code() != 206) {
+                throw new RangeNotServedException(response.code());
+            }
+            ResponseBody body = response.body();
+            Preconditions.checkNotNull(body);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long position = first;
+            while (body.source().read(buffer) != -1 || buffer.position() > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int n = channel.write(buffer, position);
+                    position += n;
+                    written += n;
+                    long total = downloaded.addAndGet(n);
+                    if (progressListener != null) {
+                        progressListener.onRequestProgress(total, size);
+                    }
+                }
+                buffer.clear();
+            }
+            return written;
+        } catch (SocketException e) {
+            throw new PartialFetchException(written, SOCKET_ERROR, e.getMessage());
+        } catch (IOException e) {
+            if (written > 0) {
+                throw new PartialFetchException(written, SOCKET_ERROR, e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return total size from the Content-Range of a one byte range, {@code -1} if unknown, such
+     *     as when the broker doesn't serve ranges or the file is empty
+     */
+    private long probeSize(RangeCallFactory callFactory) throws EnosException {
+        Call call = callFactory.newCall(0L, 0L);
+        try (Response response = connection.getCallExecutor().execute(call)) {
+            if (response.code() == 416) {
+                // an empty file has no first byte
+                return -1L;
+            }
+            if (!response.isSuccessful()) {
+                throw new EnosException(response.code(), response.message());
+            }
+            String contentRange = response.header("Content-Range");
+            if (response.code() == 206 && contentRange != null) {
+                Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+                if (matcher.matches()) {
+                    return Long.parseLong(matcher.group(1));
+                }
+            }
+            return -1L;
+        } catch (SocketException e) {
+            log.info("failed to execute request due to socket error {}", e.getMessage());
+            throw new EnosException(SOCKET_ERROR, e.getMessage());
+        } catch (IOException e) {
+            log.warn("failed to execute request", e);
+            throw new EnosException(CLIENT_ERROR, e.getMessage());
+        }
+    }
+
+    private static boolean isRetryable(Exception e) {
+        if (!(e instanceof EnosException)) {
+            return true;
+        }
+        int code = ((EnosException) e).getErrorCode();
+        return code == SOCKET_ERROR.getErrorCode() || code == 429 || code >= 500;
+    }
+
+    /** A range request answered with something else than the range, such as the whole file */
+    private static class RangeNotServedException extends EnosException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotServedException(int code) {
+            super(CLIENT_ERROR, "range request answered with " + code);
+        }
+    }
+
+    /** A fetch that failed after writing part of its range */
+    private static class PartialFetchException extends EnosException {
+        private static final long serialVersionUID = 1L;
+
+        final long written;
+
+        PartialFetchException(long written, HttpConnectionError error, String message) {
+            super(error, message);
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.enosiot.enos.iot_http_integration;
+
+import okio.DeflaterSink;
+import okio.GzipSink;
+import okio.Sink;
+
+import java.util.zip.Deflater;
+
+/**
+ * Content codings the integration message and attached files can be compressed with, see {@link
+ * HttpConnection.Builder#setCompression(CompressionCodec)}
+ */
+public enum CompressionCodec {
+    GZIP("gzip") {
+        @Override
+        Sink compress(Sink sink) {
+            return new GzipSink(sink);
+        }
+    },
+
+    /** zlib format, as defined for the {@code deflate} content coding */
+    DEFLATE("deflate") {
+        @Override
+        Sink compress(Sink sink) {
+            return new DeflaterSink(sink, new Deflater());
+        }
+    };
+
+    private final String contentEncoding;
+
+    CompressionCodec(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /** value of the {@code Content-Encoding} header */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /** wrap a sink, closing the returned sink finishes the compressed stream and closes the sink */
+    abstract Sink compress(Sink sink);
+}
@@ -0,0 +1,135 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Caps the calls in flight, in total and per organization. Waiting calls are granted their
+ * permit round-robin across organizations, so that an organization with a long backlog can't
+ * starve the others: it only takes its turn, and never more than its own cap.
+ *
+ * <p>A permit is held for one attempt of a call, not during the backoff between attempts.
+ */
+final class ConcurrencyLimiter {
+    private static class Org {
+        final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+        int inFlight;
+        /** whether the organization is in {@link #ready} */
+        boolean ready;
+    }
+
+    private final int maxRequests;
+    private final int maxRequestsPerOrg;
+
+    private final Object lock = new Object();
+    private final Map<String, Org> orgs = new HashMap<>();
+    /** organizations with waiters and below their cap, in the order they are granted */
+    private final ArrayDeque<Org> ready = new ArrayDeque<>();
+    private int inFlight;
+    private int waiting;
+
+    ConcurrencyLimiter(int maxRequests, int maxRequestsPerOrg) {
+        Preconditions.checkArgument(maxRequests > 0, "maxRequests must be positive");
+        Preconditions.checkArgument(maxRequestsPerOrg > 0, "maxRequestsPerOrg must be positive");
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerOrg = maxRequestsPerOrg;
+    }
+
+    /**
+     * Run a task once a permit of the organization is granted, which may be right away on the
+     * calling thread. The task must not block, and the permit must be released once the call
+     * is complete.
+     */
+    void acquire(String orgId, Runnable onGranted) {
+        List<Runnable> granted;
+        synchronized (lock) {
+            Org org = orgs.computeIfAbsent(orgId, k -> new Org());
+            org.waiters.add(onGranted);
+            waiting++;
+            markReady(org);
+            granted = grant();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    /** Block until a permit of the organization is granted */
+    void acquire(String orgId) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Runnable waiter = latch::countDown;
+        acquire(orgId, waiter);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            synchronized (lock) {
+                Org org = orgs.get(orgId);
+                if (org.waiters.remove(waiter)) {
+                    waiting--;
+                    throw e;
+                }
+            }
+            // granted meanwhile
+            release(orgId);
+            throw e;
+        }
+    }
+
+    void release(String orgId) {
+        List<Runnable> granted;
+        synchronized (lock) {
+            Org org = orgs.get(orgId);
+            Preconditions.checkState(org != null && org.inFlight > 0, "no permit of %s held", orgId);
+            org.inFlight--;
+            inFlight--;
+            markReady(org);
+            granted = grant();
+        }
+        granted.forEach(Runnable::run);
+    }
+
+    /** @return number of permits held */
+    int inFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    /** @return number of calls waiting for a permit */
+    int waiting() {
+        synchronized (lock) {
+            return waiting;
+        }
+    }
+
+    private void markReady(Org org) {
+        if (!org.ready && !org.waiters.isEmpty() && org.inFlight < maxRequestsPerOrg) {
+            org.ready = true;
+            ready.add(org);
+        }
+    }
+
+    private List<Runnable> grant() {
+        List<Runnable> granted = new ArrayList<>();
+        while (inFlight < maxRequests && !ready.isEmpty()) {
+            Org org = ready.poll();
+            org.ready = false;
+            Runnable waiter = org.waiters.poll();
+            if (waiter == null) {
+                // its waiters were interrupted
+                continue;
+            }
+            waiting--;
+            org.inFlight++;
+            inFlight++;
+            granted.add(waiter);
+            // back to the end of the line
+            markReady(org);
+        }
+        return granted;
+    }
+}
@@ -0,0 +1,189 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the connections of many organizations over one transport: they share the dispatcher
+ * and connection pool of one {@link OkHttpClient}, and the tokens of a {@link TokenRegistry}, so
+ * an application applies for one token however many organizations it integrates.
+ *
+ * <p>The calls in flight are capped in total and per organization, so that one busy organization
+ * can't starve the others:
+ *
+ * <pre>
+ * ConnectionManager manager = ConnectionManager.builder()
+ *         .maxRequests(64)
+ *         .maxRequestsPerOrg(8)
+ *         .build();
+ * HttpConnection connection = manager.getConnection(BROKER_URL, TOKEN_SERVER_URL, APP_KEY, APP_SECRET, ORG_ID);
+ * </pre>
+ */
+public class ConnectionManager implements Closeable {
+    @Value
+    private static class Key {
+        String integrationBrokerUrl;
+        String appKey;
+        String orgId;
+    }
+
+    /** Client shared by the connections, see {@link Builder#okHttpClient} */
+    @Getter private final OkHttpClient okHttpClient;
+
+    /** Tokens shared by the connections of the same application */
+    @Getter private final TokenRegistry tokenRegistry;
+
+    private final ConcurrencyLimiter limiter;
+
+    /** whether the client was created, and is shut down, by the manager */
+    private final boolean ownsClient;
+
+    private final ConcurrentMap<Key, HttpConnection> connections = new ConcurrentHashMap<>();
+
+    private ConnectionManager(Builder builder) {
+        this.ownsClient = builder.okHttpClient == null;
+        OkHttpClient client =
+                ownsClient
+                        ? new OkHttpClient.Builder()
+                                .connectTimeout(10L, TimeUnit.SECONDS)
+                                .readTimeout(2L, TimeUnit.MINUTES)
+                                .writeTimeout(2L, TimeUnit.MINUTES)
+                                .retryOnConnectionFailure(true)
+                                .build()
+                        : builder.okHttpClient;
+
+        // the organizations share the broker host, which must not be capped below the limiter
+        Dispatcher dispatcher = new Dispatcher(client.dispatcher().executorService());
+        dispatcher.setMaxRequests(builder.maxRequests);
+        dispatcher.setMaxRequestsPerHost(builder.maxRequests);
+        this.okHttpClient = client.newBuilder().dispatcher(dispatcher).build();
+
+        this.tokenRegistry = new TokenRegistry(okHttpClient);
+        this.limiter = new ConcurrencyLimiter(builder.maxRequests, builder.maxRequestsPerOrg);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private OkHttpClient okHttpClient;
+        private int maxRequests = 64;
+        private int maxRequestsPerOrg = 16;
+
+        /**
+         * Client whose connection pool and executor are shared, a client with the timeouts of
+         * {@link HttpConnection.Builder#build()} if not set
+         */
+        public Builder okHttpClient(OkHttpClient okHttpClient) {
+            this.okHttpClient = okHttpClient;
+            return this;
+        }
+
+        /** Calls in flight for all the organizations together, {@code 64} by default */
+        public Builder maxRequests(int maxRequests) {
+            Preconditions.checkArgument(maxRequests > 0, "maxRequests must be positive");
+            this.maxRequests = maxRequests;
+            return this;
+        }
+
+        /** Calls in flight for each organization, {@code 16} by default */
+        public Builder maxRequestsPerOrg(int maxRequestsPerOrg) {
+            Preconditions.checkArgument(maxRequestsPerOrg > 0, "maxRequestsPerOrg must be positive");
+            this.maxRequestsPerOrg = maxRequestsPerOrg;
+            return this;
+        }
+
+        public ConnectionManager build() {
+            Preconditions.checkArgument(
+                    maxRequestsPerOrg <= maxRequests, "maxRequestsPerOrg must not exceed maxRequests");
+            return new ConnectionManager(this);
+        }
+    }
+
+    /**
+     * Get the connection of an organization, created with the default options on the first call
+     *
+     * @return connection shared by the callers for the same broker, application and organization
+     * @throws EnosException if failed to get the first token of the application
+     */
+    public HttpConnection getConnection(
+            @NonNull String integrationBrokerUrl,
+            @NonNull String tokenServerUrl,
+            @NonNull String appKey,
+            @NonNull String appSecret,
+            @NonNull String orgId)
+            throws EnosException {
+        Key key = new Key(integrationBrokerUrl, appKey, orgId);
+        HttpConnection connection = connections.get(key);
+        if (connection == null) {
+            HttpConnection created =
+                    newConnectionBuilder(integrationBrokerUrl, tokenServerUrl, appKey, appSecret, orgId)
+                            .build();
+            connection = connections.putIfAbsent(key, created);
+            if (connection == null) {
+                connection = created;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Builder of a connection over the shared transport and tokens, for options such as lark,
+     * compression or metrics. Its own {@link OkHttpClient} must not be set.
+     */
+    public HttpConnection.Builder newConnectionBuilder(
+            @NonNull String integrationBrokerUrl,
+            @NonNull String tokenServerUrl,
+            @NonNull String appKey,
+            @NonNull String appSecret,
+            @NonNull String orgId) {
+        HttpConnection.Builder builder =
+                new HttpConnection.Builder(integrationBrokerUrl, tokenServerUrl, appKey, appSecret, orgId);
+        builder.connectionManager = this;
+        return builder;
+    }
+
+    TokenConnection tokenConnection(String tokenServerUrl, String appKey, String appSecret)
+            throws EnosException {
+        return tokenRegistry.get(tokenServerUrl, appKey, appSecret);
+    }
+
+    ConcurrencyLimiter limiter() {
+        return limiter;
+    }
+
+    /** @return number of calls in flight, for all the organizations */
+    public int inFlight() {
+        return limiter.inFlight();
+    }
+
+    /** @return number of calls waiting for the caps */
+    public int waiting() {
+        return limiter.waiting();
+    }
+
+    /**
+     * Forget the connections and tokens. A client created by the manager is shut down, after the
+     * calls in flight.
+     */
+    @Override
+    public void close() {
+        connections.clear();
+        tokenRegistry.clear();
+        if (ownsClient) {
+            okHttpClient.dispatcher().executorService().shutdown();
+            okHttpClient.connectionPool().evictAll();
+        }
+    }
+}
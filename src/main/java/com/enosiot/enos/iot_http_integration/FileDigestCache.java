@@ -0,0 +1,112 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FileDigest;
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
+import com.enosiot.enos.iot_http_integration.message.PayloadFileInfo;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import lombok.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache of the MD5 of attached files, so that a file published several times is hashed only
+ * once. An entry is keyed by the canonical path, the length and the last modified time of the
+ * file, so a modified file is hashed again. The number of entries is bounded, least recently
+ * used entries are evicted first.
+ *
+ * <p>The last modified time has a coarse granularity on some file systems, so a file rewritten
+ * with the same length right after it has been hashed could keep its key. A file modified within
+ * the last {@link #RACY_WINDOW_MILLIS} is therefore hashed on every call, and only cached once
+ * its last modified time is old enough to change on any further write.
+ */
+public class FileDigestCache {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1024L;
+
+    /** files modified more recently than this are not cached, 2 s covers the coarsest mtimes */
+    public static final long RACY_WINDOW_MILLIS = 2000L;
+
+    private static final FileDigestCache DEFAULT = new FileDigestCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final Cache<Key, String> cache;
+
+    public FileDigestCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * @return the cache shared by connections that are not given their own one
+     */
+    public static FileDigestCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get length and MD5 of a file, hashing it only if it is not cached yet or has changed
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public FileDigest digest(File file) throws IOException {
+        File canonicalFile = file.getCanonicalFile();
+        long length = canonicalFile.length();
+        long lastModified = canonicalFile.lastModified();
+        if (System.currentTimeMillis() - lastModified < RACY_WINDOW_MILLIS) {
+            return new FileDigest(length, FileFormData.md5(canonicalFile));
+        }
+        Key key = new Key(canonicalFile.getPath(), length, lastModified);
+        try {
+            return new FileDigest(length, cache.get(key, () -> FileFormData.md5(canonicalFile)));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Get length and MD5 of an attached file, a {@link File} or a {@link FilePayload}, whose
+     * digest is kept by the payload itself
+     * @param fileInfo
+     * @return
+     * @throws IOException
+     */
+    public FileDigest digest(UploadFileInfo fileInfo) throws IOException {
+        if (fileInfo instanceof PayloadFileInfo) {
+            return ((PayloadFileInfo) fileInfo).getPayload().digest();
+        }
+        return digest(fileInfo.getFile());
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Value
+    private static class Key {
+        String canonicalPath;
+        long length;
+        long lastModified;
+    }
+}
@@ -1,5 +1,7 @@
 package com.enosiot.enos.iot_http_integration;
 
+import com.enosiot.enos.iot_http_integration.message.FileDigest;
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
 import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
@@ -9,6 +11,8 @@ import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody.Part;
 import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Source;
 
 import java.io.File;
 import java.io.IOException;
@@ -58,6 +62,19 @@ public class FileFormData
     }
 
     public static Part createFormData(@NonNull UploadFileInfo fileInfo) throws IOException
+    {
+        return createFormData(fileInfo, FileDigestCache.getDefault().digest(fileInfo));
+    }
+
+    /**
+     * Create the form-data part of a file whose length and MD5 are already resolved
+     */
+    public static Part createFormData(@NonNull UploadFileInfo fileInfo, @NonNull FileDigest digest)
+    {
+        return Part.create(headers(fileInfo, digest).build(), fileBody(FilePayload.from(fileInfo), digest.getLength()));
+    }
+
+    static Headers.Builder headers(UploadFileInfo fileInfo, FileDigest digest)
     {
         StringBuilder disposition = new StringBuilder("form-data; name=");
         appendQuotedString(disposition, ENOS_FILE);
@@ -65,12 +82,35 @@ public class FileFormData
         disposition.append("; filename=");
         appendQuotedString(disposition, fileInfo.getFilename());
 
-        Headers headers = new Headers.Builder()
+        return new Headers.Builder()
                 .addUnsafeNonAscii("Content-Disposition", disposition.toString())
-                .addUnsafeNonAscii("Content-MD5", md5(fileInfo.getFile()))
-                .build();
+                .addUnsafeNonAscii("Content-MD5", digest.getMd5());
+    }
 
-        return Part.create(headers,
-                RequestBody.create(MediaType.parse(MEDIA_TYPE_OCTET_STREAM), fileInfo.getFile()));
+    private static RequestBody fileBody(FilePayload payload, long length)
+    {
+        return new RequestBody()
+        {
+            @Override
+            public MediaType contentType()
+            {
+                return MediaType.parse(MEDIA_TYPE_OCTET_STREAM);
+            }
+
+            @Override
+            public long contentLength()
+            {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException
+            {
+                try (Source source = payload.open())
+                {
+                    sink.writeAll(source);
+                }
+            }
+        };
     }
 }
@@ -0,0 +1,228 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FileInfoResponse;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.enosiot.enos.iot_http_integration.HttpConnectionError.CLIENT_ERROR;
+
+/**
+ * Cache of the results of {@link HttpConnection#getFileInfo} and {@link
+ * HttpConnection#getDownloadUrl}, keyed by organization, category, device and file URI.
+ *
+ * <p>The number of entries is bounded, least recently used entries are evicted first, and
+ * entries expire a while after they have been loaded. Concurrent misses of the same entry are
+ * loaded by a single call, which the other callers wait for. Only successful responses are
+ * cached, an empty response body is returned as {@code null} without being cached, and the
+ * entries of a file are invalidated once it has been deleted through the connection.
+ *
+ * <p>Cached {@link FileInfoResponse}s are shared by the callers and must not be modified.
+ */
+public class FileMetadataCache {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1024L;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+        private long fileInfoTtlNanos = TimeUnit.MINUTES.toNanos(5);
+
+        private long downloadUrlTtlNanos = TimeUnit.MINUTES.toNanos(1);
+
+        Builder() {
+        }
+
+        /** Maximum number of file infos, and of download URLs */
+        public Builder maximumSize(long maximumSize) {
+            Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive");
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder fileInfoTtl(long ttl, @NonNull TimeUnit unit) {
+            Preconditions.checkArgument(ttl > 0, "ttl must be positive");
+            this.fileInfoTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /** Should stay below the validity of the signed URLs the broker returns */
+        public Builder downloadUrlTtl(long ttl, @NonNull TimeUnit unit) {
+            Preconditions.checkArgument(ttl > 0, "ttl must be positive");
+            this.downloadUrlTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        public FileMetadataCache build() {
+            return new FileMetadataCache(this);
+        }
+    }
+
+    private final Cache<Key, FileInfoResponse> fileInfos;
+    private final Cache<Key, String> downloadUrls;
+
+    private FileMetadataCache(Builder builder) {
+        this.fileInfos =
+                CacheBuilder.newBuilder()
+                        .maximumSize(builder.maximumSize)
+                        .expireAfterWrite(builder.fileInfoTtlNanos, TimeUnit.NANOSECONDS)
+                        .recordStats()
+                        .build();
+        this.downloadUrls =
+                CacheBuilder.newBuilder()
+                        .maximumSize(builder.maximumSize)
+                        .expireAfterWrite(builder.downloadUrlTtlNanos, TimeUnit.NANOSECONDS)
+                        .recordStats()
+                        .build();
+    }
+
+    FileInfoResponse getFileInfo(Key key, Callable<FileInfoResponse> loader) throws EnosException {
+        try {
+            return fileInfos.get(
+                    key,
+                    () -> {
+                        FileInfoResponse response = loader.call();
+                        if (response == null || response.getCode() != FileInfoResponse.SUCCESS_CODE) {
+                            throw new NotCached(response);
+                        }
+                        return response;
+                    });
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            if (e.getCause() instanceof NotCached) {
+                return (FileInfoResponse) ((NotCached) e.getCause()).value;
+            }
+            throw unwrap(e);
+        }
+    }
+
+    /** @return the cached file info, {@code null} if not cached */
+    FileInfoResponse getFileInfoIfPresent(Key key) {
+        return fileInfos.getIfPresent(key);
+    }
+
+    /** Cache a file info loaded without {@link #getFileInfo}, unless it is missing or unsuccessful */
+    void putFileInfo(Key key, FileInfoResponse response) {
+        if (response != null && response.getCode() == FileInfoResponse.SUCCESS_CODE) {
+            fileInfos.put(key, response);
+        }
+    }
+
+    String getDownloadUrl(Key key, Callable<String> loader) throws EnosException {
+        try {
+            return downloadUrls.get(
+                    key,
+                    () -> {
+                        String url = loader.call();
+                        if (url == null) {
+                            throw new NotCached(null);
+                        }
+                        return url;
+                    });
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            if (e.getCause() instanceof NotCached) {
+                return null;
+            }
+            throw unwrap(e);
+        }
+    }
+
+    /** Invalidate the entries of a file, whatever the device and category they were loaded for */
+    public void invalidate(@NonNull String fileUri) {
+        fileInfos.asMap().keySet().removeIf(key -> fileUri.equals(key.fileUri));
+        downloadUrls.asMap().keySet().removeIf(key -> fileUri.equals(key.fileUri));
+    }
+
+    public void invalidateAll() {
+        fileInfos.invalidateAll();
+        downloadUrls.invalidateAll();
+    }
+
+    public long hitCount() {
+        return fileInfos.stats().hitCount() + downloadUrls.stats().hitCount();
+    }
+
+    public long missCount() {
+        return fileInfos.stats().missCount() + downloadUrls.stats().missCount();
+    }
+
+    /** @return entries evicted because of the size bound or expired */
+    public long evictionCount() {
+        return fileInfos.stats().evictionCount() + downloadUrls.stats().evictionCount();
+    }
+
+    public CacheStats fileInfoStats() {
+        return fileInfos.stats();
+    }
+
+    public CacheStats downloadUrlStats() {
+        return downloadUrls.stats();
+    }
+
+    public long size() {
+        return fileInfos.size() + downloadUrls.size();
+    }
+
+    /** @return the exception thrown by the loader, as if it had been called directly */
+    private static EnosException unwrap(Throwable e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof EnosException) {
+            return (EnosException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new EnosException(CLIENT_ERROR, String.valueOf(cause));
+    }
+
+    static Key key(String orgId, FileCategory category, DeviceInfo deviceInfo, String fileUri) {
+        return new Key(
+                orgId,
+                category,
+                deviceInfo == null ? null : deviceInfo.getAssetId(),
+                deviceInfo == null ? null : deviceInfo.getProductKey(),
+                deviceInfo == null ? null : deviceInfo.getDeviceKey(),
+                fileUri);
+    }
+
+    @Value
+    static class Key {
+        String orgId;
+        FileCategory category;
+        String assetId;
+        String productKey;
+        String deviceKey;
+        String fileUri;
+    }
+
+    /**
+     * carries an unsuccessful or missing value out of the loader, so that it is not cached, Guava
+     * caches do not accept {@code null}
+     */
+    private static class NotCached extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final transient Object value;
+
+        NotCached(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+}
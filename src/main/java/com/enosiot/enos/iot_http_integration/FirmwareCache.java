@@ -0,0 +1,458 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import okio.BufferedSink;
+import okio.HashingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static com.enosiot.enos.iot_http_integration.HttpConnectionError.CLIENT_ERROR;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Local disk cache of firmware images, so that an image rolled out to many devices is downloaded
+ * once per host.
+ *
+ * <p>Images are stored under their MD5 in {@code objects/}, and {@code refs/} maps every firmware
+ * ID to the MD5 of its image, so the cache keeps serving images it holds while the broker is
+ * unreachable. An image is downloaded into a temporary file, verified and then moved into place
+ * atomically, so a reader never sees a partial image.
+ *
+ * <p>Concurrent first requests of a firmware are served by a single download. Processes sharing
+ * the directory coordinate through a file lock per firmware, so they do not download it
+ * concurrently either. There must be a single cache per directory within a process.
+ *
+ * <p>Least recently used images are evicted once the images exceed {@code maxDiskBytes}, except
+ * the images that are open.
+ *
+ * <pre>
+ * try (FirmwareImage image = firmwareCache.open(firmwareId, md5)) {
+ *     MappedByteBuffer content = image.map();
+ *     ...
+ * }
+ * </pre>
+ */
+@Slf4j
+public class FirmwareCache {
+    private static final String OBJECTS_DIRECTORY = "objects";
+    private static final String REFS_DIRECTORY = "refs";
+    private static final String LOCKS_DIRECTORY = "locks";
+    private static final String PART_SUFFIX = ".part";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+
+    /** firmware IDs are encoded into file names safe on case-insensitive file systems too */
+    private static final BaseEncoding FILE_NAME_ENCODING = BaseEncoding.base32Hex().lowerCase().omitPadding();
+
+    public static Builder builder(@NonNull HttpConnection connection, @NonNull Path directory) {
+        return new Builder(connection, directory);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private final Path directory;
+
+        private long maxDiskBytes = 1024 * 1024 * 1024L;
+
+        Builder(HttpConnection connection, Path directory) {
+            this.connection = connection;
+            this.directory = directory;
+        }
+
+        /** Size of the cached images above which the least recently used ones are evicted */
+        public Builder maxDiskBytes(long maxDiskBytes) {
+            Preconditions.checkArgument(maxDiskBytes > 0, "maxDiskBytes must be positive");
+            this.maxDiskBytes = maxDiskBytes;
+            return this;
+        }
+
+        /**
+         * Open the cache, loading the images already in the directory
+         *
+         * @throws IOException if the directory can't be created or read
+         */
+        public FirmwareCache build() throws IOException {
+            FirmwareCache cache = new FirmwareCache(this);
+            cache.load();
+            return cache;
+        }
+    }
+
+    private final HttpConnection connection;
+    private final long maxDiskBytes;
+    private final Path objects;
+    private final Path refs;
+    private final Path locks;
+
+    /** cached images by MD5, in access order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    /** downloads in progress by firmware ID, completed with the MD5 of the image */
+    private final Map<String, CompletableFuture<String>> downloads = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private FirmwareCache(Builder builder) {
+        this.connection = builder.connection;
+        this.maxDiskBytes = builder.maxDiskBytes;
+        this.objects = builder.directory.resolve(OBJECTS_DIRECTORY);
+        this.refs = builder.directory.resolve(REFS_DIRECTORY);
+        this.locks = builder.directory.resolve(LOCKS_DIRECTORY);
+    }
+
+    /**
+     * Open the image of a firmware, downloading it if it is not cached
+     *
+     * @param firmwareId
+     * @param md5 expected MD5 of the image, {@code null} to trust the cached image of the firmware
+     *     or, if there is none, the downloaded one
+     * @return the image, to be closed once read
+     * @throws EnosException if the download fails or the image does not match {@code md5}
+     * @throws IOException if the image can't be written or read
+     */
+    public FirmwareImage open(@NonNull String firmwareId, String md5)
+            throws EnosException, IOException {
+        String expectedMd5 = md5 == null ? null : md5.toLowerCase(Locale.ROOT);
+        String knownMd5 = expectedMd5 != null ? expectedMd5 : readRef(firmwareId);
+        if (knownMd5 != null) {
+            FirmwareImage image = tryOpen(firmwareId, knownMd5);
+            if (image != null) {
+                hitCount.incrementAndGet();
+                return image;
+            }
+        }
+
+        CompletableFuture<String> download = new CompletableFuture<>();
+        CompletableFuture<String> inProgress = downloads.putIfAbsent(firmwareId, download);
+        if (inProgress == null) {
+            missCount.incrementAndGet();
+            try {
+                download.complete(fetch(firmwareId, expectedMd5));
+            } catch (Exception e) {
+                download.completeExceptionally(e);
+            } finally {
+                downloads.remove(firmwareId, download);
+            }
+        } else {
+            coalescedCount.incrementAndGet();
+            download = inProgress;
+        }
+
+        String downloadedMd5 = await(download);
+        if (expectedMd5 != null && !expectedMd5.equals(downloadedMd5)) {
+            throw new EnosException(
+                    CLIENT_ERROR,
+                    "firmware " + firmwareId + " has MD5 " + downloadedMd5 + ", expected " + expectedMd5);
+        }
+        FirmwareImage image = tryOpen(firmwareId, downloadedMd5);
+        if (image == null) {
+            throw new IOException("firmware " + firmwareId + " evicted by another process");
+        }
+        return image;
+    }
+
+    /** @return whether the image of a firmware is cached, without downloading it */
+    public boolean contains(@NonNull String firmwareId) throws IOException {
+        String md5 = readRef(firmwareId);
+        return md5 != null && Files.exists(objects.resolve(md5));
+    }
+
+    /** @return images served from the cache */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /** @return images downloaded */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /** @return requests that waited for the download of another one */
+    public long coalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long evictionCount() {
+        return evictionCount.get();
+    }
+
+    /** @return size of the cached images */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /** @return number of cached images */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // ======== download =========
+
+    /** @return MD5 of the image, which has been moved into the cache */
+    private String fetch(String firmwareId, String expectedMd5) throws EnosException, IOException {
+        String name = fileName(firmwareId);
+        Files.createDirectories(locks);
+        try (FileChannel lockChannel = FileChannel.open(locks.resolve(name + LOCK_SUFFIX), CREATE, WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                return fetchLocked(firmwareId, expectedMd5, name);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /** Download the image into the cache, must be called while holding the lock of the firmware */
+    private String fetchLocked(String firmwareId, String expectedMd5, String name) throws EnosException, IOException {
+        // another process may have cached it while this one was waiting for the lock
+        String cachedMd5 = expectedMd5 != null ? expectedMd5 : readRef(firmwareId);
+        if (cachedMd5 != null && Files.exists(objects.resolve(cachedMd5))) {
+            writeRef(firmwareId, cachedMd5);
+            return cachedMd5;
+        }
+
+        Path part = objects.resolve(name + PART_SUFFIX);
+        try {
+            String md5;
+            try (HashingSource hashing = HashingSource.md5(Okio.source(connection.downloadFirmwareFile(firmwareId)));
+                    BufferedSink sink = Okio.buffer(Okio.sink(part))) {
+                sink.writeAll(hashing);
+                md5 = hashing.hash().hex();
+            }
+            if (expectedMd5 != null && !expectedMd5.equals(md5)) {
+                throw new EnosException(
+                        CLIENT_ERROR,
+                        "firmware " + firmwareId + " has MD5 " + md5 + ", expected " + expectedMd5);
+            }
+            try (FileChannel channel = FileChannel.open(part, WRITE)) {
+                channel.force(true);
+            }
+            publish(md5, part);
+            writeRef(firmwareId, md5);
+            return md5;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /** Move a downloaded image into the cache */
+    private void publish(String md5, Path part) throws IOException {
+        Path object = objects.resolve(md5);
+        long size = Files.size(part);
+        try {
+            if (!Files.exists(object)) {
+                Files.move(part, object, ATOMIC_MOVE);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // same content, cached by another process in the meantime
+        }
+        synchronized (this) {
+            if (!entries.containsKey(md5)) {
+                entries.put(md5, new Entry(size));
+                diskBytes += size;
+            }
+            evict(md5);
+        }
+    }
+
+    private static String await(CompletableFuture<String> download)
+            throws EnosException, IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EnosException(CLIENT_ERROR, "interrupted while waiting for the download");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EnosException) {
+                throw (EnosException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new EnosException(CLIENT_ERROR, String.valueOf(cause));
+        }
+    }
+
+    // ======== index =========
+
+    /** @return the opened image, {@code null} if it is not in the cache */
+    private FirmwareImage tryOpen(String firmwareId, String md5) throws IOException {
+        Path object = objects.resolve(md5);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(md5);
+            if (entry == null) {
+                if (!Files.exists(object)) {
+                    return null;
+                }
+                // cached by another process
+                entry = new Entry(Files.size(object));
+                entries.put(md5, entry);
+                diskBytes += entry.size;
+            }
+            entry.pins++;
+        }
+
+        Entry pinned = entry;
+        try {
+            FirmwareImage image = new FirmwareImage(firmwareId, md5, object, () -> release(pinned));
+            touch(object);
+            return image;
+        } catch (NoSuchFileException e) {
+            // evicted by another process
+            synchronized (this) {
+                pinned.pins--;
+                if (entries.remove(md5, pinned)) {
+                    diskBytes -= pinned.size;
+                }
+            }
+            return null;
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.pins--;
+        evict(null);
+    }
+
+    /** Evict images until they fit into the budget, must be called while holding the lock */
+    private void evict(String protectedMd5) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> candidate = iterator.next();
+            if (candidate.getValue().pins > 0 || candidate.getKey().equals(protectedMd5)) {
+                continue;
+            }
+            iterator.remove();
+            diskBytes -= candidate.getValue().size;
+            evictionCount.incrementAndGet();
+            try {
+                Files.deleteIfExists(objects.resolve(candidate.getKey()));
+            } catch (IOException e) {
+                log.warn("failed to delete evicted firmware image {}", candidate.getKey(), e);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(objects);
+        Files.createDirectories(refs);
+        Files.createDirectories(locks);
+
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (MD5.matcher(name).matches()) {
+                    images.add(path);
+                } else if (name.endsWith(PART_SUFFIX)) {
+                    deleteIfAbandoned(path, name.substring(0, name.length() - PART_SUFFIX.length()));
+                }
+            }
+        }
+        // oldest access first, so that the access order of the index follows the files
+        images.sort(Comparator.comparing(FirmwareCache::lastModified));
+        synchronized (this) {
+            for (Path image : images) {
+                Entry entry = new Entry(Files.size(image));
+                entries.put(image.getFileName().toString(), entry);
+                diskBytes += entry.size;
+            }
+            evict(null);
+        }
+    }
+
+    /** Delete a partial download whose process is gone, that is whose lock is not held */
+    private void deleteIfAbandoned(Path part, String name) throws IOException {
+        try (FileChannel lockChannel = FileChannel.open(locks.resolve(name + LOCK_SUFFIX), CREATE, WRITE);
+                FileLock lock = lockChannel.tryLock()) {
+            if (lock != null) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    private String readRef(String firmwareId) throws IOException {
+        Path ref = refs.resolve(fileName(firmwareId));
+        try {
+            String md5 = new String(Files.readAllBytes(ref), UTF_8).trim();
+            return MD5.matcher(md5).matches() ? md5 : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void writeRef(String firmwareId, String md5) throws IOException {
+        String name = fileName(firmwareId);
+        Path temp = refs.resolve(name + PART_SUFFIX);
+        Files.write(temp, md5.getBytes(UTF_8));
+        Files.move(temp, refs.resolve(name), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private static String fileName(String firmwareId) {
+        return FILE_NAME_ENCODING.encode(firmwareId.getBytes(UTF_8));
+    }
+
+    /** Record the access in the file, so that the order of eviction survives restarts */
+    private static void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("failed to touch firmware image {}", path, e);
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0L);
+        }
+    }
+
+    private static class Entry {
+        final long size;
+
+        /** open images, which are not evicted */
+        int pins;
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+}
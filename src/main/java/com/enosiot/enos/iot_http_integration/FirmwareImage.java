@@ -0,0 +1,85 @@
+package com.enosiot.enos.iot_http_integration;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A firmware image held in a {@link FirmwareCache}. The image is not evicted while it is open,
+ * so it must be closed once read.
+ *
+ * <p>The channel and the mapping are shared by the threads reading the image, which should use
+ * positional reads, such as {@link FileChannel#read(ByteBuffer, long)}, or duplicates of the
+ * mapping.
+ */
+public final class FirmwareImage implements Closeable {
+    @Getter private final String firmwareId;
+
+    /** MD5 of the image, lower-case hex */
+    @Getter private final String md5;
+
+    @Getter private final Path path;
+
+    @Getter private final long size;
+
+    private final FileChannel channel;
+    private final Runnable onClose;
+
+    private MappedByteBuffer mapping;
+    private boolean closed;
+
+    FirmwareImage(String firmwareId, String md5, Path path, Runnable onClose) throws IOException {
+        this.firmwareId = firmwareId;
+        this.md5 = md5;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.onClose = onClose;
+    }
+
+    /** @return read-only channel of the image, closed with the image */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Map the image into memory, read-only. The mapping is created once, callers should read
+     * from a {@link ByteBuffer#duplicate()} of it.
+     */
+    public synchronized MappedByteBuffer map() throws IOException {
+        if (closed) {
+            throw new IOException("firmware image closed");
+        }
+        if (mapping == null) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        }
+        return mapping;
+    }
+
+    /** @return a new stream of the image, to be closed before the image */
+    public InputStream newInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        mapping = null;
+        try {
+            channel.close();
+        } finally {
+            onClose.run();
+        }
+    }
+}
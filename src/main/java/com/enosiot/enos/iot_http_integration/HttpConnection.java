@@ -3,22 +3,23 @@ package com.enosiot.enos.iot_http_integration;
 import static com.enosiot.enos.iot_http_integration.HttpConnectionError.*;
 import static com.enosiot.enos.iot_mqtt_sdk.core.internals.constants.FormDataConstants.ENOS_MESSAGE;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.enosiot.enos.iot_http_integration.message.*;
+import com.enosiot.enos.iot_http_integration.metrics.IHttpMetrics;
+import com.enosiot.enos.iot_http_integration.metrics.MetricsEventListener;
+import com.enosiot.enos.iot_http_integration.metrics.NoopHttpMetrics;
 import com.enosiot.enos.iot_http_integration.progress.IProgressListener;
 import com.enosiot.enos.iot_http_integration.progress.ProgressRequestWrapper;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
 import com.enosiot.enos.iot_http_integration.utils.FileUtil;
 import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
 import com.enosiot.enos.iot_mqtt_sdk.core.internals.constants.RangeFileBody;
 import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
-import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
 import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
 import com.enosiot.enos.sdk.data.DeviceInfo;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
-import com.google.common.util.concurrent.Monitor;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.Getter;
 import lombok.NonNull;
@@ -26,15 +27,23 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import okhttp3.*;
+import okio.BufferedSource;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -53,6 +62,9 @@ public class HttpConnection {
     private static final String APIM_ACCESS_TOKEN = "apim-accesstoken";
     private static final String RANGE = "Range";
 
+    /** buffer of the downloads into channels */
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+
     /**
      * Builder for http connection. A customized OkHttpClient can be provided, to define specific
      * connection pool, proxy etc. Find more at {@link #okHttpClient}
@@ -77,6 +89,34 @@ public class HttpConnection {
 
         private boolean autoUpload = true;
 
+        /** Cache of attached file digests, the process wide default cache if not set */
+        private FileDigestCache fileDigestCache;
+
+        /** Metrics of the calls, discarded if not set */
+        private IHttpMetrics metrics;
+
+        /** Codec the message and, if {@link #compressFiles}, files are compressed with, none if not set */
+        private CompressionCodec compression;
+
+        /** Parts smaller than this are not compressed */
+        private long compressionThreshold = 1024L;
+
+        private boolean compressFiles = false;
+
+        /** Policy retrying the failed calls, {@link RetryPolicy#defaultPolicy()} if not set */
+        private RetryPolicy retryPolicy;
+
+        /** Cache of file infos and download URLs, nothing is cached if not set */
+        private FileMetadataCache fileMetadataCache;
+
+        /** Runs the callbacks of asynchronous calls, the OkHttp dispatcher threads if not set */
+        private Executor callbackExecutor;
+
+        /** Shares its transport, tokens and caps, see {@link ConnectionManager#newConnectionBuilder} */
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        ConnectionManager connectionManager;
+
         public HttpConnection build() throws EnosException {
             HttpConnection instance = new HttpConnection();
 
@@ -84,6 +124,13 @@ public class HttpConnection {
 
             instance.orgId = orgId;
 
+            if (connectionManager != null) {
+                Preconditions.checkState(
+                        okHttpClient == null || okHttpClient == connectionManager.getOkHttpClient(),
+                        "the client of a managed connection is the client of its manager");
+                okHttpClient = connectionManager.getOkHttpClient();
+            }
+
             // allocate client
             if (okHttpClient == null) {
                 okHttpClient =
@@ -94,19 +141,59 @@ public class HttpConnection {
                                 .retryOnConnectionFailure(true)
                                 .build();
             }
-            instance.okHttpClient = okHttpClient;
+            instance.metrics = metrics != null ? metrics : NoopHttpMetrics.INSTANCE;
+            if (metrics != null) {
+                // shares the connection pool and dispatcher of the given client
+                instance.okHttpClient =
+                        okHttpClient.newBuilder()
+                                .eventListenerFactory(
+                                        MetricsEventListener.factory(
+                                                metrics, okHttpClient.eventListenerFactory()))
+                                .build();
+            } else {
+                instance.okHttpClient = okHttpClient;
+            }
+
+            if (connectionManager != null) {
+                // shared by the organizations of the same application
+                instance.tokenConnection =
+                        connectionManager.tokenConnection(tokenServerUrl, appKey, appSecret);
+            } else {
+                // construct token connection
+                instance.tokenConnection =
+                        TokenConnection.builder()
+                                .tokenServerUrl(tokenServerUrl)
+                                .appKey(appKey)
+                                .appSecret(appSecret)
+                                .okHttpClient(instance.okHttpClient)
+                                .build();
+
+                // initiate token
+                instance.tokenConnection.getAndRefreshToken();
+                instance.tokenConnection.startRefresher();
+            }
+
+            instance.fileDigestCache =
+                    fileDigestCache != null ? fileDigestCache : FileDigestCache.getDefault();
 
-            // construct token connection
-            instance.tokenConnection =
-                    TokenConnection.builder()
-                            .tokenServerUrl(tokenServerUrl)
-                            .appKey(appKey)
-                            .appSecret(appSecret)
-                            .okHttpClient(instance.okHttpClient)
-                            .build();
+            if (compression != null) {
+                instance.partCompressor =
+                        new PartCompressor(
+                                compression, compressionThreshold, compressFiles, instance.metrics);
+            }
 
-            // initiate token
-            instance.tokenConnection.getAndRefreshToken();
+            instance.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.defaultPolicy();
+            instance.callExecutor =
+                    new RetryingCallExecutor(
+                            instance.okHttpClient,
+                            instance.tokenConnection,
+                            instance.retryPolicy,
+                            instance.metrics,
+                            connectionManager != null ? connectionManager.limiter() : null,
+                            orgId,
+                            callbackExecutor);
+
+            instance.fileMetadataCache = fileMetadataCache;
 
             instance.setAutoUpload(this.autoUpload);
             instance.setUseLark(this.useLark);
@@ -123,19 +210,102 @@ public class HttpConnection {
             this.autoUpload = autoUpload;
             return this;
         }
+
+        public Builder setFileDigestCache(FileDigestCache fileDigestCache) {
+            this.fileDigestCache = fileDigestCache;
+            return this;
+        }
+
+        public Builder setMetrics(IHttpMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Compress the integration message, and attached files if enabled, with the given codec.
+         * The broker must accept form-data parts with a {@code Content-Encoding} header.
+         */
+        public Builder setCompression(CompressionCodec compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder setCompressionThreshold(long compressionThreshold) {
+            Preconditions.checkArgument(compressionThreshold >= 0, "compressionThreshold must not be negative");
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Compress attached files too. Their parts are then of unknown length, so the request is
+         * sent chunked and upload progress is reported without a content length.
+         */
+        public Builder setCompressFiles(boolean compressFiles) {
+            this.compressFiles = compressFiles;
+            return this;
+        }
+
+        /**
+         * Retry failed calls as the policy allows, {@link RetryPolicy#none()} to disable retries.
+         * Share a {@link com.enosiot.enos.iot_http_integration.retry.RetryBudget} between the
+         * policies of several connections to cap their retries together.
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Cache the results of {@link #getFileInfo} and {@link #getDownloadUrl}. A cache may be
+         * shared by the connections of the same organization.
+         */
+        public Builder setFileMetadataCache(FileMetadataCache fileMetadataCache) {
+            this.fileMetadataCache = fileMetadataCache;
+            return this;
+        }
+
+        /**
+         * Run the callbacks of asynchronous calls, and the decoding of their responses, on the
+         * given executor, such as a bounded pool or a serial executor, so that slow callbacks
+         * don't hold the dispatcher threads. Their wait in the executor is reported as
+         * {@link com.enosiot.enos.iot_http_integration.metrics.HttpPhase#CALLBACK_WAIT}. If the
+         * executor rejects a callback, the call fails with an {@link java.io.InterruptedIOException}
+         * instead, delivered on the dispatcher thread as OkHttp does for the calls its dispatcher
+         * rejects.
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
     }
 
     private String integrationBrokerUrl;
 
+    @Getter(AccessLevel.PACKAGE)
     private String orgId;
 
-    // For automatic apply for access token
-    private Monitor authMonitor = new Monitor();
-
     private TokenConnection tokenConnection;
 
     @Getter private OkHttpClient okHttpClient = null;
 
+    /** Cache of attached file digests, see {@link FileDigestCache#hitCount()} for its usage */
+    @Getter private FileDigestCache fileDigestCache;
+
+    /** Metrics of the calls, including token service calls */
+    @Getter private IHttpMetrics metrics;
+
+    /** compresses the parts of a publish, {@code null} if compression is disabled */
+    private PartCompressor partCompressor;
+
+    /** Policy retrying the failed calls of every operation */
+    @Getter private RetryPolicy retryPolicy;
+
+    @Getter(AccessLevel.PACKAGE)
+    private RetryingCallExecutor callExecutor;
+
+    /** Cache of file infos and download URLs, {@code null} if disabled */
+    @Getter private FileMetadataCache fileMetadataCache;
+
     @Getter @Setter private boolean autoUpload = true;
 
     @Getter @Setter private boolean useLark = false;
@@ -145,39 +315,34 @@ public class HttpConnection {
 
     // ======== auth via token server will be automatically executed =========
 
+    /**
+     * Check the access token on the request path. This is a single volatile read: the token is
+     * renewed ahead of time by the background refresher, and only an expired token, such as after
+     * the token server has been unreachable for a while, makes the call fail fast. The expired
+     * token is then renewed on the refresher thread right away, so that the calls that follow
+     * don't wait for the backoff of the refresher.
+     */
     private void checkAuth() throws EnosException {
-        if (tokenConnection.needGetToken() || tokenConnection.needRefreshToken()) {
-            auth();
+        TokenConnection.Token token = tokenConnection.getCurrentToken();
+        if (token == null || token.isExpired(System.currentTimeMillis())) {
+            // renew now rather than at the next run of the refresher, at most once at a time
+            tokenConnection.renewTokenAsync(token == null ? null : token.getAccessToken());
+            throw new EnosException(UNSUCCESSFUL_AUTH, "access token is not available");
         }
     }
 
     /**
-     * Ensure to get / refresh access token
+     * Ensure to get / refresh access token, blocking until the token server has responded
      *
      * @throws EnosException with code {@code UNSUCCESSFUL_AUTH} if failed to get access token
      */
     public void auth() throws EnosException {
-        if (authMonitor.tryEnter()) {
-            try {
-                // if there is no accessToken, you need to get token
-                // or if token is near to expiry, you need to refresh token
-                if (tokenConnection.needGetToken()) {
-                    tokenConnection.getToken();
-                } else if (tokenConnection.needRefreshToken()) {
-                    tokenConnection.refreshToken();
-                }
-            } finally {
-                authMonitor.leave();
-            }
-        } else if (authMonitor.enter(10L, TimeUnit.SECONDS)) {
-            // Wait at most 10 seconds and try to get Access Token
-            try {
-                if (tokenConnection.needGetToken()) {
-                    throw new EnosException(UNSUCCESSFUL_AUTH);
-                }
-            } finally {
-                authMonitor.leave();
-            }
+        // if there is no accessToken, you need to get token
+        // or if token is near to expiry, you need to refresh token
+        if (tokenConnection.needGetToken()) {
+            tokenConnection.getToken();
+        } else if (tokenConnection.needRefreshToken()) {
+            tokenConnection.refreshToken();
         }
     }
 
@@ -223,6 +388,59 @@ public class HttpConnection {
         publishCallAsync(call, callback);
     }
 
+    /**
+     * Publish a request to EnOS IOT HTTP broker, asynchronously. In lark mode, the attached files
+     * are uploaded before the future completes.
+     *
+     * @param request
+     * @param progressListener used to handle file uploading progress, {@code null} if not available
+     * @return future of the response, failed with an {@link EnosException} if the broker refused
+     *     the request, or an {@link IOException} if it could not be reached
+     */
+    public CallFuture<IntegrationResponse> publishAsync(
+            BaseIntegrationRequest request, IProgressListener progressListener) {
+        Call call;
+        try {
+            call = generatePublishCall(request, request.getFiles(), progressListener);
+        } catch (EnosException | IOException e) {
+            return CallFuture.failed(e);
+        }
+        return callAsync(
+                call,
+                true,
+                httpResponse -> {
+                    IntegrationResponse response = decode(httpResponse, IntegrationResponse.class);
+                    if (this.isUseLark() && request.getFiles() != null) {
+                        uploadFileByUrl(request, response);
+                    }
+                    return response;
+                });
+    }
+
+    /**
+     * Publish a message that has already been encoded by {@link BaseIntegrationRequest#encode()},
+     * such as a request replayed from an outbox. Files can't be attached this way.
+     *
+     * @param requestAction action parameter of the request API
+     * @param message encoded JSON message
+     * @return response
+     * @throws EnosException
+     */
+    IntegrationResponse publishEncoded(String requestAction, byte[] message)
+            throws EnosException {
+        checkAuth();
+
+        MultipartBody body =
+                new MultipartBody.Builder()
+                        .setType(MultipartBody.FORM)
+                        .addPart(
+                                MultipartBody.Part.createFormData(
+                                        ENOS_MESSAGE, null, RequestBody.create(null, message)))
+                        .build();
+        return publishCall(
+                generatePublishCall(requestAction, body, null), IntegrationResponse.class);
+    }
+
     /**
      * Delete a file
      *
@@ -234,7 +452,11 @@ public class HttpConnection {
     public IntegrationResponse deleteFile(DeviceInfo deviceInfo, String fileUri)
             throws EnosException {
         Call call = generateDeleteCall(orgId, deviceInfo, fileUri);
-        return publishCall(call, IntegrationResponse.class);
+        IntegrationResponse response = publishCall(call, IntegrationResponse.class);
+        if (fileMetadataCache != null && response != null && response.isSuccess()) {
+            fileMetadataCache.invalidate(fileUri);
+        }
+        return response;
     }
 
     /**
@@ -248,21 +470,110 @@ public class HttpConnection {
     public void deleteFile(DeviceInfo deviceInfo, String fileUri, IIntegrationCallback callback)
             throws EnosException {
         Call call = generateDeleteCall(orgId, deviceInfo, fileUri);
-        publishCallAsync(call, callback);
+        if (fileMetadataCache == null) {
+            publishCallAsync(call, callback);
+            return;
+        }
+        publishCallAsync(
+                call,
+                new IIntegrationCallback() {
+                    @Override
+                    public void onResponse(IntegrationResponse response) {
+                        if (response != null && response.isSuccess()) {
+                            fileMetadataCache.invalidate(fileUri);
+                        }
+                        callback.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(Exception failure) {
+                        callback.onFailure(failure);
+                    }
+                });
+    }
+
+    /**
+     * Delete a file, asynchronously
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @return future of the response
+     */
+    public CallFuture<IntegrationResponse> deleteFileAsync(DeviceInfo deviceInfo, String fileUri) {
+        Call call;
+        try {
+            call = generateDeleteCall(orgId, deviceInfo, fileUri);
+        } catch (EnosException e) {
+            return CallFuture.failed(e);
+        }
+        return callAsync(
+                call,
+                true,
+                httpResponse -> {
+                    IntegrationResponse response = decode(httpResponse, IntegrationResponse.class);
+                    if (fileMetadataCache != null && response != null && response.isSuccess()) {
+                        fileMetadataCache.invalidate(fileUri);
+                    }
+                    return response;
+                });
     }
 
     public FileInfoResponse getFileInfo(
             DeviceInfo deviceInfo, String fileUri, FileCategory category) throws EnosException {
+        if (fileMetadataCache != null) {
+            return fileMetadataCache.getFileInfo(
+                    FileMetadataCache.key(orgId, category, deviceInfo, fileUri),
+                    () -> doGetFileInfo(deviceInfo, fileUri, category));
+        }
+        return doGetFileInfo(deviceInfo, fileUri, category);
+    }
+
+    private FileInfoResponse doGetFileInfo(
+            DeviceInfo deviceInfo, String fileUri, FileCategory category) throws EnosException {
         Call call = generateGetFileInfoCall(orgId, category, deviceInfo, fileUri);
         return publishCall(call, FileInfoResponse.class);
     }
 
-    //    异步方式没必要，先注释掉
-    //    public void getFileInfo(DeviceInfo deviceInfo, String fileUri, FileCategory category,
-    // IFileInfoCallBack callback) throws EnosException {
-    //        Call call = generateGetFileInfoCall(orgId, category, deviceInfo, fileUri);
-    //        publishCallAsync(call, callback);
-    //    }
+    /**
+     * Get the info of a file, asynchronously. A file info cached by the {@link FileMetadataCache}
+     * completes the future right away, otherwise the loaded info is cached once received.
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @param category
+     * @return future of the response
+     */
+    public CallFuture<FileInfoResponse> getFileInfoAsync(
+            DeviceInfo deviceInfo, String fileUri, FileCategory category) {
+        FileMetadataCache.Key key =
+                fileMetadataCache != null
+                        ? FileMetadataCache.key(orgId, category, deviceInfo, fileUri)
+                        : null;
+        if (key != null) {
+            FileInfoResponse cached = fileMetadataCache.getFileInfoIfPresent(key);
+            if (cached != null) {
+                CallFuture<FileInfoResponse> future = new CallFuture<>();
+                future.complete(cached);
+                return future;
+            }
+        }
+        Call call;
+        try {
+            call = generateGetFileInfoCall(orgId, category, deviceInfo, fileUri);
+        } catch (EnosException e) {
+            return CallFuture.failed(e);
+        }
+        return callAsync(
+                call,
+                true,
+                httpResponse -> {
+                    FileInfoResponse response = decode(httpResponse, FileInfoResponse.class);
+                    if (key != null) {
+                        fileMetadataCache.putFileInfo(key, response);
+                    }
+                    return response;
+                });
+    }
 
     public RangeFileBody downloadFile(
             DeviceInfo deviceInfo,
@@ -278,24 +589,24 @@ public class HttpConnection {
                         orgId, deviceInfo, fileUri, category, startRange, endRange);
         Response httpResponse;
         try {
-            httpResponse = call.execute();
+            httpResponse = callExecutor.execute(call);
 
             if (!httpResponse.isSuccessful()) {
+                httpResponse.close();
                 throw new EnosException(httpResponse.code(), httpResponse.message());
             }
 
             try {
-                Preconditions.checkNotNull(httpResponse);
                 Preconditions.checkNotNull(httpResponse.body());
 
-                return builder.contentLength(
-                                Integer.parseInt(httpResponse.headers().get("Content-length")))
+                return builder.contentLength(rangeContentLength(httpResponse.body()))
                         .contentRange(httpResponse.headers().get("Content-Range"))
                         .acceptRanges(httpResponse.headers().get("Accept-Ranges"))
                         .data(httpResponse.body().byteStream())
                         .build();
             } catch (Exception e) {
                 log.info("failed to get response: " + httpResponse, e);
+                httpResponse.close();
                 throw new EnosException(CLIENT_ERROR);
             }
         } catch (SocketException e) {
@@ -323,6 +634,93 @@ public class HttpConnection {
         return handleCall(call);
     }
 
+    /**
+     * Download a file into {@code target}, replacing it if it exists. The file is written to
+     * {@code <target>.part}, which is moved to the target once complete.
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @param category
+     * @param target
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return size of the file
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFile(
+            DeviceInfo deviceInfo,
+            String fileUri,
+            FileCategory category,
+            @NonNull Path target,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        Call call = generateFileDownloadCall(orgId, deviceInfo, fileUri, category, null, null);
+        return download(call, target, progressListener);
+    }
+
+    /**
+     * Download a file from {@code offset} on into a channel, such as a {@link
+     * java.nio.channels.FileChannel} positioned where the bytes belong
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @param category
+     * @param target
+     * @param offset first byte of the file to download, {@code 0} for the whole file
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return bytes written into the channel
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFile(
+            DeviceInfo deviceInfo,
+            String fileUri,
+            FileCategory category,
+            @NonNull WritableByteChannel target,
+            long offset,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+        Call call =
+                generateFileDownloadCall(
+                        orgId, deviceInfo, fileUri, category, offset > 0 ? offset : null, null);
+        return download(call, target, offset, progressListener);
+    }
+
+    /**
+     * Download a file into {@code target} asynchronously, replacing it if it exists. The file is
+     * written to {@code <target>.part}, which is moved to the target once complete, and deleted
+     * if the download fails or is cancelled.
+     *
+     * @param deviceInfo
+     * @param fileUri
+     * @param category
+     * @param target
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return future of the size of the file
+     */
+    public CallFuture<Long> downloadAsync(
+            DeviceInfo deviceInfo,
+            String fileUri,
+            FileCategory category,
+            @NonNull Path target,
+            IProgressListener progressListener) {
+        Call call;
+        try {
+            call = generateFileDownloadCall(orgId, deviceInfo, fileUri, category, null, null);
+        } catch (EnosException e) {
+            return CallFuture.failed(e);
+        }
+        return callAsync(
+                call,
+                false,
+                httpResponse -> {
+                    try (Response closing = httpResponse) {
+                        return save(closing, target, progressListener);
+                    }
+                });
+    }
+
     public void downloadFile(
             DeviceInfo deviceInfo, String fileUri, FileCategory category, IFileCallback callback)
             throws EnosException {
@@ -341,7 +739,8 @@ public class HttpConnection {
                 generateFileDownloadCall(
                         orgId, deviceInfo, fileUri, category, startRange, endRange);
 
-        call.enqueue(
+        callExecutor.enqueue(
+                call,
                 new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
@@ -351,24 +750,22 @@ public class HttpConnection {
                     @Override
                     public void onResponse(Call call, Response response) throws IOException {
                         if (!response.isSuccessful()) {
+                            response.close();
                             callback.onFailure(
                                     new EnosException(response.code(), response.message()));
+                            return;
                         }
 
                         try {
-                            Preconditions.checkNotNull(response);
                             Preconditions.checkNotNull(response.body());
-                            if (response.isSuccessful() && response.body() != null) {
+                            if (response.body() != null) {
                                 callback.onResponse(response.body().byteStream());
 
                                 if (response.code() == 206) {
                                     RangeFileBody.RangeFileBodyBuilder builder =
                                             RangeFileBody.builder();
                                     RangeFileBody rangeFileBody =
-                                            builder.contentLength(
-                                                            Integer.parseInt(
-                                                                    response.headers()
-                                                                            .get("Content-length")))
+                                            builder.contentLength(rangeContentLength(response.body()))
                                                     .contentRange(
                                                             response.headers().get("Content-Range"))
                                                     .acceptRanges(
@@ -380,6 +777,7 @@ public class HttpConnection {
                             }
                         } catch (Exception e) {
                             log.info("failed to get response: " + response, e);
+                            response.close();
                             callback.onFailure(new EnosException(CLIENT_ERROR));
                         }
                     }
@@ -393,24 +791,24 @@ public class HttpConnection {
         Call call = generateFirmwareFileDownloadCall(orgId, firmwareId, startRange, endRange);
         Response httpResponse;
         try {
-            httpResponse = call.execute();
+            httpResponse = callExecutor.execute(call);
 
             if (!httpResponse.isSuccessful()) {
+                httpResponse.close();
                 throw new EnosException(httpResponse.code(), httpResponse.message());
             }
 
             try {
-                Preconditions.checkNotNull(httpResponse);
                 Preconditions.checkNotNull(httpResponse.body());
 
-                return builder.contentLength(
-                                Integer.parseInt(httpResponse.headers().get("Content-length")))
+                return builder.contentLength(rangeContentLength(httpResponse.body()))
                         .contentRange(httpResponse.headers().get("Content-Range"))
                         .acceptRanges(httpResponse.headers().get("Accept-Ranges"))
                         .data(httpResponse.body().byteStream())
                         .build();
             } catch (Exception e) {
                 log.info("failed to get response: " + httpResponse, e);
+                httpResponse.close();
                 throw new EnosException(CLIENT_ERROR);
             }
         } catch (SocketException e) {
@@ -430,6 +828,48 @@ public class HttpConnection {
         return handleCall(call);
     }
 
+    /**
+     * Download a firmware file into {@code target}, replacing it if it exists. The file is
+     * written to {@code <target>.part}, which is moved to the target once complete.
+     *
+     * @param firmwareId
+     * @param target
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return size of the file
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFirmwareFile(
+            String firmwareId, @NonNull Path target, IProgressListener progressListener)
+            throws EnosException, IOException {
+        Call call = generateFirmwareFileDownloadCall(orgId, firmwareId, null, null);
+        return download(call, target, progressListener);
+    }
+
+    /**
+     * Download a firmware file from {@code offset} on into a channel
+     *
+     * @param firmwareId
+     * @param target
+     * @param offset first byte of the file to download, {@code 0} for the whole file
+     * @param progressListener notified of the bytes downloaded, {@code null} if not available
+     * @return bytes written into the channel
+     * @throws EnosException
+     * @throws IOException
+     */
+    public long downloadFirmwareFile(
+            String firmwareId,
+            @NonNull WritableByteChannel target,
+            long offset,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+        Call call =
+                generateFirmwareFileDownloadCall(
+                        orgId, firmwareId, offset > 0 ? offset : null, null);
+        return download(call, target, offset, progressListener);
+    }
+
     public void downloadFirmwareFile(String firmwareId, IFileCallback callback)
             throws EnosException {
         downloadFirmwareFile(firmwareId, null, null, callback);
@@ -440,7 +880,8 @@ public class HttpConnection {
             throws EnosException {
         Call call = generateFirmwareFileDownloadCall(orgId, firmwareId, startRange, endRange);
 
-        call.enqueue(
+        callExecutor.enqueue(
+                call,
                 new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
@@ -450,24 +891,22 @@ public class HttpConnection {
                     @Override
                     public void onResponse(Call call, Response response) throws IOException {
                         if (!response.isSuccessful()) {
+                            response.close();
                             callback.onFailure(
                                     new EnosException(response.code(), response.message()));
+                            return;
                         }
 
                         try {
-                            Preconditions.checkNotNull(response);
                             Preconditions.checkNotNull(response.body());
-                            if (response.isSuccessful() && response.body() != null) {
+                            if (response.body() != null) {
                                 callback.onResponse(response.body().byteStream());
 
                                 if (response.code() == 206) {
                                     RangeFileBody.RangeFileBodyBuilder builder =
                                             RangeFileBody.builder();
                                     RangeFileBody rangeFileBody =
-                                            builder.contentLength(
-                                                            Integer.parseInt(
-                                                                    response.headers()
-                                                                            .get("Content-length")))
+                                            builder.contentLength(rangeContentLength(response.body()))
                                                     .contentRange(
                                                             response.headers().get("Content-Range"))
                                                     .acceptRanges(
@@ -479,6 +918,7 @@ public class HttpConnection {
                             }
                         } catch (Exception e) {
                             log.info("failed to get response: " + response, e);
+                            response.close();
                             callback.onFailure(new EnosException(CLIENT_ERROR));
                         }
                     }
@@ -487,16 +927,23 @@ public class HttpConnection {
 
     public String getDownloadUrl(DeviceInfo deviceInfo, String fileUri, FileCategory category)
             throws EnosException {
-        Call call = generateGetDownloadUrlCall(deviceInfo, fileUri, category);
+        if (fileMetadataCache != null) {
+            return fileMetadataCache.getDownloadUrl(
+                    FileMetadataCache.key(orgId, category, deviceInfo, fileUri),
+                    () -> doGetDownloadUrl(deviceInfo, fileUri, category));
+        }
+        return doGetDownloadUrl(deviceInfo, fileUri, category);
+    }
 
-        try {
-            Response httpResponse = call.execute();
+    private String doGetDownloadUrl(DeviceInfo deviceInfo, String fileUri, FileCategory category)
+            throws EnosException {
+        Call call = generateGetDownloadUrlCall(deviceInfo, fileUri, category);
 
-            Preconditions.checkNotNull(httpResponse);
+        try (Response httpResponse = callExecutor.execute(call)) {
             Preconditions.checkNotNull(httpResponse.body());
 
             FileDownloadResponse response =
-                    GsonUtil.fromJson(httpResponse.body().string(), FileDownloadResponse.class);
+                    ResponseDecoder.decode(httpResponse.body(), FileDownloadResponse.class);
             if (!response.isSuccess()) {
                 throw new EnosException(response.getCode(), response.getMsg());
             }
@@ -513,7 +960,7 @@ public class HttpConnection {
     }
 
     /** complete a Request message */
-    private void fillRequest(BaseIntegrationRequest request) {
+    void fillRequest(BaseIntegrationRequest request) {
         if (Strings.isNullOrEmpty(request.getId())) {
             request.setId(String.valueOf(seqId.incrementAndGet()));
         }
@@ -530,19 +977,14 @@ public class HttpConnection {
      * @throws EnosException
      */
     private <T> T publishCall(Call call, Class<T> t) throws EnosException {
-        Response httpResponse;
-        try {
-            httpResponse = call.execute();
+        try (Response httpResponse = callExecutor.execute(call)) {
             if (!httpResponse.isSuccessful()) {
                 throw new EnosException(httpResponse.code(), httpResponse.message());
             }
 
             try {
-                Preconditions.checkNotNull(httpResponse);
                 Preconditions.checkNotNull(httpResponse.body());
-                byte[] payload = httpResponse.body().bytes();
-                String msg = new String(payload, UTF_8);
-                return GsonUtil.fromJson(msg, t);
+                return ResponseDecoder.decode(httpResponse.body(), t);
             } catch (Exception e) {
                 log.info("failed to decode response: " + httpResponse, e);
                 throw new EnosException(CLIENT_ERROR);
@@ -554,7 +996,10 @@ public class HttpConnection {
             throw e;
         } catch (Exception e) {
             log.warn("failed to execute request", e);
-            throw new EnosException(CLIENT_ERROR);
+            // keep the transport failure, so that it can be told from an undecodable response
+            EnosException error = new EnosException(CLIENT_ERROR);
+            error.initCause(e);
+            throw error;
         }
     }
 
@@ -565,26 +1010,30 @@ public class HttpConnection {
         }
         List<UploadFileInfo> fileInfos = request.getFiles();
 
-        Map<String, File> featureIdAndFileMap = new HashMap<>();
+        Map<String, UploadFileInfo> featureIdAndFileMap = new HashMap<>();
         fileInfos.forEach(
-                fileInfo -> featureIdAndFileMap.put(fileInfo.getFilename(), fileInfo.getFile()));
+                fileInfo -> featureIdAndFileMap.put(fileInfo.getFilename(), fileInfo));
         uriInfos.forEach(
                 uriInfo -> {
                     try {
                         String filename = uriInfo.getFilename();
-                        uriInfo.setFilename(featureIdAndFileMap.get(filename).getName());
+                        UploadFileInfo fileInfo = featureIdAndFileMap.get(filename);
+                        uriInfo.setFilename(fileInfo.getOriginalFilename());
                         if (autoUpload) {
-                            Response uploadFileRsp =
+                            // upload through the same client to reuse its connections
+                            try (Response uploadFileRsp =
                                     FileUtil.uploadFile(
+                                            okHttpClient,
+                                            uriInfo.getUploadUrl(),
+                                            FilePayload.from(fileInfo, fileDigestCache),
+                                            uriInfo.getHeaders())) {
+                                if (!uploadFileRsp.isSuccessful()) {
+                                    log.error(
+                                            "Fail to upload file automatically, filename: {}, uploadUrl: {}, msg: {}",
+                                            fileInfo.getOriginalFilename(),
                                             uriInfo.getUploadUrl(),
-                                            featureIdAndFileMap.get(filename),
-                                            uriInfo.getHeaders());
-                            if (!uploadFileRsp.isSuccessful()) {
-                                log.error(
-                                        "Fail to upload file automatically, filename: {}, uploadUrl: {}, msg: {}",
-                                        featureIdAndFileMap.get(filename).getName(),
-                                        uriInfo.getUploadUrl(),
-                                        uploadFileRsp.message());
+                                            uploadFileRsp.message());
+                                }
                             }
                         }
                     } catch (Exception e) {
@@ -604,7 +1053,8 @@ public class HttpConnection {
      */
     private void publishCallAsync(Call call, IIntegrationCallback callback) {
 
-        call.enqueue(
+        callExecutor.enqueueBuffered(
+                call,
                 new Callback() {
                     @Override
                     public void onFailure(Call call, IOException e) {
@@ -614,15 +1064,16 @@ public class HttpConnection {
                     @Override
                     public void onResponse(Call call, Response response) {
                         if (!response.isSuccessful()) {
+                            response.close();
                             callback.onFailure(
                                     new EnosException(response.code(), response.message()));
+                            return;
                         }
-                        try {
-                            Preconditions.checkNotNull(response);
-                            Preconditions.checkNotNull(response.body());
-                            byte[] payload = response.body().bytes();
-                            String msg = new String(payload, UTF_8);
-                            callback.onResponse(GsonUtil.fromJson(msg, IntegrationResponse.class));
+                        try (Response closing = response) {
+                            Preconditions.checkNotNull(closing.body());
+                            callback.onResponse(
+                                    ResponseDecoder.decode(
+                                            closing.body(), IntegrationResponse.class));
                         } catch (Exception e) {
                             log.info("failed to decode response: " + response, e);
                             callback.onFailure(new EnosException(CLIENT_ERROR));
@@ -631,6 +1082,66 @@ public class HttpConnection {
                 });
     }
 
+    /** Handles the successful response of an asynchronous call, and closes it */
+    private interface ResponseHandler<T> {
+        T handle(Response httpResponse) throws Exception;
+    }
+
+    /**
+     * Enqueue a call whose future is completed by the handler of its successful response
+     *
+     * @param call
+     * @param buffered whether the response is small enough to be read before the handoff to the
+     *     callback executor
+     * @param handler
+     * @return future cancelling the call, and its retries, if it fails first
+     */
+    private <T> CallFuture<T> callAsync(Call call, boolean buffered, ResponseHandler<T> handler) {
+        CallFuture<T> future = new CallFuture<>();
+        callExecutor.enqueue(
+                call,
+                new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        future.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        if (!response.isSuccessful()) {
+                            response.close();
+                            future.completeExceptionally(
+                                    new EnosException(response.code(), response.message()));
+                            return;
+                        }
+                        try {
+                            future.complete(handler.handle(response));
+                        } catch (EnosException | IOException e) {
+                            response.close();
+                            future.completeExceptionally(e);
+                        } catch (Exception e) {
+                            log.info("failed to handle response: " + response, e);
+                            response.close();
+                            future.completeExceptionally(new EnosException(CLIENT_ERROR));
+                        }
+                    }
+                },
+                buffered,
+                future::setCall);
+        return future;
+    }
+
+    /** Decode a successful response, and close it */
+    private static <T> T decode(Response httpResponse, Class<T> t) throws EnosException {
+        try (Response closing = httpResponse) {
+            Preconditions.checkNotNull(closing.body());
+            return ResponseDecoder.decode(closing.body(), t);
+        } catch (Exception e) {
+            log.info("failed to decode response: " + httpResponse, e);
+            throw new EnosException(CLIENT_ERROR);
+        }
+    }
+
     // 异步方式没必要，先注释掉
     //
     //    private void publishCallAsync(Call call, IFileInfoCallBack callback) {
@@ -672,23 +1183,41 @@ public class HttpConnection {
         // 将请求消息设置完整
         fillRequest(request);
 
+        // hash every attached file at most once, shared by the message and the file parts
+        Map<UploadFileInfo, FileDigest> fileDigests = request.digestFiles(fileDigestCache);
+
         // 准备一个Multipart请求消息
-        MultipartBody.Builder builder =
-                new MultipartBody.Builder()
-                        .setType(MultipartBody.FORM)
-                        .addFormDataPart(ENOS_MESSAGE, new String(request.encode(), UTF_8));
+        MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        if (partCompressor == null) {
+            builder.addPart(IntegrationMessageBody.createFormData(request, fileDigests));
+        } else {
+            builder.addPart(
+                    partCompressor.messagePart(
+                            request.getRequestAction(),
+                            new IntegrationMessageBody(request, fileDigests)));
+        }
 
         if (files != null && !useLark) {
             for (UploadFileInfo uploadFile : files) {
-                builder.addPart(FileFormData.createFormData(uploadFile));
+                FileDigest digest = fileDigests.get(uploadFile);
+                builder.addPart(
+                        partCompressor == null
+                                ? FileFormData.createFormData(uploadFile, digest)
+                                : partCompressor.filePart(
+                                        request.getRequestAction(), uploadFile, digest));
             }
         }
 
+        return generatePublishCall(request.getRequestAction(), builder.build(), progressListener);
+    }
+
+    private Call generatePublishCall(
+            String requestAction, MultipartBody multipartBody, IProgressListener progressListener) {
         RequestBody body;
         if (progressListener == null) {
-            body = builder.build();
+            body = multipartBody;
         } else {
-            body = new ProgressRequestWrapper(builder.build(), progressListener);
+            body = new ProgressRequestWrapper(multipartBody, progressListener);
         }
 
         Request httpRequest =
@@ -697,7 +1226,7 @@ public class HttpConnection {
                                 integrationBrokerUrl
                                         + INTEGRATION_PATH
                                         + "?action="
-                                        + request.getRequestAction()
+                                        + requestAction
                                         + "&orgId="
                                         + orgId
                                         + useLarkPart())
@@ -821,7 +1350,7 @@ public class HttpConnection {
         return okHttpClient.newCall(httpRequest);
     }
 
-    private Call generateFirmwareFileDownloadCall(
+    Call generateFirmwareFileDownloadCall(
             String orgId, String firmwareId, Long startRange, Long endRange)
             throws EnosException {
         checkAuth();
@@ -840,7 +1369,7 @@ public class HttpConnection {
         return generateDownloadCall(uriBuilder, startRange, endRange);
     }
 
-    private Call generateFileDownloadCall(
+    Call generateFileDownloadCall(
             String orgId,
             DeviceInfo deviceInfo,
             String fileUri,
@@ -900,22 +1429,147 @@ public class HttpConnection {
         return okHttpClient.newCall(httpRequest);
     }
 
+    private long download(Call call, Path target, IProgressListener progressListener)
+            throws EnosException, IOException {
+        try (Response httpResponse = callExecutor.execute(call)) {
+            return save(httpResponse, target, progressListener);
+        } catch (SocketException e) {
+            log.info("failed to execute request due to socket error {}", e.getMessage());
+            throw new EnosException(SOCKET_ERROR, e.getMessage());
+        }
+    }
+
+    private long download(
+            Call call, WritableByteChannel target, long offset, IProgressListener progressListener)
+            throws EnosException, IOException {
+        try (Response httpResponse = callExecutor.execute(call)) {
+            return transfer(httpResponse, target, offset, progressListener);
+        } catch (SocketException e) {
+            log.info("failed to execute request due to socket error {}", e.getMessage());
+            throw new EnosException(SOCKET_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Save a response body into {@code target}, through {@code <target>.part} which is moved to
+     * the target once complete
+     *
+     * @return size of the file
+     */
+    private static long save(Response httpResponse, Path target, IProgressListener progressListener)
+            throws EnosException, IOException {
+        if (!httpResponse.isSuccessful()) {
+            throw new EnosException(httpResponse.code(), httpResponse.message());
+        }
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        long size;
+        boolean completed = false;
+        try (FileChannel channel =
+                FileChannel.open(
+                        part,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            size = transfer(httpResponse, channel, 0L, progressListener);
+            channel.force(false);
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(part);
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * Copy a response body from {@code offset} on into a channel
+     *
+     * @return bytes written
+     */
+    private static long transfer(
+            Response httpResponse,
+            WritableByteChannel target,
+            long offset,
+            IProgressListener progressListener)
+            throws EnosException, IOException {
+        if (!httpResponse.isSuccessful()) {
+            throw new EnosException(httpResponse.code(), httpResponse.message());
+        }
+        ResponseBody body = httpResponse.body();
+        Preconditions.checkNotNull(body);
+
+        BufferedSource source = body.source();
+        long contentLength = body.contentLength();
+        if (offset > 0 && httpResponse.code() != 206) {
+            // the range has been ignored, the whole file is coming
+            source.skip(offset);
+            contentLength = contentLength < 0 ? -1L : contentLength - offset;
+        }
+        return transfer(source, target, contentLength, progressListener);
+    }
+
+    /**
+     * Copy a response body into a channel through a direct buffer, which the channel writes
+     * without copying it again
+     *
+     * @return bytes written
+     */
+    private static long transfer(
+            BufferedSource source,
+            WritableByteChannel target,
+            long contentLength,
+            IProgressListener progressListener)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+        long written = 0L;
+        boolean exhausted = false;
+        while (!exhausted) {
+            // fill the buffer, so that the channel is written in large blocks
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) == -1) {
+                    exhausted = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                written += target.write(buffer);
+            }
+            buffer.clear();
+            if (progressListener != null) {
+                progressListener.onRequestProgress(written, contentLength);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return length of a range body, {@code -1} if unknown or above {@link Integer#MAX_VALUE},
+     *     which the {@code Path} and channel downloads support
+     */
+    private static int rangeContentLength(ResponseBody body) {
+        long contentLength = body.contentLength();
+        return contentLength > Integer.MAX_VALUE ? -1 : (int) contentLength;
+    }
+
     private InputStream handleCall(@NonNull Call call) throws EnosException, IOException {
         Response httpResponse;
         try {
-            httpResponse = call.execute();
+            httpResponse = callExecutor.execute(call);
 
             if (!httpResponse.isSuccessful()) {
+                httpResponse.close();
                 throw new EnosException(httpResponse.code(), httpResponse.message());
             }
 
             try {
-                Preconditions.checkNotNull(httpResponse);
                 Preconditions.checkNotNull(httpResponse.body());
 
                 return httpResponse.body().byteStream();
             } catch (Exception e) {
                 log.info("failed to get response: " + httpResponse, e);
+                httpResponse.close();
                 throw new EnosException(CLIENT_ERROR);
             }
         } catch (SocketException e) {
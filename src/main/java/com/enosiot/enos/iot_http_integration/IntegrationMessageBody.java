@@ -0,0 +1,65 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.FileDigest;
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import lombok.NonNull;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody.Part;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static com.enosiot.enos.iot_mqtt_sdk.core.internals.constants.FormDataConstants.ENOS_MESSAGE;
+
+/**
+ * Request body of the {@code ENOS_MESSAGE} form-data part. The JSON message is encoded straight
+ * into the sink of the HTTP request, so no intermediate payload map, string or byte array is
+ * built for it.
+ *
+ * <p>The content length is measured by encoding the message once into a counting sink that
+ * discards the bytes, which keeps the part (and the multipart body) at a fixed length.
+ */
+public class IntegrationMessageBody extends RequestBody {
+    private final BaseIntegrationRequest request;
+    private final Map<UploadFileInfo, FileDigest> fileDigests;
+
+    private long contentLength = -1L;
+
+    public IntegrationMessageBody(
+            @NonNull BaseIntegrationRequest request, @NonNull Map<UploadFileInfo, FileDigest> fileDigests) {
+        this.request = request;
+        this.fileDigests = fileDigests;
+    }
+
+    public static Part createFormData(
+            BaseIntegrationRequest request, Map<UploadFileInfo, FileDigest> fileDigests) {
+        return Part.createFormData(ENOS_MESSAGE, null, new IntegrationMessageBody(request, fileDigests));
+    }
+
+    @Override
+    public MediaType contentType() {
+        return null;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        if (contentLength < 0) {
+            CountingSink countingSink = new CountingSink(Okio.blackhole());
+            BufferedSink sink = Okio.buffer(countingSink);
+            request.encode(sink, fileDigests);
+            sink.flush();
+            contentLength = countingSink.getBytesWritten();
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        request.encode(sink, fileDigests);
+    }
+}
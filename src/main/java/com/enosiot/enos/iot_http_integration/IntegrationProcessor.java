@@ -0,0 +1,508 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationAttributePostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationEventPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reactive-streams processor publishing a stream of {@link IntegrationRecord}s through a
+ * connection, and emitting the {@link IntegrationResult} of every request downstream.
+ *
+ * <p>Records of the same kind are batched into one request of up to {@code maxRecordsPerRequest}
+ * records, published once full, or when its first record has waited for {@code maxLinger}. At
+ * most {@code maxInFlight} requests are published at a time, and a request keeps its slot until
+ * its result has been taken downstream. Records are requested upstream only for the free slots,
+ * plus one batch being filled, so the records held stay bounded however fast the producers are.
+ *
+ * <p>The processor supports a single downstream subscriber, and publishes nothing until it has
+ * subscribed and requested results. An upstream error is emitted downstream once the pending
+ * records have been published and their results emitted.
+ */
+@Slf4j
+public class IntegrationProcessor implements Processor<IntegrationRecord, IntegrationResult> {
+    public static Builder builder(@NonNull HttpConnection connection) {
+        return new Builder(connection);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private int maxRecordsPerRequest = 500;
+
+        private int maxInFlight = 4;
+
+        private long maxLingerMillis = 200L;
+
+        private boolean isRealtimeIntegration = true;
+
+        private ScheduledExecutorService scheduler;
+
+        Builder(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        /** Publish a request once it holds this many records */
+        public Builder maxRecordsPerRequest(int maxRecordsPerRequest) {
+            Preconditions.checkArgument(maxRecordsPerRequest > 0, "maxRecordsPerRequest must be positive");
+            this.maxRecordsPerRequest = maxRecordsPerRequest;
+            return this;
+        }
+
+        /** Requests published, or whose result waits for downstream demand, at a time */
+        public Builder maxInFlight(int maxInFlight) {
+            Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /** Publish a request at the latest this long after its first record arrived */
+        public Builder maxLinger(long maxLinger, TimeUnit unit) {
+            Preconditions.checkArgument(maxLinger >= 0, "maxLinger must not be negative");
+            this.maxLingerMillis = unit.toMillis(maxLinger);
+            return this;
+        }
+
+        public Builder realTimeIntegration(boolean isRealtimeIntegration) {
+            this.isRealtimeIntegration = isRealtimeIntegration;
+            return this;
+        }
+
+        /**
+         * Scheduler used for the linger timeout. If not set, a daemon thread is allocated and
+         * stopped when the processor terminates.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public IntegrationProcessor build() {
+            return new IntegrationProcessor(this);
+        }
+    }
+
+    /** Records of one kind, published in one request */
+    private static class Batch {
+        final IntegrationRecord.Kind kind;
+        final List<IntegrationRecord> records = new ArrayList<>();
+        ScheduledFuture<?> lingerTask;
+
+        Batch(IntegrationRecord.Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final HttpConnection connection;
+    private final int maxRecordsPerRequest;
+    private final int maxInFlight;
+    private final long maxLingerMillis;
+    private final boolean isRealtimeIntegration;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+
+    private final Object lock = new Object();
+
+    /** serializes the signals, see {@link #drain()} */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // ======== guarded by the lock =========
+
+    private Subscription upstream;
+
+    /** records requested upstream and not received yet */
+    private long outstanding;
+
+    private boolean upstreamDone;
+
+    private Throwable upstreamError;
+
+    /** batches being filled, one per kind */
+    private final Map<IntegrationRecord.Kind, Batch> open = new EnumMap<>(IntegrationRecord.Kind.class);
+
+    /** batches full or expired, in the order they are published */
+    private final ArrayDeque<Batch> sealed = new ArrayDeque<>();
+
+    /** records in open and sealed batches */
+    private long pendingRecords;
+
+    /** requests published, or whose result waits for downstream demand */
+    private int inFlight;
+
+    private final Set<CompletableFuture<?>> calls = new HashSet<>();
+
+    private final ArrayDeque<IntegrationResult> results = new ArrayDeque<>();
+
+    private Subscriber<? super IntegrationResult> downstream;
+
+    /** whether {@code onSubscribe} has returned, so that other signals may follow */
+    private boolean downstreamReady;
+
+    private long requested;
+
+    private boolean cancelled;
+
+    private Throwable downstreamError;
+
+    private boolean terminated;
+
+    private IntegrationProcessor(Builder builder) {
+        this.connection = builder.connection;
+        this.maxRecordsPerRequest = builder.maxRecordsPerRequest;
+        this.maxInFlight = builder.maxInFlight;
+        this.maxLingerMillis = builder.maxLingerMillis;
+        this.isRealtimeIntegration = builder.isRealtimeIntegration;
+        if (builder.scheduler != null) {
+            this.scheduler = builder.scheduler;
+            this.ownScheduler = false;
+        } else {
+            this.scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("enos-integration-processor-%d")
+                                    .build());
+            this.ownScheduler = true;
+        }
+    }
+
+    // ======== upstream =========
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+        synchronized (lock) {
+            if (upstream != null || cancelled || terminated) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(IntegrationRecord record) {
+        Objects.requireNonNull(record, "record");
+        synchronized (lock) {
+            if (upstreamDone || cancelled) {
+                return;
+            }
+            outstanding--;
+            Batch batch = open.get(record.getKind());
+            if (batch == null) {
+                batch = new Batch(record.getKind());
+                open.put(record.getKind(), batch);
+                scheduleLinger(batch);
+            }
+            batch.records.add(record);
+            pendingRecords++;
+            if (batch.records.size() >= maxRecordsPerRequest) {
+                seal(batch);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable failure) {
+        Objects.requireNonNull(failure, "failure");
+        synchronized (lock) {
+            if (upstreamDone) {
+                return;
+            }
+            upstreamDone = true;
+            upstreamError = failure;
+            sealAll();
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            if (upstreamDone) {
+                return;
+            }
+            upstreamDone = true;
+            sealAll();
+        }
+        drain();
+    }
+
+    // ======== downstream =========
+
+    @Override
+    public void subscribe(Subscriber<? super IntegrationResult> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        synchronized (lock) {
+            if (downstream == null) {
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+            subscriber.onError(new IllegalStateException("IntegrationProcessor allows only one subscriber"));
+            return;
+        }
+        downstream.onSubscribe(new DownstreamSubscription());
+        synchronized (lock) {
+            downstreamReady = true;
+        }
+        drain();
+    }
+
+    private class DownstreamSubscription implements Subscription {
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    downstreamError = new IllegalArgumentException("request must be positive, was " + n);
+                } else {
+                    requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+            }
+            drain();
+        }
+    }
+
+    private static final Subscription EMPTY_SUBSCRIPTION =
+            new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            };
+
+    // ======== batching =========
+
+    private void scheduleLinger(Batch batch) {
+        batch.lingerTask =
+                scheduler.schedule(
+                        () -> {
+                            synchronized (lock) {
+                                if (open.get(batch.kind) != batch) {
+                                    return;
+                                }
+                                seal(batch);
+                            }
+                            drain();
+                        },
+                        maxLingerMillis,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    /** Move an open batch to the sealed ones, must be called while holding the lock */
+    private void seal(Batch batch) {
+        open.remove(batch.kind);
+        batch.lingerTask.cancel(false);
+        sealed.add(batch);
+    }
+
+    private void sealAll() {
+        for (Batch batch : new ArrayList<>(open.values())) {
+            seal(batch);
+        }
+    }
+
+    private BaseIntegrationRequest buildRequest(Batch batch) {
+        switch (batch.kind) {
+            case MEASUREPOINT:
+                IntegrationMeasurepointPostRequest.Builder measurepoints =
+                        IntegrationMeasurepointPostRequest.builder()
+                                .realTimeIntegration(isRealtimeIntegration);
+                batch.records.forEach(
+                        record ->
+                                measurepoints.addMeasurepoint(
+                                        record.getDeviceInfo(), record.getTime(), record.getValues()));
+                return measurepoints.build();
+            case ATTRIBUTE:
+                IntegrationAttributePostRequest.Builder attributes =
+                        IntegrationAttributePostRequest.builder()
+                                .realTimeIntegration(isRealtimeIntegration);
+                batch.records.forEach(
+                        record -> attributes.addAttribute(record.getDeviceInfo(), record.getValues()));
+                return attributes.build();
+            case EVENT:
+                IntegrationEventPostRequest.Builder events =
+                        IntegrationEventPostRequest.builder()
+                                .realTimeIntegration(isRealtimeIntegration);
+                batch.records.forEach(
+                        record ->
+                                events.addEvent(
+                                        record.getDeviceInfo(),
+                                        record.getTime(),
+                                        Collections.singletonMap(record.getEventId(), record.getValues())));
+                return events.build();
+            default:
+                throw new IllegalArgumentException("unknown record kind " + batch.kind);
+        }
+    }
+
+    private void publish(Batch batch) {
+        BaseIntegrationRequest request;
+        try {
+            request = buildRequest(batch);
+        } catch (Exception e) {
+            log.warn("failed to build a request of {} {} records", batch.records.size(), batch.kind, e);
+            onResult(null, new IntegrationResult(batch.kind, null, batch.records.size(), null, e));
+            return;
+        }
+
+        CallFuture<IntegrationResponse> call = connection.publishAsync(request, null);
+        synchronized (lock) {
+            if (terminated) {
+                call.cancel(true);
+                return;
+            }
+            calls.add(call);
+        }
+        call.whenComplete(
+                (response, failure) ->
+                        onResult(
+                                call,
+                                new IntegrationResult(
+                                        batch.kind, request, batch.records.size(), response, failure)));
+    }
+
+    private void onResult(CompletableFuture<?> call, IntegrationResult result) {
+        synchronized (lock) {
+            calls.remove(call);
+            if (cancelled || terminated) {
+                return;
+            }
+            results.add(result);
+        }
+        drain();
+    }
+
+    // ======== signals =========
+
+    /**
+     * Emit the results, publish the sealed batches and request records upstream as the state
+     * allows. Only one thread drains at a time, so the signals to the subscribers are serial,
+     * and they are sent without holding the lock.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            List<IntegrationResult> emit = new ArrayList<>();
+            List<Batch> send = new ArrayList<>();
+            List<CompletableFuture<?>> cancel = new ArrayList<>();
+            Subscription cancelUpstream = null;
+            long request = 0L;
+            Throwable error = null;
+            boolean complete = false;
+            boolean stop = false;
+
+            synchronized (lock) {
+                if (!terminated && (cancelled || downstreamError != null)) {
+                    // the results are not wanted anymore
+                    terminated = true;
+                    stop = true;
+                    error = downstreamError;
+                    cancelUpstream = upstream;
+                    cancel.addAll(calls);
+                    calls.clear();
+                    open.values().forEach(batch -> batch.lingerTask.cancel(false));
+                    open.clear();
+                    sealed.clear();
+                    results.clear();
+                } else if (!terminated) {
+                    while (downstreamReady && requested > 0 && !results.isEmpty()) {
+                        emit.add(results.poll());
+                        requested--;
+                        inFlight--;
+                    }
+                    while (inFlight < maxInFlight && !sealed.isEmpty()) {
+                        Batch batch = sealed.poll();
+                        pendingRecords -= batch.records.size();
+                        inFlight++;
+                        send.add(batch);
+                    }
+                    if (upstream != null && !upstreamDone) {
+                        long capacity =
+                                (long) (maxInFlight - inFlight + 1) * maxRecordsPerRequest
+                                        - pendingRecords
+                                        - outstanding;
+                        if (capacity > 0) {
+                            outstanding += capacity;
+                            request = capacity;
+                        }
+                    }
+                    if (upstreamDone
+                            && downstreamReady
+                            && pendingRecords == 0
+                            && inFlight == 0
+                            && results.isEmpty()) {
+                        terminated = true;
+                        stop = true;
+                        error = upstreamError;
+                        complete = error == null;
+                    }
+                }
+            }
+
+            for (IntegrationResult result : emit) {
+                downstream.onNext(result);
+            }
+            send.forEach(this::publish);
+            if (request > 0) {
+                upstream.request(request);
+            }
+            if (cancelUpstream != null) {
+                cancelUpstream.cancel();
+            }
+            cancel.forEach(call -> call.cancel(true));
+            if (error != null) {
+                downstream.onError(error);
+            } else if (complete) {
+                downstream.onComplete();
+            }
+            if (stop && ownScheduler) {
+                scheduler.shutdown();
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,53 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * A measurepoint, attribute or event record of a device, as consumed by an {@link
+ * IntegrationProcessor}
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class IntegrationRecord {
+    public enum Kind {
+        MEASUREPOINT,
+        ATTRIBUTE,
+        EVENT
+    }
+
+    Kind kind;
+
+    DeviceInfo deviceInfo;
+
+    /** time of the values, {@code 0} for attributes */
+    long time;
+
+    /** identifier of the event, {@code null} for measurepoints and attributes */
+    String eventId;
+
+    Map<String, Object> values;
+
+    public static IntegrationRecord measurepoint(
+            @NonNull DeviceInfo deviceInfo, long time, @NonNull Map<String, Object> values) {
+        return new IntegrationRecord(Kind.MEASUREPOINT, deviceInfo, time, null, values);
+    }
+
+    public static IntegrationRecord attribute(
+            @NonNull DeviceInfo deviceInfo, @NonNull Map<String, Object> values) {
+        return new IntegrationRecord(Kind.ATTRIBUTE, deviceInfo, 0L, null, values);
+    }
+
+    public static IntegrationRecord event(
+            @NonNull DeviceInfo deviceInfo,
+            long time,
+            @NonNull String eventId,
+            @NonNull Map<String, Object> values) {
+        return new IntegrationRecord(Kind.EVENT, deviceInfo, time, eventId, values);
+    }
+}
@@ -0,0 +1,32 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import lombok.Value;
+
+/**
+ * Outcome of a request published by an {@link IntegrationProcessor}: either a response, which
+ * may still report an error code, or the failure of the request
+ */
+@Value
+public class IntegrationResult {
+    /** kind of the records of the request */
+    IntegrationRecord.Kind kind;
+
+    /** the published request, {@code null} if it could not be built */
+    BaseIntegrationRequest request;
+
+    /** number of records in the request */
+    int records;
+
+    /** response of the broker, {@code null} if the request failed */
+    IntegrationResponse response;
+
+    /** why the request failed, {@code null} if a response has been received */
+    Throwable failure;
+
+    /** @return whether the broker has accepted the request */
+    public boolean isSuccess() {
+        return response != null && response.isSuccess();
+    }
+}
@@ -0,0 +1,288 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IIntegrationCallback;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.message.JsonValueWriter;
+import com.enosiot.enos.iot_mqtt_sdk.util.Pair;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe publisher that merges measurepoints handed over by many producers into one
+ * {@link IntegrationMeasurepointPostRequest} per flush.
+ *
+ * <p>Values of the same device and time are merged the same way as {@link
+ * IntegrationMeasurepointPostRequest.Builder#addMeasurepoint} does. The pending batch is
+ * published as soon as it holds {@code maxPoints} values or {@code maxBytes} of encoded values,
+ * or when the first value in it has waited for {@code maxLinger}. Every submitted item gets a
+ * future that completes with the response of the request it was published in.
+ *
+ * <p>Batches are meant for plain values, the encoded size of attached files is not accounted
+ * for.
+ */
+@Slf4j
+public class MeasurepointBatchPublisher implements Closeable {
+    /** Estimated encoded size of the device identity and time of a measurepoint entry */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    public static Builder builder(@NonNull HttpConnection connection) {
+        return new Builder(connection);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private int maxPoints = 1000;
+
+        private long maxBytes = 512 * 1024L;
+
+        private long maxLingerMillis = 200L;
+
+        private boolean isRealtimeIntegration = true;
+
+        private ScheduledExecutorService scheduler;
+
+        Builder(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        /** Publish once the batch holds this many measurepoint values */
+        public Builder maxPoints(int maxPoints) {
+            Preconditions.checkArgument(maxPoints > 0, "maxPoints must be positive");
+            this.maxPoints = maxPoints;
+            return this;
+        }
+
+        /** Publish once the encoded values in the batch reach this many bytes */
+        public Builder maxBytes(long maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /** Publish at the latest this long after the first value entered the batch */
+        public Builder maxLinger(long maxLinger, TimeUnit unit) {
+            Preconditions.checkArgument(maxLinger >= 0, "maxLinger must not be negative");
+            this.maxLingerMillis = unit.toMillis(maxLinger);
+            return this;
+        }
+
+        public Builder realTimeIntegration(boolean isRealtimeIntegration) {
+            this.isRealtimeIntegration = isRealtimeIntegration;
+            return this;
+        }
+
+        /**
+         * Scheduler used for the linger timeout. If not set, a daemon thread is allocated and
+         * stopped when the publisher is closed.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public MeasurepointBatchPublisher build() {
+            return new MeasurepointBatchPublisher(this);
+        }
+    }
+
+    private final HttpConnection connection;
+    private final int maxPoints;
+    private final long maxBytes;
+    private final long maxLingerMillis;
+    private final boolean isRealtimeIntegration;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+
+    private final Object lock = new Object();
+
+    private Batch current;
+
+    private boolean closed = false;
+
+    private MeasurepointBatchPublisher(Builder builder) {
+        this.connection = builder.connection;
+        this.maxPoints = builder.maxPoints;
+        this.maxBytes = builder.maxBytes;
+        this.maxLingerMillis = builder.maxLingerMillis;
+        this.isRealtimeIntegration = builder.isRealtimeIntegration;
+        if (builder.scheduler != null) {
+            this.scheduler = builder.scheduler;
+            this.ownScheduler = false;
+        } else {
+            this.scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("enos-measurepoint-batch-%d")
+                                    .build());
+            this.ownScheduler = true;
+        }
+    }
+
+    /**
+     * Add measurepoint values of a device to the pending batch
+     *
+     * @param deviceInfo
+     * @param time
+     * @param measurepointValues
+     * @return future completed with the response of the request the values are published in,
+     *     failed with an {@link IllegalStateException} if the publisher is closed
+     */
+    public CompletableFuture<IntegrationResponse> submit(
+            @NonNull DeviceInfo deviceInfo,
+            long time,
+            @NonNull Map<String, Object> measurepointValues) {
+        long bytes;
+        try {
+            bytes = JsonValueWriter.encodedLength(measurepointValues);
+        } catch (Exception e) {
+            CompletableFuture<IntegrationResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<IntegrationResponse> future = new CompletableFuture<>();
+        List<Batch> sealed = new ArrayList<>(2);
+        synchronized (lock) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("publisher is closed"));
+                return future;
+            }
+
+            Pair<DeviceInfo, Long> key = Pair.makePair(deviceInfo, time);
+            long entryBytes = current != null && current.keys.contains(key)
+                    ? bytes : bytes + ENTRY_OVERHEAD;
+            if (current != null
+                    && (current.points + measurepointValues.size() > maxPoints
+                            || current.bytes + entryBytes > maxBytes)) {
+                sealed.add(seal());
+            }
+            if (current == null) {
+                current = new Batch();
+                scheduleLinger(current);
+            }
+
+            current.add(key, measurepointValues, entryBytes, future);
+            if (current.points >= maxPoints || current.bytes >= maxBytes) {
+                sealed.add(seal());
+            }
+        }
+
+        sealed.forEach(this::publish);
+        return future;
+    }
+
+    /** Publish the pending batch right away */
+    public void flush() {
+        Batch batch;
+        synchronized (lock) {
+            batch = current != null ? seal() : null;
+        }
+        if (batch != null) {
+            publish(batch);
+        }
+    }
+
+    /** Publish the pending batch and stop accepting new values */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        flush();
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void scheduleLinger(Batch batch) {
+        batch.lingerTask =
+                scheduler.schedule(
+                        () -> {
+                            Batch expired = null;
+                            synchronized (lock) {
+                                if (current == batch) {
+                                    expired = seal();
+                                }
+                            }
+                            if (expired != null) {
+                                publish(expired);
+                            }
+                        },
+                        maxLingerMillis,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    /** Detach the pending batch, must be called while holding the lock */
+    private Batch seal() {
+        Batch batch = current;
+        current = null;
+        if (batch.lingerTask != null) {
+            batch.lingerTask.cancel(false);
+        }
+        return batch;
+    }
+
+    private void publish(Batch batch) {
+        try {
+            connection.publish(
+                    batch.builder.build(),
+                    new IIntegrationCallback() {
+                        @Override
+                        public void onResponse(IntegrationResponse response) {
+                            batch.futures.forEach(future -> future.complete(response));
+                        }
+
+                        @Override
+                        public void onFailure(Exception failure) {
+                            batch.futures.forEach(
+                                    future -> future.completeExceptionally(failure));
+                        }
+                    },
+                    null);
+        } catch (Exception e) {
+            log.warn("failed to publish a batch of {} measurepoints", batch.points, e);
+            batch.futures.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    private class Batch {
+        final IntegrationMeasurepointPostRequest.Builder builder =
+                IntegrationMeasurepointPostRequest.builder()
+                        .realTimeIntegration(isRealtimeIntegration);
+        final Set<Pair<DeviceInfo, Long>> keys = new HashSet<>();
+        final List<CompletableFuture<IntegrationResponse>> futures = new ArrayList<>();
+        int points;
+        long bytes;
+        ScheduledFuture<?> lingerTask;
+
+        void add(
+                Pair<DeviceInfo, Long> key,
+                Map<String, Object> measurepointValues,
+                long entryBytes,
+                CompletableFuture<IntegrationResponse> future) {
+            builder.addMeasurepoint(key.first, key.second, measurepointValues);
+            keys.add(key);
+            futures.add(future);
+            points += measurepointValues.size();
+            bytes += entryBytes;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.outbox.Outbox;
+import com.enosiot.enos.iot_http_integration.outbox.OutboxRecord;
+import com.enosiot.enos.iot_http_integration.retry.FailureType;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.enosiot.enos.iot_http_integration.HttpConnectionError.*;
+
+/**
+ * Store-and-forward publisher. Requests that can't reach the broker are appended to an {@link
+ * Outbox} instead of being lost, and a background drainer replays them as offline integration
+ * ({@code realTimeIntegration(false)}) once the broker is reachable again.
+ *
+ * <p>The drainer sends at most {@code drainRate} requests per second. After a failure it backs
+ * off exponentially with full jitter, and its first attempt is delayed randomly as well, so a
+ * fleet of gateways coming back online does not hit the broker all at once.
+ *
+ * <p>Failures are classified the same way when publishing and when replaying. While the broker
+ * can't be reached, a request is stored, or kept at the head of the outbox, for as long as it
+ * takes. A request the broker answered with an error it may recover from, such as a {@code 5xx}
+ * or an undecodable response, is stored as well, but is replayed at most {@code
+ * maxReplayAttempts} times. A request that keeps failing this way, or that the broker refused, is
+ * moved aside to the {@code deadLetter} outbox if any, or dropped, so that it doesn't block the
+ * requests behind it.
+ *
+ * <p>A request without an id is given a random {@link UUID} before it is first sent, rather than
+ * the next id of the connection, which starts over when the process restarts. The broker drops
+ * requests of an id it has already seen, so a replayed request must not share an id with a
+ * request sent after a restart, while the id it was first sent with lets the broker drop it if
+ * that attempt did get through.
+ *
+ * <p>Requests attaching files can't be stored.
+ */
+@Slf4j
+public class OutboxPublisher implements Closeable {
+    public static Builder builder(@NonNull HttpConnection connection, @NonNull Outbox outbox) {
+        return new Builder(connection, outbox);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private final Outbox outbox;
+
+        private double drainRate = 10.0;
+
+        private long initialBackoffMillis = 1000L;
+
+        private long maxBackoffMillis = 5 * 60 * 1000L;
+
+        private long idleIntervalMillis = 5000L;
+
+        private int maxReplayAttempts = 10;
+
+        private Outbox deadLetter;
+
+        Builder(HttpConnection connection, Outbox outbox) {
+            this.connection = connection;
+            this.outbox = outbox;
+        }
+
+        /** Maximum number of stored requests replayed per second */
+        public Builder drainRate(double requestsPerSecond) {
+            Preconditions.checkArgument(requestsPerSecond > 0, "drainRate must be positive");
+            this.drainRate = requestsPerSecond;
+            return this;
+        }
+
+        /** Backoff after the first failed replay, doubled on each consecutive failure */
+        public Builder initialBackoff(long backoff, TimeUnit unit) {
+            this.initialBackoffMillis = Math.max(1L, unit.toMillis(backoff));
+            return this;
+        }
+
+        public Builder maxBackoff(long backoff, TimeUnit unit) {
+            this.maxBackoffMillis = Math.max(1L, unit.toMillis(backoff));
+            return this;
+        }
+
+        /** How often the outbox is checked while it is empty */
+        public Builder idleInterval(long interval, TimeUnit unit) {
+            this.idleIntervalMillis = Math.max(1L, unit.toMillis(interval));
+            return this;
+        }
+
+        /**
+         * Replays of a request answered with an error before it is moved aside, {@code 10} by
+         * default. Replays that could not reach the broker are not counted.
+         */
+        public Builder maxReplayAttempts(int maxReplayAttempts) {
+            Preconditions.checkArgument(maxReplayAttempts > 0, "maxReplayAttempts must be positive");
+            this.maxReplayAttempts = maxReplayAttempts;
+            return this;
+        }
+
+        /**
+         * Outbox receiving the requests moved aside, which are only logged and dropped by default.
+         * It is not drained.
+         */
+        public Builder deadLetter(Outbox deadLetter) {
+            this.deadLetter = deadLetter;
+            return this;
+        }
+
+        /** Create the publisher and start draining */
+        public OutboxPublisher build() {
+            return new OutboxPublisher(this);
+        }
+    }
+
+    private final HttpConnection connection;
+    private final Outbox outbox;
+    private final RateLimiter rateLimiter;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long idleIntervalMillis;
+    private final int maxReplayAttempts;
+    private final Outbox deadLetter;
+    private final ScheduledExecutorService drainer;
+
+    /** current backoff, {@code 0} while replays succeed */
+    private long backoffMillis = 0L;
+
+    /** the record at the head of the outbox and its failed replays, only used by the drainer */
+    private OutboxRecord replaying;
+    private int replayFailures;
+
+    private final AtomicLong movedAsideCount = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    private OutboxPublisher(Builder builder) {
+        this.connection = builder.connection;
+        this.outbox = builder.outbox;
+        this.rateLimiter = RateLimiter.create(builder.drainRate);
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(builder.maxBackoffMillis, initialBackoffMillis);
+        this.idleIntervalMillis = builder.idleIntervalMillis;
+        this.maxReplayAttempts = builder.maxReplayAttempts;
+        this.deadLetter = builder.deadLetter;
+        this.drainer =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("enos-outbox-drainer-%d")
+                                .build());
+
+        drainer.schedule(
+                this::drain,
+                ThreadLocalRandom.current().nextLong(initialBackoffMillis + 1),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publish a request, or store it in the outbox if it failed for a reason that may go away,
+     * such as an unreachable broker. While stored requests are waiting, new requests are stored
+     * behind them to keep their order.
+     *
+     * @param request
+     * @return response, {@code null} if the request has been stored
+     * @throws EnosException if the broker refused the request
+     * @throws IOException if the request could not be stored
+     */
+    public IntegrationResponse publish(BaseIntegrationRequest request)
+            throws EnosException, IOException {
+        checkStorable(request);
+        assignId(request);
+        if (outbox.isEmpty()) {
+            try {
+                return connection.publish(request, null);
+            } catch (EnosException e) {
+                if (classify(e) == Failure.REFUSED) {
+                    throw e;
+                }
+                log.info("failed to publish request {}, store it in outbox: {}", request.getId(), e.getMessage());
+            }
+        }
+        store(request);
+        return null;
+    }
+
+    /**
+     * Store a request in the outbox, to be replayed as offline integration
+     *
+     * @param request
+     * @throws IOException if the request could not be stored
+     */
+    public void store(BaseIntegrationRequest request) throws IOException {
+        checkStorable(request);
+        // the id is kept across replays so that the broker can recognize duplicates
+        assignId(request);
+        connection.fillRequest(request);
+        request.setRealtimeIntegration(false);
+        outbox.append(request.getRequestAction(), request.encode());
+    }
+
+    /** @return requests moved aside by the drainer, to the dead letter outbox or dropped */
+    public long getMovedAsideCount() {
+        return movedAsideCount.get();
+    }
+
+    /** Stop draining, the outbox itself is left open */
+    @Override
+    public void close() {
+        closed = true;
+        drainer.shutdownNow();
+    }
+
+    private static void checkStorable(BaseIntegrationRequest request) {
+        Preconditions.checkArgument(
+                request.getFiles() == null || request.getFiles().isEmpty(),
+                "requests with files can't be stored in the outbox");
+    }
+
+    private static void assignId(BaseIntegrationRequest request) {
+        if (Strings.isNullOrEmpty(request.getId())) {
+            request.setId(UUID.randomUUID().toString());
+        }
+    }
+
+    private void drain() {
+        long delayMillis;
+        try {
+            delayMillis = drainOnce();
+        } catch (Exception e) {
+            log.warn("failed to drain outbox", e);
+            delayMillis = nextBackoff();
+        }
+        if (!closed) {
+            drainer.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** @return delay before the next attempt */
+    private long drainOnce() throws IOException {
+        OutboxRecord record = outbox.peek();
+        if (record == null) {
+            backoffMillis = 0L;
+            return idleIntervalMillis / 2
+                    + ThreadLocalRandom.current().nextLong(idleIntervalMillis / 2 + 1);
+        }
+
+        if (!record.equals(replaying)) {
+            replaying = record;
+            replayFailures = 0;
+        }
+
+        rateLimiter.acquire();
+        try {
+            IntegrationResponse response =
+                    connection.publishEncoded(record.getRequestAction(), record.getMessage());
+            if (!response.isSuccess()) {
+                moveAside(record, "broker rejected it, code: " + response.getCode() + ", msg: " + response.getMsg());
+            }
+        } catch (EnosException e) {
+            Failure failure = classify(e);
+            if (failure == Failure.REFUSED) {
+                moveAside(record, "broker refused it: " + e.getMessage());
+            } else if (failure == Failure.FAILED && ++replayFailures >= maxReplayAttempts) {
+                moveAside(record, "failed " + replayFailures + " times, last: " + e.getMessage());
+            } else {
+                log.info("failed to replay request, retry later: {}", e.getMessage());
+                return nextBackoff();
+            }
+        }
+
+        outbox.commit(record);
+        replaying = null;
+        backoffMillis = 0L;
+        return 0L;
+    }
+
+    private void moveAside(OutboxRecord record, String reason) throws IOException {
+        movedAsideCount.incrementAndGet();
+        if (deadLetter == null) {
+            log.warn("drop replayed request from outbox, {}", reason);
+            return;
+        }
+        log.warn("move replayed request to dead letter outbox, {}", reason);
+        deadLetter.append(record.getRequestAction(), record.getMessage());
+    }
+
+    /** How a publish or a replay failed */
+    private enum Failure {
+        /** the broker could not be reached, which says nothing about the request */
+        UNREACHABLE,
+
+        /** the broker answered with an error it may recover from */
+        FAILED,
+
+        /** the broker refused the request */
+        REFUSED
+    }
+
+    private static Failure classify(EnosException e) {
+        if (e.getCause() instanceof IOException) {
+            return Failure.UNREACHABLE;
+        }
+        int code = e.getErrorCode();
+        if (code == SOCKET_ERROR.getErrorCode() || code == UNSUCCESSFUL_AUTH.getErrorCode()) {
+            return Failure.UNREACHABLE;
+        }
+        FailureType type = FailureType.of(code);
+        if (type == FailureType.AUTH) {
+            return Failure.UNREACHABLE;
+        }
+        if (type != null || code == CLIENT_ERROR.getErrorCode()) {
+            // an undecodable response is reported as CLIENT_ERROR without a transport failure
+            return Failure.FAILED;
+        }
+        return Failure.REFUSED;
+    }
+
+    /** exponential backoff with full jitter */
+    private long nextBackoff() {
+        backoffMillis =
+                backoffMillis == 0L
+                        ? initialBackoffMillis
+                        : Math.min(maxBackoffMillis, backoffMillis * 2);
+        return ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+    }
+}
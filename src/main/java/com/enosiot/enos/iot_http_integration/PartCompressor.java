@@ -0,0 +1,115 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FileDigest;
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
+import com.enosiot.enos.iot_http_integration.metrics.IHttpMetrics;
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody.Part;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static com.enosiot.enos.iot_mqtt_sdk.core.internals.constants.FormDataConstants.ENOS_MESSAGE;
+
+/**
+ * Compresses the form-data parts of a publish that are larger than a threshold, marking them with
+ * a {@code Content-Encoding} part header.
+ *
+ * <p>The message is compressed into memory up front, so its part keeps a fixed length. Files are
+ * compressed while they are written, which leaves their part, and the multipart body, of unknown
+ * length. Compression ratio and CPU time are reported to the metrics of the connection.
+ */
+final class PartCompressor {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final CompressionCodec codec;
+    private final long threshold;
+    private final boolean compressFiles;
+    private final IHttpMetrics metrics;
+
+    PartCompressor(CompressionCodec codec, long threshold, boolean compressFiles, IHttpMetrics metrics) {
+        this.codec = codec;
+        this.threshold = threshold;
+        this.compressFiles = compressFiles;
+        this.metrics = metrics;
+    }
+
+    Part messagePart(String action, IntegrationMessageBody body) throws IOException {
+        long length = body.contentLength();
+        if (length < threshold) {
+            return Part.createFormData(ENOS_MESSAGE, null, body);
+        }
+
+        long cpuStart = cpuTime();
+        Buffer compressed = new Buffer();
+        try (BufferedSink sink = Okio.buffer(codec.compress(compressed))) {
+            body.writeTo(sink);
+        }
+        metrics.onCompression(action, length, compressed.size(), cpuTime() - cpuStart);
+
+        StringBuilder disposition = new StringBuilder("form-data; name=");
+        FileFormData.appendQuotedString(disposition, ENOS_MESSAGE);
+        Headers headers = new Headers.Builder()
+                .add("Content-Disposition", disposition.toString())
+                .add("Content-Encoding", codec.getContentEncoding())
+                .build();
+        return Part.create(headers, RequestBody.create(null, compressed.readByteString()));
+    }
+
+    Part filePart(String action, UploadFileInfo fileInfo, FileDigest digest) {
+        if (!compressFiles || digest.getLength() < threshold) {
+            return FileFormData.createFormData(fileInfo, digest);
+        }
+        Headers headers = FileFormData.headers(fileInfo, digest)
+                .add("Content-Encoding", codec.getContentEncoding())
+                .build();
+        return Part.create(headers, compressedFileBody(action, FilePayload.from(fileInfo), digest.getLength()));
+    }
+
+    private RequestBody compressedFileBody(String action, FilePayload payload, long length) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.parse(FileFormData.MEDIA_TYPE_OCTET_STREAM);
+            }
+
+            @Override
+            public long contentLength() {
+                return -1L;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                long cpuStart = cpuTime();
+                // the compressing sink is closed to finish the stream, but the request sink is not
+                CountingSink counting = new CountingSink(new ForwardingSink(sink) {
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                });
+                try (Source source = payload.open();
+                     BufferedSink compressed = Okio.buffer(codec.compress(counting))) {
+                    compressed.writeAll(source);
+                }
+                metrics.onCompression(action, length, counting.getBytesWritten(), cpuTime() - cpuStart);
+            }
+        };
+    }
+
+    private static long cpuTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+                : System.nanoTime();
+    }
+}
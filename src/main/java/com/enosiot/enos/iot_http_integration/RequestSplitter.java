@@ -0,0 +1,267 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationData;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.message.SplitIntegrationResponse;
+import com.enosiot.enos.iot_http_integration.message.UriInfo;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.google.common.base.Preconditions;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.enosiot.enos.iot_http_integration.HttpConnectionError.CLIENT_ERROR;
+
+/**
+ * Publishes a request too large for one POST in parts, cut at device and time boundaries so
+ * that each part stays within a size, a number of values and a number of files. The parts are
+ * published in parallel, a few at a time, and retried one by one by the retry policy of the
+ * connection instead of as a whole.
+ *
+ * <pre>
+ * RequestSplitter splitter = RequestSplitter.builder(connection)
+ *         .maxBytes(2 * 1024 * 1024)
+ *         .maxConcurrency(4)
+ *         .build();
+ * SplitIntegrationResponse response = splitter.publish(request);
+ * if (!response.isSuccess()) {
+ *     retryLater(response.getFailedRequests());
+ * }
+ * </pre>
+ */
+@Slf4j
+public class RequestSplitter {
+    public static Builder builder(@NonNull HttpConnection connection) {
+        return new Builder(connection);
+    }
+
+    public static class Builder {
+        private final HttpConnection connection;
+
+        private long maxBytes = 4 * 1024 * 1024L;
+
+        private int maxPoints = 5000;
+
+        private int maxFiles = 32;
+
+        private int maxConcurrency = 4;
+
+        Builder(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        /** Encoded size of the values and attached files of a part, {@code 4 MB} by default */
+        public Builder maxBytes(long maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /** Values of a part, {@code 5000} by default */
+        public Builder maxPoints(int maxPoints) {
+            Preconditions.checkArgument(maxPoints > 0, "maxPoints must be positive");
+            this.maxPoints = maxPoints;
+            return this;
+        }
+
+        /** Files attached to a part, {@code 32} by default */
+        public Builder maxFiles(int maxFiles) {
+            Preconditions.checkArgument(maxFiles >= 0, "maxFiles must not be negative");
+            this.maxFiles = maxFiles;
+            return this;
+        }
+
+        /** Parts published at a time, {@code 4} by default */
+        public Builder maxConcurrency(int maxConcurrency) {
+            Preconditions.checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public RequestSplitter build() {
+            return new RequestSplitter(this);
+        }
+    }
+
+    private final HttpConnection connection;
+    private final long maxBytes;
+    private final int maxPoints;
+    private final int maxFiles;
+    private final int maxConcurrency;
+
+    private RequestSplitter(Builder builder) {
+        this.connection = builder.connection;
+        this.maxBytes = builder.maxBytes;
+        this.maxPoints = builder.maxPoints;
+        this.maxFiles = builder.maxFiles;
+        this.maxConcurrency = builder.maxConcurrency;
+    }
+
+    /**
+     * Cut a request into the parts it would be published in. The request is given an id first if
+     * it has none, so that the parts are given ids derived from it.
+     *
+     * @param request
+     * @return the request alone if it is within the limits
+     * @throws IOException if failed to measure a value or an attached file
+     */
+    public List<BaseIntegrationRequest> split(@NonNull BaseIntegrationRequest request) throws IOException {
+        connection.fillRequest(request);
+        return request.split(maxBytes, maxPoints, maxFiles);
+    }
+
+    /**
+     * Publish a request in parts, and wait for all of them
+     *
+     * @param request
+     * @return response merged from the responses of the parts
+     * @throws IOException if failed to measure a value or an attached file
+     */
+    public SplitIntegrationResponse publish(@NonNull BaseIntegrationRequest request) throws IOException {
+        return publish(request.getId(), split(request)).join();
+    }
+
+    /**
+     * Publish a request in parts, asynchronously. The future fails only if the request could not
+     * be split; the failures of the parts are reported by the merged response. Cancelling it
+     * cancels the parts in flight and those not published yet.
+     *
+     * @param request
+     * @return future of the response merged from the responses of the parts
+     */
+    public CompletableFuture<SplitIntegrationResponse> publishAsync(@NonNull BaseIntegrationRequest request) {
+        List<BaseIntegrationRequest> parts;
+        try {
+            parts = split(request);
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<SplitIntegrationResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return publish(request.getId(), parts);
+    }
+
+    private CompletableFuture<SplitIntegrationResponse> publish(
+            String parentRequestId, List<BaseIntegrationRequest> parts) {
+        Dispatch dispatch = new Dispatch(parentRequestId, parts);
+        if (parts.size() > 1) {
+            log.debug("publishing a request in {} parts", parts.size());
+        }
+        for (int i = 0; i < Math.min(maxConcurrency, parts.size()); i++) {
+            dispatch.publishNext();
+        }
+        return dispatch.result;
+    }
+
+    /** Publishes the parts of one request, the next one as soon as one is complete */
+    private class Dispatch {
+        final String parentRequestId;
+        final List<BaseIntegrationRequest> parts;
+        final CallFuture<?>[] calls;
+        final SplitIntegrationResponse.Part[] outcomes;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining;
+        final CompletableFuture<SplitIntegrationResponse> result = new CompletableFuture<>();
+
+        Dispatch(String parentRequestId, List<BaseIntegrationRequest> parts) {
+            this.parentRequestId = parentRequestId;
+            this.parts = parts;
+            this.calls = new CallFuture<?>[parts.size()];
+            this.outcomes = new SplitIntegrationResponse.Part[parts.size()];
+            this.remaining = new AtomicInteger(parts.size());
+            if (parts.isEmpty()) {
+                result.complete(merge());
+            }
+            result.whenComplete(
+                    (response, failure) -> {
+                        if (failure != null) {
+                            next.set(parts.size());
+                            synchronized (calls) {
+                                Arrays.stream(calls).filter(call -> call != null).forEach(call -> call.cancel(true));
+                            }
+                        }
+                    });
+        }
+
+        void publishNext() {
+            int index = next.getAndIncrement();
+            if (index >= parts.size()) {
+                return;
+            }
+            BaseIntegrationRequest part = parts.get(index);
+            CallFuture<IntegrationResponse> call = connection.publishAsync(part, null);
+            synchronized (calls) {
+                calls[index] = call;
+            }
+            call.whenComplete(
+                    (response, failure) -> {
+                        synchronized (calls) {
+                            calls[index] = null;
+                        }
+                        outcomes[index] =
+                                new SplitIntegrationResponse.Part(
+                                        index, part.getId(), part, response, unwrap(failure));
+                        if (remaining.decrementAndGet() == 0) {
+                            result.complete(merge());
+                        } else {
+                            publishNext();
+                        }
+                    });
+            if (result.isDone()) {
+                call.cancel(true);
+            }
+        }
+
+        SplitIntegrationResponse merge() {
+            SplitIntegrationResponse merged =
+                    new SplitIntegrationResponse(parentRequestId, Arrays.asList(outcomes));
+            merged.setRequestId(parentRequestId);
+            List<UriInfo> uriInfoList = new ArrayList<>();
+            List<SplitIntegrationResponse.Part> failedParts = merged.getFailedParts();
+            for (SplitIntegrationResponse.Part part : merged.getParts()) {
+                IntegrationResponse response = part.getResponse();
+                if (response == null) {
+                    continue;
+                }
+                if (response.getData() != null && response.getData().getUriInfoList() != null) {
+                    uriInfoList.addAll(response.getData().getUriInfoList());
+                }
+            }
+            if (!uriInfoList.isEmpty()) {
+                merged.setData(new IntegrationData(uriInfoList));
+            }
+
+            if (failedParts.isEmpty()) {
+                merged.setCode(IntegrationResponse.SUCCESS_CODE);
+                merged.setMsg(parts.size() > 1 ? "published in " + parts.size() + " parts" : "OK");
+            } else {
+                SplitIntegrationResponse.Part first = failedParts.get(0);
+                if (first.getResponse() != null) {
+                    merged.setCode(first.getResponse().getCode());
+                } else if (first.getFailure() instanceof EnosException) {
+                    merged.setCode(((EnosException) first.getFailure()).getErrorCode());
+                } else {
+                    merged.setCode(CLIENT_ERROR.getErrorCode());
+                }
+                String reason = first.getResponse() != null
+                        ? first.getResponse().getMsg() : String.valueOf(first.getFailure());
+                merged.setMsg(failedParts.size() + " of " + parts.size() + " parts failed, part "
+                        + first.getIndex() + ": " + reason);
+            }
+            return merged;
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+    }
+}
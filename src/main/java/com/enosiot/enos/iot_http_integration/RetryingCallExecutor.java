@@ -0,0 +1,390 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.metrics.HttpPhase;
+import com.enosiot.enos.iot_http_integration.metrics.IHttpMetrics;
+import com.enosiot.enos.iot_http_integration.metrics.MetricsEventListener;
+import com.enosiot.enos.iot_http_integration.retry.FailureType;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Executes the calls of a connection, retrying them as its {@link RetryPolicy} allows. A retry
+ * sends the same request again, with the current access token, so integration requests keep the
+ * id given by {@link HttpConnection#fillRequest}.
+ */
+@Slf4j
+class RetryingCallExecutor {
+    private static final String APIM_ACCESS_TOKEN = "apim-accesstoken";
+    private static final String RETRY_AFTER = "Retry-After";
+
+    /** delays the retries of asynchronous calls */
+    private static final ScheduledExecutorService RETRY_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("enos-retry-scheduler-%d")
+                            .build());
+
+    private final OkHttpClient okHttpClient;
+    private final TokenConnection tokenConnection;
+    private final RetryPolicy policy;
+    private final IHttpMetrics metrics;
+
+    /** caps the attempts in flight, {@code null} if unlimited */
+    private final ConcurrencyLimiter limiter;
+    private final String orgId;
+
+    /** runs the callbacks of asynchronous calls, {@code null} to run them on the calling thread */
+    private final Executor callbackExecutor;
+
+    RetryingCallExecutor(
+            OkHttpClient okHttpClient,
+            TokenConnection tokenConnection,
+            RetryPolicy policy,
+            IHttpMetrics metrics,
+            ConcurrencyLimiter limiter,
+            String orgId,
+            Executor callbackExecutor) {
+        this.okHttpClient = okHttpClient;
+        this.tokenConnection = tokenConnection;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.limiter = limiter;
+        this.orgId = orgId;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Execute a call, retrying it on retryable failures
+     *
+     * @param call
+     * @return response of the last attempt, successful or not
+     * @throws IOException error of the last attempt, or if interrupted while backing off
+     */
+    Response execute(Call call) throws IOException {
+        policy.getBudget().onCall();
+        for (int attempt = 1; ; attempt++) {
+            FailureType failure;
+            long retryAfterMillis = 0L;
+            try {
+                Response response = executeAttempt(call);
+                failure = FailureType.of(response.code());
+                if (failure == null || !shouldRetry(call, failure, attempt)) {
+                    return response;
+                }
+                retryAfterMillis = retryAfterMillis(response);
+                response.close();
+            } catch (IOException e) {
+                failure = FailureType.of(e);
+                if (call.isCanceled() || !shouldRetry(call, failure, attempt)) {
+                    throw e;
+                }
+            }
+
+            long delayMillis = delayMillis(attempt, retryAfterMillis);
+            log.info("retry {} in {} ms after {}", actionOf(call), delayMillis, failure);
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while backing off");
+            }
+            call = nextCall(call, failure);
+        }
+    }
+
+    /**
+     * Enqueue a call, retrying it on retryable failures. The callback only receives the outcome
+     * of the last attempt, on the callback executor if any.
+     *
+     * @param call
+     * @param callback
+     */
+    void enqueue(Call call, Callback callback) {
+        enqueue(call, callback, false, null);
+    }
+
+    /**
+     * Enqueue a call whose response is small, such as a JSON response. Its body is read before
+     * the callback is handed over to the callback executor, so that the latency of the call
+     * doesn't include the wait for the executor.
+     *
+     * @param call
+     * @param callback
+     */
+    void enqueueBuffered(Call call, Callback callback) {
+        enqueue(call, callback, true, null);
+    }
+
+    /**
+     * Enqueue a call, retrying it on retryable failures
+     *
+     * @param call
+     * @param callback receives the outcome of the last attempt
+     * @param buffered whether the response body is read before the callback is handed over
+     * @param onAttempt receives the call of every attempt before it is enqueued, such as to
+     *     cancel it, {@code null} if not needed
+     */
+    void enqueue(Call call, Callback callback, boolean buffered, Consumer<Call> onAttempt) {
+        policy.getBudget().onCall();
+        new AsyncCall(callback, buffered, onAttempt).enqueue(call, 1);
+    }
+
+    /**
+     * Execute one attempt, holding a permit of the limiter until the response headers are
+     * received
+     */
+    private Response executeAttempt(Call call) throws IOException {
+        if (limiter == null) {
+            return call.execute();
+        }
+        try {
+            limiter.acquire(orgId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a permit");
+        }
+        try {
+            return call.execute();
+        } finally {
+            limiter.release(orgId);
+        }
+    }
+
+    /** The attempts of an enqueued call */
+    private class AsyncCall {
+        private final Callback callback;
+        private final boolean buffered;
+        private final Consumer<Call> onAttempt;
+
+        AsyncCall(Callback callback, boolean buffered, Consumer<Call> onAttempt) {
+            this.callback = callback;
+            this.buffered = buffered;
+            this.onAttempt = onAttempt;
+        }
+
+        void enqueue(Call call, int attempt) {
+            if (onAttempt != null) {
+                onAttempt.accept(call);
+            }
+            if (limiter == null) {
+                enqueueAttempt(call, attempt);
+            } else {
+                limiter.acquire(orgId, () -> enqueueAttempt(call, attempt));
+            }
+        }
+
+        /** Enqueue one attempt, whose permit, if any, is released once the callback has returned */
+        private void enqueueAttempt(Call call, int attempt) {
+            call.enqueue(
+                    new Callback() {
+                        @Override
+                        public void onFailure(Call call, IOException e) {
+                            try {
+                                FailureType failure = FailureType.of(e);
+                                if (call.isCanceled() || !shouldRetry(call, failure, attempt)) {
+                                    deliverFailure(call, e);
+                                    return;
+                                }
+                                scheduleRetry(call, attempt, failure, 0L);
+                            } finally {
+                                releasePermit();
+                            }
+                        }
+
+                        @Override
+                        public void onResponse(Call call, Response response) throws IOException {
+                            try {
+                                FailureType failure = FailureType.of(response.code());
+                                if (failure == null || !shouldRetry(call, failure, attempt)) {
+                                    deliverResponse(call, response);
+                                    return;
+                                }
+                                long retryAfterMillis = retryAfterMillis(response);
+                                response.close();
+                                scheduleRetry(call, attempt, failure, retryAfterMillis);
+                            } finally {
+                                releasePermit();
+                            }
+                        }
+                    });
+        }
+
+        private void deliverFailure(Call call, IOException e) {
+            deliver(call, () -> callback.onFailure(call, e), null);
+        }
+
+        private void deliverResponse(Call call, Response response) throws IOException {
+            if (callbackExecutor == null) {
+                callback.onResponse(call, response);
+                return;
+            }
+            if (buffered && response.body() != null) {
+                try {
+                    response.body().source().request(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    response.close();
+                    deliverFailure(call, e);
+                    return;
+                }
+            }
+            deliver(
+                    call,
+                    () -> {
+                        try {
+                            callback.onResponse(call, response);
+                        } catch (IOException e) {
+                            log.warn("callback of {} failed", actionOf(call), e);
+                            response.close();
+                        }
+                    },
+                    response);
+        }
+
+        /**
+         * Hand a callback over to the callback executor, reporting how long it waited there as
+         * {@link HttpPhase#CALLBACK_WAIT}. If the executor rejects it, the response, if any, is
+         * closed and the call fails on this thread instead, as OkHttp fails the calls its
+         * dispatcher rejects.
+         */
+        private void deliver(Call call, Runnable delivery, Response response) {
+            if (callbackExecutor == null) {
+                delivery.run();
+                return;
+            }
+            long queuedAt = System.nanoTime();
+            try {
+                callbackExecutor.execute(
+                        () -> {
+                            metrics.onPhase(actionOf(call), HttpPhase.CALLBACK_WAIT, System.nanoTime() - queuedAt);
+                            delivery.run();
+                        });
+            } catch (RejectedExecutionException e) {
+                log.warn("callback executor rejected the callback of {}", actionOf(call));
+                if (response != null) {
+                    response.close();
+                }
+                InterruptedIOException rejected = new InterruptedIOException("callback executor rejected");
+                rejected.initCause(e);
+                callback.onFailure(call, rejected);
+            }
+        }
+
+        private void scheduleRetry(
+                Call call, int attempt, FailureType failure, long retryAfterMillis) {
+            long delayMillis = delayMillis(attempt, retryAfterMillis);
+            log.info("retry {} in {} ms after {}", actionOf(call), delayMillis, failure);
+            // the scheduler only hands the retry over, the token is renewed on the refresher
+            RETRY_SCHEDULER.schedule(
+                    () -> {
+                        String usedToken = call.request().header(APIM_ACCESS_TOKEN);
+                        if (failure != FailureType.AUTH || usedToken == null) {
+                            retry(call, attempt);
+                            return;
+                        }
+                        tokenConnection
+                                .renewTokenAsync(usedToken)
+                                .whenComplete(
+                                        (renewed, e) -> {
+                                            if (e != null) {
+                                                log.warn("failed to renew refused access token: {}", e.getMessage());
+                                            }
+                                            retry(call, attempt);
+                                        });
+                    },
+                    delayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private void retry(Call call, int attempt) {
+            if (call.isCanceled()) {
+                deliverFailure(call, new IOException("Canceled"));
+                return;
+            }
+            enqueue(withCurrentToken(call), attempt + 1);
+        }
+    }
+
+    private void releasePermit() {
+        if (limiter != null) {
+            limiter.release(orgId);
+        }
+    }
+
+    private boolean shouldRetry(Call call, FailureType failure, int attempt) {
+        if (!policy.shouldRetry(failure, attempt)) {
+            return false;
+        }
+        metrics.onRetry(actionOf(call), failure, attempt);
+        return true;
+    }
+
+    private long delayMillis(int attempt, long retryAfterMillis) {
+        return Math.max(policy.backoffMillis(attempt), retryAfterMillis);
+    }
+
+    /** @return {@code Retry-After} in milliseconds, capped at the maximum backoff, {@code 0} if none */
+    private long retryAfterMillis(Response response) {
+        String retryAfter = response.header(RETRY_AFTER);
+        if (!policy.isHonorRetryAfter() || retryAfter == null) {
+            return 0L;
+        }
+        try {
+            long seconds = Long.parseLong(retryAfter.trim());
+            return Math.min(TimeUnit.SECONDS.toMillis(Math.max(0L, seconds)), policy.getMaxBackoff(TimeUnit.MILLISECONDS));
+        } catch (NumberFormatException e) {
+            // HTTP dates are not worth parsing for the short waits of a retry
+            return 0L;
+        }
+    }
+
+    /**
+     * @return a new call of the same request, carrying the current access token, renewed first
+     *     if the failure says it was refused
+     */
+    private Call nextCall(Call call, FailureType failure) {
+        String usedToken = call.request().header(APIM_ACCESS_TOKEN);
+        if (usedToken != null && failure == FailureType.AUTH) {
+            try {
+                tokenConnection.renewToken(usedToken);
+            } catch (Exception e) {
+                log.warn("failed to renew refused access token: {}", e.getMessage());
+            }
+        }
+        return withCurrentToken(call);
+    }
+
+    /** @return a new call of the same request, carrying the current access token */
+    private Call withCurrentToken(Call call) {
+        Request request = call.request();
+        String usedToken = request.header(APIM_ACCESS_TOKEN);
+        if (usedToken == null) {
+            return okHttpClient.newCall(request);
+        }
+        String currentToken = tokenConnection.getAccessToken();
+        if (currentToken == null || currentToken.equals(usedToken)) {
+            return okHttpClient.newCall(request);
+        }
+        return okHttpClient.newCall(
+                request.newBuilder().header(APIM_ACCESS_TOKEN, currentToken).build());
+    }
+
+    private static String actionOf(Call call) {
+        return MetricsEventListener.actionOf(call.request());
+    }
+}
@@ -1,54 +1,137 @@
 package com.enosiot.enos.iot_http_integration;
 
+import com.enosiot.enos.iot_http_integration.message.ResponseDecoder;
 import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
 import com.enosiot.enos.iot_mqtt_sdk.core.internals.SignMethod;
 import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
-import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 
+import java.lang.ref.WeakReference;
 import java.net.SocketException;
 import java.util.Calendar;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.enosiot.enos.iot_http_integration.HttpConnectionError.*;
 import static com.google.common.base.Preconditions.checkArgument;
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Calendar.MINUTE;
-import static java.util.Calendar.SECOND;
 
 /**
+ * Connection to the APIM token service.
+ *
+ * <p>The current token is kept as an immutable {@link Token} in a volatile field, so reading it
+ * on the request path is a single volatile read. Once {@link #startRefresher()} is called, the
+ * token is renewed in the background ahead of its refresh time, retrying with backoff on failure.
+ *
+ * <p>Connections are still equal if they have the same settings and token, and the builder
+ * still takes an initial {@code accessToken}, {@code expireTime} and {@code refreshTime}.
+ *
  * @author :charlescai
  * @date :2020-02-26
  */
 @Slf4j
-@Data
-@Builder
 public class TokenConnection {
 
     private static final String TOKEN_GET_PATH = "/apim-token-service/v2.0/token/get";
     private static final String TOKEN_REFRESH_PATH = "/apim-token-service/v2.0/token/refresh";
 
-    @NonNull
+    /** token is refreshed 10 minutes before expire */
+    private static final long REFRESH_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** the background refresher starts this long before the refresh window */
+    private static final long REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long MIN_RETRY_MILLIS = 1000L;
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ScheduledExecutorService REFRESHER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("enos-token-refresher-%d")
+                            .build());
+
+    /** An access token and the instants it must be refreshed and expires at */
+    @Value
+    public static class Token {
+        String accessToken;
+
+        long refreshAtMillis;
+
+        long expireAtMillis;
+
+        public boolean isExpired(long nowMillis) {
+            return nowMillis >= expireAtMillis;
+        }
+
+        public boolean needRefresh(long nowMillis) {
+            return nowMillis >= refreshAtMillis && nowMillis < expireAtMillis;
+        }
+    }
+
+    @Getter @Setter @NonNull
     private String tokenServerUrl;
 
-    @NonNull
+    @Getter @Setter @NonNull
     private String appKey;
 
-    @NonNull
+    @Getter @Setter @NonNull
     private String appSecret;
 
-    private String accessToken;
-    
-    private Calendar expireTime;
+    @Getter @Setter @NonNull
+    private OkHttpClient okHttpClient;
 
-    private Calendar refreshTime;
+    private volatile Token token;
 
-    @NonNull
-    private OkHttpClient okHttpClient;
+    private volatile boolean refresherStarted = false;
+
+    private final Object renewalLock = new Object();
+
+    /** renewal in flight, see {@link #renewTokenAsync} */
+    private CompletableFuture<Void> renewal;
+
+    /** last failed renewal, returned to callers for {@code MIN_RETRY_MILLIS} after it failed */
+    private CompletableFuture<Void> failedRenewal;
+
+    private long renewalFailedAtMillis;
+
+    /**
+     * @param accessToken initial token, {@code null} to apply for one
+     * @param expireTime expire time of the initial token
+     * @param refreshTime refresh time of the initial token
+     */
+    @Builder
+    private TokenConnection(
+            @NonNull String tokenServerUrl,
+            @NonNull String appKey,
+            @NonNull String appSecret,
+            String accessToken,
+            Calendar expireTime,
+            Calendar refreshTime,
+            @NonNull OkHttpClient okHttpClient) {
+        this.tokenServerUrl = tokenServerUrl;
+        this.appKey = appKey;
+        this.appSecret = appSecret;
+        this.okHttpClient = okHttpClient;
+        if (accessToken != null || expireTime != null || refreshTime != null) {
+            this.token = new Token(
+                    accessToken,
+                    refreshTime == null ? 0L : refreshTime.getTimeInMillis(),
+                    expireTime == null ? 0L : expireTime.getTimeInMillis());
+        }
+    }
 
     public void getAndRefreshToken() throws EnosException {
         getToken();
@@ -60,7 +143,7 @@ public class TokenConnection {
      * @return
      * @throws EnosException
      */
-    public void getToken() throws EnosException {
+    public synchronized void getToken() throws EnosException {
         String timestamp = String.valueOf(System.currentTimeMillis());
 
         String encryption = sign(timestamp);
@@ -83,12 +166,12 @@ public class TokenConnection {
      * @return
      * @throws EnosException
      */
-    public void refreshToken() throws EnosException {
+    public synchronized void refreshToken() throws EnosException {
         String timestamp = String.valueOf(System.currentTimeMillis());
 
         String encryption = sign(timestamp);
 
-        RefreshTokenRequestBody refreshTokenRequestBody = new RefreshTokenRequestBody(appKey, encryption, timestamp, accessToken);
+        RefreshTokenRequestBody refreshTokenRequestBody = new RefreshTokenRequestBody(appKey, encryption, timestamp, getAccessToken());
         RequestBody requestBody = RequestBody.create(MediaType.parse("application/json"), GsonUtil.toJson(refreshTokenRequestBody));
 
         Request httpRequest = new Request.Builder()
@@ -98,18 +181,107 @@ public class TokenConnection {
 
         Call call = okHttpClient.newCall(httpRequest);
         doExecuteCall(call);
-        log.info("refresh token {}, expire time{}", accessToken, expireTime);
+        log.info("refresh token, expire time {}", getExpireTime() == null ? null : getExpireTime().getTime());
+    }
+
+    /**
+     * Current token snapshot, never blocks
+     * @return token, {@code null} if no token has been applied for yet
+     */
+    public Token getCurrentToken() {
+        return token;
+    }
+
+    public String getAccessToken() {
+        Token current = token;
+        return current == null ? null : current.getAccessToken();
+    }
+
+    public Calendar getExpireTime() {
+        Token current = token;
+        return current == null ? null : toCalendar(current.getExpireAtMillis());
+    }
+
+    public Calendar getRefreshTime() {
+        Token current = token;
+        return current == null ? null : toCalendar(current.getRefreshAtMillis());
+    }
+
+    /**
+     * @deprecated the token is applied for and renewed by this connection
+     */
+    @Deprecated
+    public synchronized void setAccessToken(String accessToken) {
+        Token current = token;
+        token = current == null
+                ? new Token(accessToken, 0L, 0L)
+                : new Token(accessToken, current.getRefreshAtMillis(), current.getExpireAtMillis());
+    }
+
+    /**
+     * @deprecated the token is applied for and renewed by this connection
+     */
+    @Deprecated
+    public synchronized void setExpireTime(Calendar expireTime) {
+        Token current = token;
+        long expireAt = expireTime == null ? 0L : expireTime.getTimeInMillis();
+        token = current == null
+                ? new Token(null, 0L, expireAt)
+                : new Token(current.getAccessToken(), current.getRefreshAtMillis(), expireAt);
+    }
+
+    /**
+     * @deprecated the token is applied for and renewed by this connection
+     */
+    @Deprecated
+    public synchronized void setRefreshTime(Calendar refreshTime) {
+        Token current = token;
+        long refreshAt = refreshTime == null ? 0L : refreshTime.getTimeInMillis();
+        token = current == null
+                ? new Token(null, refreshAt, 0L)
+                : new Token(current.getAccessToken(), refreshAt, current.getExpireAtMillis());
     }
     
-    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TokenConnection)) {
+            return false;
+        }
+        TokenConnection other = (TokenConnection) o;
+        return tokenServerUrl.equals(other.tokenServerUrl)
+                && appKey.equals(other.appKey)
+                && appSecret.equals(other.appSecret)
+                && Objects.equals(token, other.token)
+                && okHttpClient.equals(other.okHttpClient);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tokenServerUrl, appKey, appSecret, token, okHttpClient);
+    }
+
+    /** The app secret is left out */
+    @Override
+    public String toString() {
+        return "TokenConnection(tokenServerUrl=" + tokenServerUrl
+                + ", appKey=" + appKey
+                + ", accessToken=" + getAccessToken()
+                + ", expireTime=" + (getExpireTime() == null ? null : getExpireTime().getTime())
+                + ", refreshTime=" + (getRefreshTime() == null ? null : getRefreshTime().getTime())
+                + ", okHttpClient=" + okHttpClient + ")";
+    }
+
     /**
      * If needs apply for a token
      * @return
      */
     public boolean needGetToken()
     {
-        return Strings.isNullOrEmpty(accessToken) ||
-                Calendar.getInstance().after(expireTime);
+        Token current = token;
+        return current == null || current.isExpired(System.currentTimeMillis());
     }
     
     /**
@@ -117,8 +289,136 @@ public class TokenConnection {
      */
     public boolean needRefreshToken()
     {
-        return !Strings.isNullOrEmpty(accessToken) &&
-                Calendar.getInstance().after(refreshTime) && Calendar.getInstance().before(expireTime);
+        Token current = token;
+        return current != null && current.needRefresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Start renewing the token in the background, ahead of its refresh time. The refresher stops
+     * once this connection is no longer referenced.
+     */
+    public void startRefresher() {
+        if (refresherStarted) {
+            return;
+        }
+        refresherStarted = true;
+        scheduleRefresh(new WeakReference<>(this), nextRefreshDelay(), 0L);
+    }
+
+    private long nextRefreshDelay() {
+        Token current = token;
+        if (current == null) {
+            return 0L;
+        }
+        long now = System.currentTimeMillis();
+        // short-lived tokens are renewed halfway to expire instead
+        long ahead = current.getRefreshAtMillis() - REFRESH_AHEAD_MILLIS - now;
+        long halfway = (current.getExpireAtMillis() - now) / 2;
+        return Math.max(0L, Math.max(ahead, halfway));
+    }
+
+    private static void scheduleRefresh(
+            WeakReference<TokenConnection> ref, long delayMillis, long retryMillis) {
+        REFRESHER.schedule(
+                () -> {
+                    TokenConnection connection = ref.get();
+                    if (connection == null) {
+                        return;
+                    }
+                    try {
+                        connection.renew();
+                        scheduleRefresh(ref, connection.nextRefreshDelay(), 0L);
+                    } catch (Exception e) {
+                        // exponential backoff with full jitter
+                        long backoff =
+                                retryMillis == 0L
+                                        ? MIN_RETRY_MILLIS
+                                        : Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+                        log.warn("failed to renew token, retry in at most {} ms: {}", backoff, e.getMessage());
+                        scheduleRefresh(
+                                ref, ThreadLocalRandom.current().nextLong(backoff + 1), backoff);
+                    }
+                },
+                delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply for a new token after the given one has been refused or has expired, unless another
+     * thread has already replaced it
+     *
+     * @param rejectedAccessToken
+     * @throws EnosException
+     */
+    public synchronized void renewToken(String rejectedAccessToken) throws EnosException {
+        if (isReplaced(token, rejectedAccessToken)) {
+            return;
+        }
+        getToken();
+    }
+
+    /**
+     * Apply for a new token on the refresher thread, after the given one has been refused or has
+     * expired, unless another thread has already replaced it. Concurrent callers share the same
+     * renewal, and never block on the token service. For a second after a renewal has failed,
+     * callers get its failure instead of starting another one.
+     *
+     * @param rejectedAccessToken
+     * @return future completed once the token is renewed, or failed with the {@link
+     *     EnosException} of the token service
+     */
+    public CompletableFuture<Void> renewTokenAsync(String rejectedAccessToken) {
+        CompletableFuture<Void> future;
+        synchronized (renewalLock) {
+            if (renewal != null) {
+                return renewal;
+            }
+            if (isReplaced(token, rejectedAccessToken)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (failedRenewal != null
+                    && System.currentTimeMillis() - renewalFailedAtMillis < MIN_RETRY_MILLIS) {
+                return failedRenewal;
+            }
+            future = new CompletableFuture<>();
+            renewal = future;
+        }
+        REFRESHER.execute(
+                () -> {
+                    Exception failure = null;
+                    try {
+                        renewToken(rejectedAccessToken);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                    synchronized (renewalLock) {
+                        renewal = null;
+                        failedRenewal = failure == null ? null : future;
+                        renewalFailedAtMillis = System.currentTimeMillis();
+                    }
+                    if (failure == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(failure);
+                    }
+                });
+        return future;
+    }
+
+    /** @return whether the current token is valid and no longer the given one */
+    private static boolean isReplaced(Token current, String rejectedAccessToken) {
+        return current != null
+                && current.getAccessToken() != null
+                && !current.getAccessToken().equals(rejectedAccessToken)
+                && !current.isExpired(System.currentTimeMillis());
+    }
+
+    private synchronized void renew() throws EnosException {
+        if (needGetToken()) {
+            getToken();
+        } else {
+            refreshToken();
+        }
     }
 
     
@@ -128,27 +428,17 @@ public class TokenConnection {
      * @throws EnosException
      */
     private void doExecuteCall(Call call) throws EnosException {
-        try {
-            Response httpResponse = call.execute();
+        try (Response httpResponse = call.execute()) {
             try {
-                checkArgument(httpResponse != null && httpResponse.body() != null);
-                byte[] payload = httpResponse.body().bytes();
-                String msg = new String(payload, UTF_8);
-                
-                TokenResponse response = GsonUtil.fromJson(msg, TokenResponse.class);
+                checkArgument(httpResponse.body() != null);
+                TokenResponse response = ResponseDecoder.decode(httpResponse.body(), TokenResponse.class);
                 
                 checkArgument(response != null && response.getStatus() == 0 && 
                               response.getData() != null, "response %s", response);
 
-                // store token and expire time, refresh time
-                accessToken = response.getData().getAccessToken();
-                expireTime = Calendar.getInstance();
-                expireTime.add(SECOND, response.getData().getExpire());
-
-                refreshTime = Calendar.getInstance();
-                refreshTime.add(SECOND, response.getData().getExpire());
-                // refresh token 10 minutes before expire
-                refreshTime.add(MINUTE, -10);
+                // store token and expire time, refresh token 10 minutes before expire
+                long expireAt = System.currentTimeMillis() + response.getData().getExpire() * 1000L;
+                token = new Token(response.getData().getAccessToken(), expireAt - REFRESH_WINDOW_MILLIS, expireAt);
             } catch (Exception e) {
                 log.warn("failed to decode token get response: " + httpResponse, e);
                 throw new EnosException(UNSUCCESSFUL_AUTH, e.getMessage());
@@ -171,6 +461,12 @@ public class TokenConnection {
         return SignMethod.SHA256.sign(content);
     }
 
+    private static Calendar toCalendar(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
     @Data
     @AllArgsConstructor
     private static class GetTokenRequestBody {
@@ -0,0 +1,79 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.google.common.base.Preconditions;
+import lombok.NonNull;
+import lombok.Value;
+import okhttp3.OkHttpClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Token connections shared by every organization integrated through the same application, keyed
+ * by token server and application key. A token is applied for once per application, and renewed
+ * in the background while the registry is in use.
+ */
+public class TokenRegistry {
+    @Value
+    private static class Key {
+        String tokenServerUrl;
+        String appKey;
+    }
+
+    private final OkHttpClient okHttpClient;
+
+    private final ConcurrentMap<Key, TokenConnection> connections = new ConcurrentHashMap<>();
+
+    /** @param okHttpClient client the token service is called with */
+    public TokenRegistry(@NonNull OkHttpClient okHttpClient) {
+        this.okHttpClient = okHttpClient;
+    }
+
+    /**
+     * Get the token connection of an application, applying for its token on the first call
+     *
+     * @param tokenServerUrl
+     * @param appKey
+     * @param appSecret
+     * @return token connection with a token, renewed in the background
+     * @throws EnosException if failed to get the first token
+     */
+    public TokenConnection get(
+            @NonNull String tokenServerUrl, @NonNull String appKey, @NonNull String appSecret)
+            throws EnosException {
+        TokenConnection connection =
+                connections.computeIfAbsent(
+                        new Key(tokenServerUrl, appKey),
+                        key ->
+                                TokenConnection.builder()
+                                        .tokenServerUrl(tokenServerUrl)
+                                        .appKey(appKey)
+                                        .appSecret(appSecret)
+                                        .okHttpClient(okHttpClient)
+                                        .build());
+        Preconditions.checkArgument(
+                connection.getAppSecret().equals(appSecret),
+                "application %s is registered with another secret",
+                appKey);
+
+        // a failed first token is applied for again by the next caller
+        synchronized (connection) {
+            if (connection.needGetToken()) {
+                connection.getAndRefreshToken();
+            }
+            connection.startRefresher();
+        }
+        return connection;
+    }
+
+    /** @return number of applications holding a token */
+    public int size() {
+        return connections.size();
+    }
+
+    /** Forget every token, whose background renewal stops once they are no longer used */
+    public void clear() {
+        connections.clear();
+    }
+}
@@ -12,7 +12,7 @@ public class FileMetaDto implements Serializable {
     private String category;
     private String fileUri;
     private String originalFilename;
-    private Integer fileSize;
+    private Long fileSize;
     private String md5;
     private String signMethod;
     private String sign;
@@ -1,22 +1,32 @@
 package com.enosiot.enos.iot_http_integration.message;
 
-import com.enosiot.enos.iot_http_integration.FileFormData;
+import com.enosiot.enos.iot_http_integration.FileDigestCache;
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
 import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
 import com.enosiot.enos.iot_mqtt_sdk.util.ExactValue;
 import com.enosiot.enos.iot_mqtt_sdk.util.FileUtil;
-import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
 import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
 import com.enosiot.enos.sdk.data.DeviceInfo;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonWriter;
 import lombok.Data;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * @author :charlescai
@@ -40,50 +50,305 @@ public abstract class BaseIntegrationRequest {
     public abstract String getRequestAction();
 
     public byte[] encode() throws IOException {
-        return GsonUtil.toJson(getJsonPayload()).getBytes();
+        Buffer buffer = new Buffer();
+        encode(buffer);
+        return buffer.readByteArray();
     }
 
-    private Map<String, Object> getJsonPayload() throws IOException {
-        Map<String, Object> payload = new HashMap<>();
+    /**
+     * Write the JSON message of this request into the sink, UTF-8 encoded
+     * @param sink
+     * @throws IOException
+     */
+    public void encode(BufferedSink sink) throws IOException {
+        encode(sink, digestFiles());
+    }
+
+    /**
+     * Write the JSON message of this request into the sink, UTF-8 encoded, using the given
+     * digests of the attached files
+     * @param sink
+     * @param fileDigests digests of {@link #getFiles()}, see {@link #digestFiles()}
+     * @throws IOException
+     */
+    public void encode(BufferedSink sink, Map<UploadFileInfo, FileDigest> fileDigests) throws IOException {
+        JsonWriter writer = JsonValueWriter.newWriter(sink);
+        writer.beginObject();
         if (getId() != null) {
-            payload.put("id", getId());
+            writer.name("id").value(getId());
         }
         if (getVersion() != null) {
-            payload.put("version", getVersion());
+            writer.name("version").value(getVersion());
         }
         if (getMethod() != null) {
-            payload.put("method", getMethod());
+            writer.name("method").value(getMethod());
         }
-        if (getParams() != null) {
-            payload.put("params", getParams());
+        if (params != null) {
+            writer.name("params");
+            writeParams(writer);
         }
         if (getFiles() != null) {
-            payload.put("files", CreateFilePayload());
+            writer.name("files");
+            writeFilePayload(writer, fileDigests);
+        }
+        writer.name("isRealtimeIntegration").value(isRealtimeIntegration);
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Write the {@code params} value of the message
+     * @param writer
+     * @throws IOException
+     */
+    protected void writeParams(JsonWriter writer) throws IOException {
+        JsonValueWriter.write(writer, getParams());
+    }
+
+    /**
+     * Measure how many bytes the {@code params} value takes once encoded, without keeping the
+     * encoded bytes
+     * @return
+     * @throws IOException
+     */
+    public long encodedParamsLength() throws IOException {
+        CountingSink countingSink = new CountingSink(Okio.blackhole());
+        BufferedSink sink = Okio.buffer(countingSink);
+        if (params != null) {
+            JsonWriter writer = JsonValueWriter.newWriter(sink);
+            writeParams(writer);
+            writer.flush();
+        }
+        sink.flush();
+        return countingSink.getBytesWritten();
+    }
+
+    /**
+     * Resolve length and MD5 of each attached file through the default digest cache
+     * @return digests keyed by the file info, empty if there is no file
+     * @throws IOException
+     */
+    public Map<UploadFileInfo, FileDigest> digestFiles() throws IOException {
+        return digestFiles(FileDigestCache.getDefault());
+    }
+
+    /**
+     * Resolve length and MD5 of each attached file
+     * @param digestCache cache the MD5 is looked up in
+     * @return digests keyed by the file info, empty if there is no file
+     * @throws IOException
+     */
+    public Map<UploadFileInfo, FileDigest> digestFiles(FileDigestCache digestCache) throws IOException {
+        if (files == null || files.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<UploadFileInfo, FileDigest> digests = new IdentityHashMap<>();
+        for (UploadFileInfo fileInfo : files) {
+            digests.put(fileInfo, digestCache.digest(fileInfo));
+        }
+        return digests;
+    }
+
+    /**
+     * Cut this request into parts to be published separately, each within the limits unless a
+     * single entry exceeds them on its own. An entry, the values of a device at a time, is never
+     * cut, and each part carries the files its entries refer to. Files no entry refers to are
+     * attached to the first parts with room for them.
+     *
+     * <p>The parts of a request with an id are given ids derived from it, {@code <id>-<index>};
+     * otherwise each part is given a fresh id when published.
+     *
+     * @param maxBytes encoded size of the params and attached files of a part
+     * @param maxPoints values in a part
+     * @param maxFiles files attached to a part
+     * @return this request alone if it is within the limits, otherwise its parts in order
+     * @throws IOException if failed to measure an entry or an attached file
+     * @throws IllegalArgumentException if no part has room for a file no entry refers to
+     */
+    public List<BaseIntegrationRequest> split(long maxBytes, int maxPoints, int maxFiles) throws IOException {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        Preconditions.checkArgument(maxPoints > 0, "maxPoints must be positive");
+        Preconditions.checkArgument(maxFiles >= 0, "maxFiles must not be negative");
+
+        Map<String, UploadFileInfo> filesByName = new HashMap<>();
+        if (files != null) {
+            for (UploadFileInfo fileInfo : files) {
+                filesByName.put(fileInfo.getFilename(), fileInfo);
+            }
+        }
+
+        List<List<Object>> partEntries = new ArrayList<>();
+        List<List<UploadFileInfo>> partFiles = new ArrayList<>();
+        List<Long> partBytes = new ArrayList<>();
+        int partPoints = 0;
+        for (Object entry : splitEntries(maxBytes, maxPoints)) {
+            List<UploadFileInfo> entryFiles = new ArrayList<>();
+            collectFiles(entry, filesByName, entryFiles);
+            long bytes = encodedLength(entry);
+            for (UploadFileInfo fileInfo : entryFiles) {
+                bytes += FilePayload.from(fileInfo).length();
+            }
+            int points = pointCount(entry);
+
+            int last = partEntries.size() - 1;
+            if (last < 0
+                    || partBytes.get(last) + bytes > maxBytes
+                    || partPoints + points > maxPoints
+                    || partFiles.get(last).size() + entryFiles.size() > maxFiles) {
+                partEntries.add(new ArrayList<>());
+                partFiles.add(new ArrayList<>());
+                partBytes.add(0L);
+                partPoints = 0;
+                last++;
+            }
+            partEntries.get(last).add(entry);
+            partFiles.get(last).addAll(entryFiles);
+            partBytes.set(last, partBytes.get(last) + bytes);
+            partPoints += points;
+        }
+        if (partEntries.isEmpty()) {
+            partEntries.add(new ArrayList<>());
+            partFiles.add(new ArrayList<>());
+            partBytes.add(0L);
+        }
+
+        // files no entry refers to go to the first part with room for them, within the limits
+        Set<UploadFileInfo> referenced = Collections.newSetFromMap(new IdentityHashMap<>());
+        partFiles.forEach(referenced::addAll);
+        for (UploadFileInfo fileInfo : files == null ? Collections.<UploadFileInfo>emptyList() : files) {
+            if (!referenced.add(fileInfo)) {
+                continue;
+            }
+            long bytes = FilePayload.from(fileInfo).length();
+            int part = 0;
+            while (part < partFiles.size()
+                    && (partFiles.get(part).size() >= maxFiles || partBytes.get(part) + bytes > maxBytes)) {
+                part++;
+            }
+            if (part == partFiles.size()) {
+                throw new IllegalArgumentException(
+                        "no part has room for file " + fileInfo.getFilename() + ", which no value refers to");
+            }
+            partFiles.get(part).add(fileInfo);
+            partBytes.set(part, partBytes.get(part) + bytes);
+        }
+        if (partEntries.size() <= 1) {
+            return Collections.singletonList(this);
+        }
+
+        List<BaseIntegrationRequest> parts = new ArrayList<>(partEntries.size());
+        for (int i = 0; i < partEntries.size(); i++) {
+            BaseIntegrationRequest part = newInstance();
+            // the broker drops requests of an id it has seen, each part needs its own
+            part.setId(StringUtil.isNotEmpty(id) ? id + "-" + i : null);
+            part.setMethod(method);
+            part.setVersion(version);
+            part.setParams(partEntries.get(i));
+            part.setFiles(partFiles.get(i));
+            part.setRealtimeIntegration(isRealtimeIntegration);
+            parts.add(part);
         }
-        payload.put("isRealtimeIntegration", isRealtimeIntegration);
-        return payload;
+        return parts;
     }
 
-    private Map<String, Object> CreateFilePayload() throws IOException {
-        Map<String, Object> disposition = Maps.newHashMap();
+    /**
+     * Create an empty request of the same type, to hold a part of this one
+     * @return
+     */
+    protected abstract BaseIntegrationRequest newInstance();
+
+    /**
+     * Entries of the {@code params} value, each held whole by a part of {@link #split}
+     * @param maxBytes encoded size of a part
+     * @param maxPoints values in a part
+     * @return
+     * @throws IOException
+     */
+    protected List<Object> splitEntries(long maxBytes, int maxPoints) throws IOException {
+        Object value = getParams();
+        if (value instanceof List) {
+            return new ArrayList<>((List<?>) value);
+        }
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    /**
+     * Count the values in an entry of {@link #splitEntries}, the measurepoints, attributes or
+     * events of the device
+     * @param entry
+     * @return
+     */
+    protected int pointCount(Object entry) {
+        int points = 0;
+        if (entry instanceof Map) {
+            for (Object value : ((Map<?, ?>) entry).values()) {
+                if (value instanceof Map) {
+                    points += ((Map<?, ?>) value).size();
+                }
+            }
+        }
+        return Math.max(points, 1);
+    }
+
+    /**
+     * Measure how many bytes an entry of {@link #splitEntries} takes once encoded
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    protected long encodedLength(Object entry) throws IOException {
+        return JsonValueWriter.encodedLength(entry);
+    }
+
+    /** Collect the attached files a value refers to by their {@code local://} URI */
+    private static void collectFiles(Object value, Map<String, UploadFileInfo> filesByName, List<UploadFileInfo> found) {
+        if (value instanceof String) {
+            String text = (String) value;
+            if (text.startsWith(BaseBuilder.LOCAL_FILE_SCHEMA)) {
+                UploadFileInfo fileInfo = filesByName.get(text.substring(BaseBuilder.LOCAL_FILE_SCHEMA.length()));
+                if (fileInfo != null && !found.contains(fileInfo)) {
+                    found.add(fileInfo);
+                }
+            }
+        } else if (value instanceof Map) {
+            for (Object item : ((Map<?, ?>) value).values()) {
+                collectFiles(item, filesByName, found);
+            }
+        } else if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                collectFiles(item, filesByName, found);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object item : (Object[]) value) {
+                collectFiles(item, filesByName, found);
+            }
+        }
+    }
+
+    private void writeFilePayload(JsonWriter writer, Map<UploadFileInfo, FileDigest> fileDigests) throws IOException {
+        writer.beginObject();
         for (UploadFileInfo fileInfo : files) {
-            Map<String, String> map = Maps.newHashMap();
-            map.put("featureId", fileInfo.getFeatureId());
-            map.put("fileName", fileInfo.getFilename());
-            map.put("originalFilename", fileInfo.getOriginalFilename());
-            map.put("fileLength", String.valueOf(fileInfo.getFile().length()));
-            map.put("fileExt", getFileExt(fileInfo.getFilename()).get());
+            FileDigest digest = fileDigests.get(fileInfo);
+            if (digest == null) {
+                digest = FileDigestCache.getDefault().digest(fileInfo);
+            }
+
+            writer.name(fileInfo.getFilename()).beginObject();
+            writer.name("featureId").value(fileInfo.getFeatureId());
+            writer.name("fileName").value(fileInfo.getFilename());
+            writer.name("originalFilename").value(fileInfo.getOriginalFilename());
+            writer.name("fileLength").value(String.valueOf(digest.getLength()));
+            writer.name("fileExt").value(getFileExt(fileInfo.getFilename()).get());
             if (StringUtil.isNotEmpty(fileInfo.getAssetId())) {
-                map.put("assetId", fileInfo.getAssetId());
+                writer.name("assetId").value(fileInfo.getAssetId());
             } else {
-                map.put("productKey", fileInfo.getProductKey());
-                map.put("deviceKey", fileInfo.getDeviceKey());
+                writer.name("productKey").value(fileInfo.getProductKey());
+                writer.name("deviceKey").value(fileInfo.getDeviceKey());
             }
-            map.put("md5", FileFormData.md5(fileInfo.getFile()));
-
-            disposition.put(fileInfo.getFilename(), map);
+            writer.name("md5").value(digest.getMd5());
+            writer.endObject();
         }
-        return disposition;
+        writer.endObject();
     }
 
     private static Optional<String> getFileExt(String filename) {
@@ -101,7 +366,7 @@ public abstract class BaseIntegrationRequest {
     }
 
     protected abstract static class BaseBuilder<R extends BaseIntegrationRequest> {
-        final String LOCAL_FILE_SCHEMA = "local://";
+        static final String LOCAL_FILE_SCHEMA = "local://";
         boolean isRealtimeIntegration = true;
 
         List<UploadFileInfo> files = Lists.newArrayList();
@@ -136,6 +401,34 @@ public abstract class BaseIntegrationRequest {
             return filename;
         }
 
+        String storeFile(DeviceInfo deviceInfo, String featureType, String featureId, FilePayload payload) {
+            UploadFileInfo fileInfo = new PayloadFileInfo(payload);
+            fileInfo.setOriginalFilename(payload.getFilename());
+            String filename = UUID.randomUUID() + "-" + payload.getFilename();
+            fileInfo.setFilename(filename);
+            fileInfo.setFeatureType(featureType);
+            fileInfo.setFeatureId(featureId);
+            fileInfo.setAssetId(deviceInfo.getAssetId());
+            fileInfo.setProductKey(deviceInfo.getProductKey());
+            fileInfo.setDeviceKey(deviceInfo.getDeviceKey());
+
+            files.add(fileInfo);
+            return filename;
+        }
+
+        /** @return whether a value is the content of a file, a {@link File} or a {@link FilePayload} */
+        static boolean isFile(Object value) {
+            return value instanceof File || value instanceof FilePayload;
+        }
+
+        /** Attach the content of a file value, see {@link #isFile(Object)} */
+        String storeFileValue(DeviceInfo deviceInfo, String featureType, String featureId, Object value) {
+            if (value instanceof FilePayload) {
+                return storeFile(deviceInfo, featureType, featureId, (FilePayload) value);
+            }
+            return storeFile(deviceInfo, featureType, featureId, (File) value);
+        }
+
     }
 
     public void setParams(Object params) {
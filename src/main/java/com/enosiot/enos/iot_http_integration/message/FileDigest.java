@@ -0,0 +1,14 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import lombok.Value;
+
+/**
+ * Length and MD5 of an attached file, resolved once and reused by every part of a publish
+ *
+ * @see com.enosiot.enos.iot_http_integration.FileDigestCache
+ */
+@Value
+public class FileDigest {
+    long length;
+    String md5;
+}
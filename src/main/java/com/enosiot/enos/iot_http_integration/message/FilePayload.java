@@ -0,0 +1,234 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_http_integration.FileDigestCache;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import com.google.common.base.Preconditions;
+import lombok.Getter;
+import lombok.NonNull;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.HashingSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content of a file-type measurepoint, attribute or event value that is not a {@link File}, so
+ * that generated content is attached without being written to a temporary file:
+ *
+ * <pre>
+ * hashMap.put("WaveformMeasurePoint1", FilePayload.of("waveform.bin", samples));
+ * </pre>
+ *
+ * <p>Buffers and byte arrays are not copied and must not be modified until the request has been
+ * sent. Their MD5 is computed from memory, once. A stream payload is read once for its MD5 and
+ * once more for every upload, so the supplier must open a new stream with the same content on
+ * every call.
+ */
+public abstract class FilePayload {
+    /** Opens a new stream of the content */
+    public interface StreamSupplier {
+        InputStream open() throws IOException;
+    }
+
+    /** name of the file, its extension is reported to EnOS */
+    @Getter private final String filename;
+
+    private volatile FileDigest digest;
+
+    FilePayload(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * @param filename name of the file, such as {@code waveform.bin}
+     * @param content
+     * @return payload of the bytes
+     */
+    public static FilePayload of(@NonNull String filename, @NonNull byte[] content) {
+        return new BufferPayload(filename, ByteBuffer.wrap(content));
+    }
+
+    /**
+     * @param filename name of the file, such as {@code waveform.bin}
+     * @param content bytes from the position to the limit of the buffer, which can be direct or
+     *     memory-mapped, and whose position is not moved
+     * @return payload of the buffer
+     */
+    public static FilePayload of(@NonNull String filename, @NonNull ByteBuffer content) {
+        return new BufferPayload(filename, content.duplicate());
+    }
+
+    /**
+     * @param filename name of the file, such as {@code waveform.bin}
+     * @param length exact number of bytes of the streams
+     * @param supplier opens a new stream of the content on every call
+     * @return payload of the streams
+     */
+    public static FilePayload of(
+            @NonNull String filename, long length, @NonNull StreamSupplier supplier) {
+        Preconditions.checkArgument(length >= 0, "length must not be negative");
+        return new StreamPayload(filename, length, supplier);
+    }
+
+    /**
+     * @return content of an attached file, whether it is a {@link File} or a payload, whose
+     *     digest is looked up in the default digest cache
+     */
+    public static FilePayload from(@NonNull UploadFileInfo fileInfo) {
+        return from(fileInfo, FileDigestCache.getDefault());
+    }
+
+    /**
+     * @param fileInfo
+     * @param digestCache cache the digest of a {@link File} is looked up in, such as the one of
+     *     the connection
+     * @return content of an attached file, whether it is a {@link File} or a payload
+     */
+    public static FilePayload from(@NonNull UploadFileInfo fileInfo, @NonNull FileDigestCache digestCache) {
+        if (fileInfo instanceof PayloadFileInfo) {
+            return ((PayloadFileInfo) fileInfo).getPayload();
+        }
+        return new FileBackedPayload(fileInfo.getFile(), digestCache);
+    }
+
+    /** @return number of bytes of the content */
+    public abstract long length();
+
+    /** @return a new source of the whole content, to be closed by the caller */
+    public abstract Source open() throws IOException;
+
+    /** @return length and MD5 of the content, computed on the first call */
+    public FileDigest digest() throws IOException {
+        FileDigest result = digest;
+        if (result == null) {
+            result = new FileDigest(length(), computeMd5());
+            digest = result;
+        }
+        return result;
+    }
+
+    String computeMd5() throws IOException {
+        try (HashingSource hashing = HashingSource.md5(open());
+                BufferedSource source = Okio.buffer(hashing)) {
+            source.readAll(Okio.blackhole());
+            return hashing.hash().hex();
+        }
+    }
+
+    private static class BufferPayload extends FilePayload {
+        private final ByteBuffer content;
+
+        BufferPayload(String filename, ByteBuffer content) {
+            super(filename);
+            this.content = content;
+        }
+
+        @Override
+        public long length() {
+            return content.remaining();
+        }
+
+        @Override
+        public Source open() {
+            return new ByteBufferSource(content.duplicate());
+        }
+
+        @Override
+        String computeMd5() {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(content.duplicate());
+                return ByteString.of(md5.digest()).hex();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class StreamPayload extends FilePayload {
+        private final long length;
+        private final StreamSupplier supplier;
+
+        StreamPayload(String filename, long length, StreamSupplier supplier) {
+            super(filename);
+            this.length = length;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public Source open() throws IOException {
+            return Okio.source(supplier.open());
+        }
+    }
+
+    private static class FileBackedPayload extends FilePayload {
+        private final File file;
+        private final FileDigestCache digestCache;
+
+        FileBackedPayload(File file, FileDigestCache digestCache) {
+            super(file.getName());
+            this.file = file;
+            this.digestCache = digestCache;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public Source open() throws IOException {
+            return Okio.source(file);
+        }
+
+        @Override
+        public FileDigest digest() throws IOException {
+            return digestCache.digest(file);
+        }
+    }
+
+    /** Reads a buffer without copying it into a heap array first */
+    private static class ByteBufferSource implements Source {
+        private final ByteBuffer content;
+
+        ByteBufferSource(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            if (!content.hasRemaining()) {
+                return -1L;
+            }
+            int count = (int) Math.min(byteCount, content.remaining());
+            ByteBuffer slice = content.duplicate();
+            slice.limit(slice.position() + count);
+            int read = sink.write(slice);
+            content.position(content.position() + read);
+            return read;
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -6,7 +6,6 @@ import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
 import com.enosiot.enos.sdk.data.DeviceInfo;
 import com.google.common.collect.Maps;
 
-import java.io.File;
 import java.lang.reflect.Array;
 import java.util.*;
 
@@ -24,6 +23,11 @@ public class IntegrationAttributePostRequest extends BaseIntegrationRequest{
         return RequestAction.POST_ATTRIBUTE_ACTION;
     }
 
+    @Override
+    protected IntegrationAttributePostRequest newInstance() {
+        return new IntegrationAttributePostRequest();
+    }
+
     public static class Builder extends BaseBuilder<IntegrationAttributePostRequest> {
 
         private Map<DeviceInfo, Map<String, Object>> attributes;
@@ -71,7 +75,7 @@ public class IntegrationAttributePostRequest extends BaseIntegrationRequest{
                 Object value = entry.getValue();
 
                 if (value.getClass().isArray()) {
-                    if (Array.get(value, 0) instanceof File) {
+                    if (isFile(Array.get(value, 0))) {
                         int len = Array.getLength(value);
                         Object[] objArray = new Object[len];
                         String[] fileUriArray = new String[len];
@@ -79,24 +83,24 @@ public class IntegrationAttributePostRequest extends BaseIntegrationRequest{
                         for (int i = 0; i < len; i++) {
                             objArray[i] = Array.get(value, i);
 
-                            if (objArray[i] instanceof File) {
-                                fileUriArray[i] = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.ATTRIBUTE, key, (File) objArray[i]);
+                            if (isFile(objArray[i])) {
+                                fileUriArray[i] = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.ATTRIBUTE, key, objArray[i]);
                             }
                         }
 
                         attributeMap.put(key, fileUriArray);
                     }
-                } else if (value instanceof File) {
+                } else if (isFile(value)) {
                     // store value as file
-                    String fileUri = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.ATTRIBUTE, key, (File) value);
+                    String fileUri = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.ATTRIBUTE, key, value);
                     attributeMap.put(key, fileUri);
                 } else if (value instanceof Map) {
                     HashMap<String, Object> replicaMap = Maps.newHashMap();
                     for (Map.Entry<String,Object> subEntry: ((Map<String,Object>) value).entrySet())
                     {
-                        if (subEntry.getValue() instanceof File) {
+                        if (isFile(subEntry.getValue())) {
                             // store sub-value as file
-                            String fileUri = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.ATTRIBUTE, key, ((File) subEntry.getValue()));
+                            String fileUri = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.ATTRIBUTE, key, subEntry.getValue());
                             replicaMap.put(subEntry.getKey(), fileUri);
                         } else {
                             replicaMap.put(subEntry.getKey(), subEntry.getValue());
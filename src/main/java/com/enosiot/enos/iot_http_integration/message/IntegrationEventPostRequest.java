@@ -7,7 +7,6 @@ import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
 import com.enosiot.enos.sdk.data.DeviceInfo;
 import com.google.common.collect.Maps;
 
-import java.io.File;
 import java.util.*;
 
 /**
@@ -24,6 +23,11 @@ public class IntegrationEventPostRequest extends BaseIntegrationRequest {
         return RequestAction.POST_EVENT_ACTION;
     }
 
+    @Override
+    protected IntegrationEventPostRequest newInstance() {
+        return new IntegrationEventPostRequest();
+    }
+
     public static class Builder extends BaseBuilder<IntegrationEventPostRequest> {
 
         private Map<Pair<DeviceInfo/*deviceInfo*/, Long/*time*/>, Map<String/*eventId*/, Map<String, Object>>> events;
@@ -74,9 +78,9 @@ public class IntegrationEventPostRequest extends BaseIntegrationRequest {
                     HashMap<String, Object> replicaMap = Maps.newHashMap();
                     for (Map.Entry<String, Object> subEntry : value.entrySet())
                     {
-                        if (subEntry.getValue() instanceof File) {
+                        if (isFile(subEntry.getValue())) {
                             // store sub-value as file
-                            String fileUri = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.EVENT, key, ((File) subEntry.getValue()));
+                            String fileUri = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.EVENT, key, subEntry.getValue());
                             replicaMap.put(subEntry.getKey(), fileUri);
                         } else {
                             replicaMap.put(subEntry.getKey(), subEntry.getValue());
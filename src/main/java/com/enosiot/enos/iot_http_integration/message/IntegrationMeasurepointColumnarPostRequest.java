@@ -0,0 +1,302 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
+import com.enosiot.enos.iot_mqtt_sdk.core.internals.constants.MethodConstants;
+import com.enosiot.enos.iot_mqtt_sdk.util.StringUtil;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+import lombok.Getter;
+import lombok.NonNull;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measurepoint post request built from columns of primitive values, for series of many samples
+ * per device. Timestamps and values are kept in the arrays they are given in, and written to the
+ * same JSON as {@link IntegrationMeasurepointPostRequest} without boxing a single value.
+ *
+ * <pre>
+ * IntegrationMeasurepointColumnarPostRequest request = IntegrationMeasurepointColumnarPostRequest.builder()
+ *         .addSeries(deviceInfo, times)
+ *         .column("temperature", temperatures)
+ *         .column("count", counts)
+ *         .build();
+ * </pre>
+ *
+ * <p>The arrays are not copied, so they must not be modified until the request has been sent.
+ * A {@code NaN} in a {@code double} column means the measurepoint has no value at that time.
+ * File-type measurepoints are not supported, use {@link IntegrationMeasurepointPostRequest}.
+ */
+public class IntegrationMeasurepointColumnarPostRequest extends BaseIntegrationRequest {
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String getRequestAction() {
+        return RequestAction.POST_MEASUREPOINT_ACTION;
+    }
+
+    @Override
+    protected IntegrationMeasurepointColumnarPostRequest newInstance() {
+        return new IntegrationMeasurepointColumnarPostRequest();
+    }
+
+    @Override
+    protected void writeParams(JsonWriter writer) throws IOException {
+        List<Series> seriesList = getParams();
+        writer.beginArray();
+        for (Series series : seriesList) {
+            series.write(writer);
+        }
+        writer.endArray();
+    }
+
+    /** A series over the limits is sliced by time into series of equal length within them */
+    @Override
+    protected List<Object> splitEntries(long maxBytes, int maxPoints) throws IOException {
+        List<Series> seriesList = getParams();
+        List<Object> entries = new ArrayList<>();
+        for (Series series : seriesList) {
+            int times = series.times.length;
+            if (times <= 1) {
+                entries.add(series);
+                continue;
+            }
+            long slices = Math.max(
+                    ceilDiv(pointCount(series), maxPoints), ceilDiv(encodedLength(series), maxBytes));
+            List<Series> sliced = slice(series, slices);
+            // the samples differ in size, cut finer until every slice fits
+            while (sliced.size() < times && !fits(sliced, maxBytes)) {
+                slices = Math.max(slices, sliced.size()) + 1;
+                sliced = slice(series, slices);
+            }
+            entries.addAll(sliced);
+        }
+        return entries;
+    }
+
+    private static List<Series> slice(Series series, long slices) {
+        int times = series.times.length;
+        int sliceLength = (int) ceilDiv(times, Math.min(slices, times));
+        List<Series> sliced = new ArrayList<>();
+        for (int from = 0; from < times; from += sliceLength) {
+            sliced.add(series.slice(from, Math.min(from + sliceLength, times)));
+        }
+        return sliced;
+    }
+
+    private boolean fits(List<Series> sliced, long maxBytes) throws IOException {
+        for (Series series : sliced) {
+            if (encodedLength(series) > maxBytes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int pointCount(Object entry) {
+        Series series = (Series) entry;
+        return Math.max(series.times.length * series.columns.size(), 1);
+    }
+
+    @Override
+    protected long encodedLength(Object entry) throws IOException {
+        CountingSink countingSink = new CountingSink(Okio.blackhole());
+        BufferedSink sink = Okio.buffer(countingSink);
+        JsonWriter writer = JsonValueWriter.newWriter(sink);
+        writer.beginArray();
+        ((Series) entry).write(writer);
+        writer.endArray();
+        writer.flush();
+        sink.flush();
+        // without the brackets of the array
+        return countingSink.getBytesWritten() - 2;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * Samples of one device, one column per measurepoint, each as long as the timestamps
+     */
+    public static class Series {
+        @Getter
+        private final DeviceInfo deviceInfo;
+
+        @Getter
+        private final long[] times;
+
+        private final List<String> pointIds = new ArrayList<>();
+
+        /** double[], long[] or int[] */
+        private final List<Object> columns = new ArrayList<>();
+
+        Series(DeviceInfo deviceInfo, long[] times) {
+            this.deviceInfo = deviceInfo;
+            this.times = times;
+        }
+
+        public List<String> getPointIds() {
+            return Collections.unmodifiableList(pointIds);
+        }
+
+        /** @return the column of a measurepoint, a double[], long[] or int[] */
+        public Object getColumn(String pointId) {
+            int index = pointIds.indexOf(pointId);
+            return index < 0 ? null : columns.get(index);
+        }
+
+        void addColumn(String pointId, Object column, int length) {
+            Preconditions.checkArgument(
+                    length == times.length,
+                    "column %s has %s values for %s timestamps",
+                    pointId, length, times.length);
+            Preconditions.checkArgument(
+                    !pointIds.contains(pointId), "duplicated column %s", pointId);
+            pointIds.add(pointId);
+            columns.add(column);
+        }
+
+        /** @return the samples from index {@code from}, inclusive, to {@code to}, exclusive */
+        Series slice(int from, int to) {
+            Series slice = new Series(deviceInfo, Arrays.copyOfRange(times, from, to));
+            for (int c = 0; c < columns.size(); c++) {
+                Object column = columns.get(c);
+                if (column instanceof double[]) {
+                    slice.addColumn(pointIds.get(c), Arrays.copyOfRange((double[]) column, from, to), to - from);
+                } else if (column instanceof long[]) {
+                    slice.addColumn(pointIds.get(c), Arrays.copyOfRange((long[]) column, from, to), to - from);
+                } else {
+                    slice.addColumn(pointIds.get(c), Arrays.copyOfRange((int[]) column, from, to), to - from);
+                }
+            }
+            return slice;
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            boolean byAssetId = StringUtil.isNotEmpty(deviceInfo.getAssetId());
+            int columnCount = columns.size();
+            for (int i = 0; i < times.length; i++) {
+                writer.beginObject();
+                if (byAssetId) {
+                    writer.name("assetId").value(deviceInfo.getAssetId());
+                } else {
+                    writer.name("productKey").value(deviceInfo.getProductKey());
+                    writer.name("deviceKey").value(deviceInfo.getDeviceKey());
+                }
+                writer.name("time").value(times[i]);
+                writer.name("measurepoints").beginObject();
+                for (int c = 0; c < columnCount; c++) {
+                    Object column = columns.get(c);
+                    if (column instanceof double[]) {
+                        double value = ((double[]) column)[i];
+                        if (!Double.isNaN(value)) {
+                            writer.name(pointIds.get(c)).value(value);
+                        }
+                    } else if (column instanceof long[]) {
+                        writer.name(pointIds.get(c)).value(((long[]) column)[i]);
+                    } else {
+                        writer.name(pointIds.get(c)).value(((int[]) column)[i]);
+                    }
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+        }
+    }
+
+    public static class Builder extends BaseBuilder<IntegrationMeasurepointColumnarPostRequest> {
+        private final List<Series> seriesList = new ArrayList<>();
+
+        Builder() {
+        }
+
+        public Builder realTimeIntegration(boolean isRealtimeIntegration) {
+            this.isRealtimeIntegration = isRealtimeIntegration;
+            return this;
+        }
+
+        /**
+         * Start a series of samples of a device. Columns are added to the returned series.
+         *
+         * @param deviceInfo
+         * @param times timestamps of the samples, in milliseconds, unique within the device
+         * @return the series
+         */
+        public SeriesBuilder addSeries(@NonNull DeviceInfo deviceInfo, @NonNull long[] times) {
+            Series series = new Series(deviceInfo, times);
+            seriesList.add(series);
+            return new SeriesBuilder(this, series);
+        }
+
+        @Override
+        protected Object createParams() {
+            return new ArrayList<>(seriesList);
+        }
+
+        @Override
+        protected String createMethod() {
+            return MethodConstants.INTEGRATION_MEASUREPOINT_POST;
+        }
+
+        @Override
+        public IntegrationMeasurepointColumnarPostRequest build() {
+            IntegrationMeasurepointColumnarPostRequest request = super.build();
+            request.setFiles(this.files);
+            return request;
+        }
+
+        @Override
+        protected IntegrationMeasurepointColumnarPostRequest createRequestInstance() {
+            return new IntegrationMeasurepointColumnarPostRequest();
+        }
+    }
+
+    /**
+     * Adds columns to a series. Continue with {@link #addSeries} for the next device or {@link
+     * #build()} to create the request.
+     */
+    public static class SeriesBuilder {
+        private final Builder builder;
+        private final Series series;
+
+        SeriesBuilder(Builder builder, Series series) {
+            this.builder = builder;
+            this.series = series;
+        }
+
+        public SeriesBuilder column(@NonNull String pointId, @NonNull double[] values) {
+            series.addColumn(pointId, values, values.length);
+            return this;
+        }
+
+        public SeriesBuilder column(@NonNull String pointId, @NonNull long[] values) {
+            series.addColumn(pointId, values, values.length);
+            return this;
+        }
+
+        public SeriesBuilder column(@NonNull String pointId, @NonNull int[] values) {
+            series.addColumn(pointId, values, values.length);
+            return this;
+        }
+
+        public SeriesBuilder addSeries(DeviceInfo deviceInfo, long[] times) {
+            return builder.addSeries(deviceInfo, times);
+        }
+
+        public IntegrationMeasurepointColumnarPostRequest build() {
+            return builder.build();
+        }
+    }
+}
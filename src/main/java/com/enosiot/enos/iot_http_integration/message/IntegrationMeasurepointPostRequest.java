@@ -9,7 +9,6 @@ import com.google.common.collect.Maps;
 import lombok.Getter;
 import lombok.Setter;
 
-import java.io.File;
 import java.lang.reflect.Array;
 import java.util.*;
 
@@ -30,6 +29,11 @@ public class IntegrationMeasurepointPostRequest extends BaseIntegrationRequest {
         return RequestAction.POST_MEASUREPOINT_ACTION;
     }
 
+    @Override
+    protected IntegrationMeasurepointPostRequest newInstance() {
+        return new IntegrationMeasurepointPostRequest();
+    }
+
 
     public static class Builder extends BaseBuilder<IntegrationMeasurepointPostRequest> {
         private Map<Pair<DeviceInfo/*deviceInfo*/, Long/*time*/>, Map<String/*pointId*/, Object/*value*/>> measurepoints;
@@ -78,7 +82,7 @@ public class IntegrationMeasurepointPostRequest extends BaseIntegrationRequest {
                 Object value = entry.getValue();
 
                 if (value.getClass().isArray()) {
-                    if (Array.get(value, 0) instanceof File) {
+                    if (isFile(Array.get(value, 0))) {
                         int len = Array.getLength(value);
                         Object[] objArray = new Object[len];
                         String[] fileUriArray = new String[len];
@@ -86,23 +90,23 @@ public class IntegrationMeasurepointPostRequest extends BaseIntegrationRequest {
                         for (int i = 0; i < len; i++) {
                             objArray[i] = Array.get(value, i);
 
-                            if (objArray[i] instanceof File) {
-                                fileUriArray[i] = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.MEASUREPOINT, key, (File) objArray[i]);
+                            if (isFile(objArray[i])) {
+                                fileUriArray[i] = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.MEASUREPOINT, key, objArray[i]);
                             }
                         }
 
                         measurepointMap.put(key, fileUriArray);
                     }
-                } else if (value instanceof File) {
+                } else if (isFile(value)) {
                     // store value as file
-                    String fileUri = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.MEASUREPOINT, key, (File) value);
+                    String fileUri = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.MEASUREPOINT, key, value);
                     measurepointMap.put(key, fileUri);
                 } else if (value instanceof Map) {
                     HashMap<String, Object> replicaMap = Maps.newHashMap();
                     for (Map.Entry<String, Object> subEntry : ((Map<String, Object>) value).entrySet()) {
-                        if (subEntry.getValue() instanceof File) {
+                        if (isFile(subEntry.getValue())) {
                             // store sub-value as file
-                            String fileUri = LOCAL_FILE_SCHEMA + storeFile(deviceInfo, FeatureType.MEASUREPOINT, key, ((File) subEntry.getValue()));
+                            String fileUri = LOCAL_FILE_SCHEMA + storeFileValue(deviceInfo, FeatureType.MEASUREPOINT, key, subEntry.getValue());
                             replicaMap.put(subEntry.getKey(), fileUri);
                         } else {
                             replicaMap.put(subEntry.getKey(), subEntry.getValue());
@@ -0,0 +1,111 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_http_integration.progress.CountingSink;
+import com.enosiot.enos.iot_mqtt_sdk.util.ExactValue;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import okio.BufferedSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+/**
+ * Streams message values as JSON without building an intermediate tree or string.
+ *
+ * <p>Maps, iterables, arrays, strings, numbers and booleans are written directly. Anything else
+ * is handed over to Gson, so the output stays compatible with what the message used to be
+ * serialized to. As with Gson, {@code null} map values are omitted and HTML characters such as
+ * {@code <} and {@code =} are escaped.
+ */
+public final class JsonValueWriter {
+    private static final Gson FALLBACK_GSON = new Gson();
+
+    private JsonValueWriter() {
+    }
+
+    /**
+     * Create a JSON writer that encodes UTF-8 directly into the sink. The writer must not be
+     * closed, as the sink is still owned by the caller.
+     */
+    public static JsonWriter newWriter(BufferedSink sink) {
+        JsonWriter writer = new JsonWriter(new Utf8SinkWriter(sink));
+        writer.setSerializeNulls(false);
+        writer.setHtmlSafe(true);
+        return writer;
+    }
+
+    /**
+     * Measure how many bytes the value takes once encoded, without keeping the encoded bytes
+     */
+    public static long encodedLength(Object value) throws IOException {
+        CountingSink countingSink = new CountingSink(Okio.blackhole());
+        BufferedSink sink = Okio.buffer(countingSink);
+        JsonWriter writer = newWriter(sink);
+        write(writer, value);
+        writer.flush();
+        sink.flush();
+        return countingSink.getBytesWritten();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void write(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof String) {
+            writer.value((String) value);
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Character) {
+            writer.value(String.valueOf(value));
+        } else if (value instanceof Map) {
+            writer.beginObject();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                writer.name(String.valueOf(entry.getKey()));
+                write(writer, entry.getValue());
+            }
+            writer.endObject();
+        } else if (value instanceof Iterable) {
+            writer.beginArray();
+            for (Object element : (Iterable<Object>) value) {
+                write(writer, element);
+            }
+            writer.endArray();
+        } else if (value.getClass().isArray()) {
+            writeArray(writer, value);
+        } else if (value instanceof ExactValue) {
+            write(writer, ((ExactValue) value).get());
+        } else {
+            FALLBACK_GSON.toJson(value, value.getClass(), writer);
+        }
+    }
+
+    private static void writeArray(JsonWriter writer, Object array) throws IOException {
+        writer.beginArray();
+        if (array instanceof double[]) {
+            for (double v : (double[]) array) {
+                writer.value(v);
+            }
+        } else if (array instanceof long[]) {
+            for (long v : (long[]) array) {
+                writer.value(v);
+            }
+        } else if (array instanceof int[]) {
+            for (int v : (int[]) array) {
+                writer.value(v);
+            }
+        } else if (array instanceof Object[]) {
+            for (Object v : (Object[]) array) {
+                write(writer, v);
+            }
+        } else {
+            for (int i = 0, len = Array.getLength(array); i < len; i++) {
+                write(writer, Array.get(array, i));
+            }
+        }
+        writer.endArray();
+    }
+}
@@ -0,0 +1,16 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import lombok.Getter;
+
+/**
+ * Attached file whose content is a {@link FilePayload} rather than a {@link java.io.File}, which
+ * is left {@code null}. Use {@link FilePayload#from(UploadFileInfo)} to read any attached file.
+ */
+public class PayloadFileInfo extends UploadFileInfo {
+    @Getter private final FilePayload payload;
+
+    PayloadFileInfo(FilePayload payload) {
+        this.payload = payload;
+    }
+}
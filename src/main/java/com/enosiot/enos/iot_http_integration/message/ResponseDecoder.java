@@ -0,0 +1,381 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_http_integration.TokenResponse;
+import com.enosiot.enos.iot_http_integration.dto.FileMetaDto;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import lombok.NonNull;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes response bodies by streaming them through type adapters, without reading them into a
+ * byte array or a string first. UTF-8 is decoded straight from the body's source.
+ *
+ * <p>The responses of the broker and of the token service have dedicated adapters that skip
+ * unknown fields and keep the default value of {@code null} fields. Other types are bound by
+ * Gson reflectively.
+ */
+public final class ResponseDecoder {
+    private static final ByteString UTF8_BOM = ByteString.decodeHex("efbbbf");
+
+    private static final TypeAdapter<UriInfo> URI_INFO = new UriInfoAdapter();
+    private static final TypeAdapter<IntegrationData> INTEGRATION_DATA = new IntegrationDataAdapter();
+    private static final TypeAdapter<FileMetaDto> FILE_META = new FileMetaAdapter();
+    private static final TypeAdapter<TokenResponse.ResponseData> TOKEN_DATA = new TokenDataAdapter();
+
+    private static final Gson GSON =
+            new GsonBuilder()
+                    .registerTypeAdapter(IntegrationResponse.class, new IntegrationResponseAdapter())
+                    .registerTypeAdapter(IntegrationData.class, INTEGRATION_DATA)
+                    .registerTypeAdapter(UriInfo.class, URI_INFO)
+                    .registerTypeAdapter(FileInfoResponse.class, new FileInfoResponseAdapter())
+                    .registerTypeAdapter(FileMetaDto.class, FILE_META)
+                    .registerTypeAdapter(FileDownloadResponse.class, new FileDownloadResponseAdapter())
+                    .registerTypeAdapter(TokenResponse.class, new TokenResponseAdapter())
+                    .registerTypeAdapter(TokenResponse.ResponseData.class, TOKEN_DATA)
+                    .create();
+
+    private ResponseDecoder() {
+    }
+
+    /**
+     * Decode a response body, which is closed whether decoding succeeds or not
+     *
+     * @param body
+     * @param type
+     * @return decoded response, {@code null} if the body is empty or {@code null}
+     * @throws IOException if the body could not be read
+     * @throws JsonParseException if the body is not a valid response
+     */
+    public static <T> T decode(@NonNull ResponseBody body, @NonNull Class<T> type) throws IOException {
+        try (ResponseBody closing = body;
+                JsonReader reader = new JsonReader(newReader(closing))) {
+            // as lenient as Gson#fromJson, which the responses used to be decoded with
+            reader.setLenient(true);
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                return null;
+            }
+            return GSON.getAdapter(type).read(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /** UTF-8, the charset of every response, is decoded without an intermediate byte buffer */
+    private static Reader newReader(ResponseBody body) throws IOException {
+        MediaType contentType = body.contentType();
+        Charset charset = contentType == null ? null : contentType.charset();
+        if (charset != null && !UTF_8.equals(charset)) {
+            return body.charStream();
+        }
+        BufferedSource source = body.source();
+        if (source.rangeEquals(0, UTF8_BOM)) {
+            source.skip(UTF8_BOM.size());
+        }
+        return new Utf8SourceReader(source);
+    }
+
+    /** @return {@code true} if the value has been consumed because it is {@code null} */
+    private static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        return skipNull(reader) ? null : reader.nextString();
+    }
+
+    private static Long nextLong(JsonReader reader) throws IOException {
+        return skipNull(reader) ? null : reader.nextLong();
+    }
+
+    /** Base of the adapters, which only read */
+    private abstract static class ReadingAdapter<T> extends TypeAdapter<T> {
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            throw new UnsupportedOperationException("responses are only decoded");
+        }
+
+        @Override
+        public T read(JsonReader reader) throws IOException {
+            if (skipNull(reader)) {
+                return null;
+            }
+            T value = create();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (skipNull(reader)) {
+                    continue;
+                }
+                if (!readField(reader, name, value)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return value;
+        }
+
+        abstract T create();
+
+        /** @return {@code false} if the field is unknown and has not been consumed */
+        abstract boolean readField(JsonReader reader, String name, T value) throws IOException;
+    }
+
+    private static class IntegrationResponseAdapter extends ReadingAdapter<IntegrationResponse> {
+        @Override
+        IntegrationResponse create() {
+            return new IntegrationResponse();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, IntegrationResponse value) throws IOException {
+            switch (name) {
+                case "code":
+                    value.setCode(reader.nextInt());
+                    return true;
+                case "msg":
+                    value.setMsg(reader.nextString());
+                    return true;
+                case "requestId":
+                    value.setRequestId(reader.nextString());
+                    return true;
+                case "data":
+                    value.setData(INTEGRATION_DATA.read(reader));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class IntegrationDataAdapter extends ReadingAdapter<IntegrationData> {
+        @Override
+        IntegrationData create() {
+            return new IntegrationData();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, IntegrationData value) throws IOException {
+            if (!"uriInfoList".equals(name)) {
+                return false;
+            }
+            List<UriInfo> uriInfos = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                uriInfos.add(URI_INFO.read(reader));
+            }
+            reader.endArray();
+            value.setUriInfoList(uriInfos);
+            return true;
+        }
+    }
+
+    private static class UriInfoAdapter extends ReadingAdapter<UriInfo> {
+        @Override
+        UriInfo create() {
+            return new UriInfo();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, UriInfo value) throws IOException {
+            switch (name) {
+                case "fileUri":
+                    value.setFileUri(reader.nextString());
+                    return true;
+                case "uploadUrl":
+                    value.setUploadUrl(reader.nextString());
+                    return true;
+                case "filename":
+                    value.setFilename(reader.nextString());
+                    return true;
+                case "headers":
+                    Map<String, String> headers = new LinkedHashMap<>();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        headers.put(reader.nextName(), nextString(reader));
+                    }
+                    reader.endObject();
+                    value.setHeaders(headers);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class FileInfoResponseAdapter extends ReadingAdapter<FileInfoResponse> {
+        @Override
+        FileInfoResponse create() {
+            return new FileInfoResponse();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, FileInfoResponse value) throws IOException {
+            switch (name) {
+                case "code":
+                    value.setCode(reader.nextInt());
+                    return true;
+                case "msg":
+                    value.setMsg(reader.nextString());
+                    return true;
+                case "requestId":
+                    value.setRequestId(reader.nextString());
+                    return true;
+                case "data":
+                    value.setData(FILE_META.read(reader));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class FileMetaAdapter extends ReadingAdapter<FileMetaDto> {
+        @Override
+        FileMetaDto create() {
+            return new FileMetaDto();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, FileMetaDto value) throws IOException {
+            switch (name) {
+                case "orgId":
+                    value.setOrgId(reader.nextString());
+                    return true;
+                case "category":
+                    value.setCategory(reader.nextString());
+                    return true;
+                case "fileUri":
+                    value.setFileUri(reader.nextString());
+                    return true;
+                case "originalFilename":
+                    value.setOriginalFilename(reader.nextString());
+                    return true;
+                case "fileSize":
+                    value.setFileSize(nextLong(reader));
+                    return true;
+                case "md5":
+                    value.setMd5(reader.nextString());
+                    return true;
+                case "signMethod":
+                    value.setSignMethod(reader.nextString());
+                    return true;
+                case "sign":
+                    value.setSign(reader.nextString());
+                    return true;
+                case "createTime":
+                    value.setCreateTime(nextLong(reader));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class FileDownloadResponseAdapter extends ReadingAdapter<FileDownloadResponse> {
+        @Override
+        FileDownloadResponse create() {
+            return new FileDownloadResponse();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, FileDownloadResponse value) throws IOException {
+            switch (name) {
+                case "code":
+                    value.setCode(reader.nextInt());
+                    return true;
+                case "msg":
+                    value.setMsg(reader.nextString());
+                    return true;
+                case "requestId":
+                    // declared as a number, though the broker may send any string
+                    String requestId = reader.nextString();
+                    try {
+                        value.setRequestId(Integer.parseInt(requestId));
+                    } catch (NumberFormatException e) {
+                        value.setRequestId(0);
+                    }
+                    return true;
+                case "data":
+                    value.setData(reader.nextString());
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class TokenResponseAdapter extends ReadingAdapter<TokenResponse> {
+        @Override
+        TokenResponse create() {
+            return new TokenResponse();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, TokenResponse value) throws IOException {
+            switch (name) {
+                case "status":
+                    value.setStatus(reader.nextInt());
+                    return true;
+                case "msg":
+                    value.setMsg(reader.nextString());
+                    return true;
+                case "business":
+                    value.setBusiness(reader.nextString());
+                    return true;
+                case "data":
+                    value.setData(TOKEN_DATA.read(reader));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class TokenDataAdapter extends ReadingAdapter<TokenResponse.ResponseData> {
+        @Override
+        TokenResponse.ResponseData create() {
+            return new TokenResponse.ResponseData();
+        }
+
+        @Override
+        boolean readField(JsonReader reader, String name, TokenResponse.ResponseData value)
+                throws IOException {
+            switch (name) {
+                case "accessToken":
+                    value.setAccessToken(reader.nextString());
+                    return true;
+                case "expire":
+                    value.setExpire(reader.nextInt());
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import lombok.Getter;
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Response of a request published in parts, see {@link BaseIntegrationRequest#split}. It is
+ * successful only if every part is; otherwise it takes the code of the first failed part, and
+ * {@link #getFailedParts()} tells which parts to publish again.
+ */
+public class SplitIntegrationResponse extends IntegrationResponse {
+    /** Outcome of one part */
+    @Value
+    public static class Part {
+        /** position of the part in the original request */
+        int index;
+
+        /** id the part was published with, see {@link BaseIntegrationRequest#split} */
+        String requestId;
+
+        BaseIntegrationRequest request;
+
+        /** response of the broker, {@code null} if the part failed before a response */
+        IntegrationResponse response;
+
+        /** why the part failed, {@code null} if a response has been received */
+        Throwable failure;
+
+        public boolean isSuccess() {
+            return response != null && response.isSuccess();
+        }
+    }
+
+    /** id of the original request, from which the ids of its parts are derived */
+    @Getter private final String parentRequestId;
+
+    /** outcome of every part, in order */
+    @Getter private final List<Part> parts;
+
+    public SplitIntegrationResponse(String parentRequestId, List<Part> parts) {
+        this.parentRequestId = parentRequestId;
+        this.parts = Collections.unmodifiableList(parts);
+    }
+
+    /** @return the parts not accepted by the broker, in order */
+    public List<Part> getFailedParts() {
+        return parts.stream().filter(part -> !part.isSuccess()).collect(Collectors.toList());
+    }
+
+    /** @return the requests of the failed parts, to be published again */
+    public List<BaseIntegrationRequest> getFailedRequests() {
+        return parts.stream()
+                .filter(part -> !part.isSuccess())
+                .map(Part::getRequest)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,83 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} that encodes chars as UTF-8 straight into an okio {@link BufferedSink},
+ * independent of the platform charset. Surrogate pairs split across two writes are joined.
+ *
+ * <p>{@link #flush()} and {@link #close()} never flush or close the underlying sink, which stays
+ * owned by the caller.
+ */
+final class Utf8SinkWriter extends Writer {
+    private final BufferedSink sink;
+
+    private char pendingHighSurrogate;
+
+    Utf8SinkWriter(BufferedSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        char ch = (char) c;
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(ch)) {
+                sink.writeUtf8CodePoint(Character.toCodePoint(high, ch));
+                return;
+            }
+            // unpaired surrogate, replaced the same way okio does
+            sink.writeUtf8CodePoint('?');
+        }
+
+        if (Character.isHighSurrogate(ch)) {
+            pendingHighSurrogate = ch;
+        } else {
+            sink.writeUtf8CodePoint(ch);
+        }
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) throws IOException {
+        for (int i = off, end = off + len; i < end; i++) {
+            write(buf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        int end = off + len;
+        if (pendingHighSurrogate != 0) {
+            write(str.charAt(off++));
+        }
+        if (off < end && Character.isHighSurrogate(str.charAt(end - 1))) {
+            // keep the trailing high surrogate until its low half arrives
+            end--;
+            sink.writeUtf8(str, off, end);
+            pendingHighSurrogate = str.charAt(end);
+        } else if (off < end) {
+            sink.writeUtf8(str, off, end);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // the sink is flushed by its owner
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            sink.writeUtf8CodePoint('?');
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@link Reader} that decodes UTF-8 straight from the buffer of an okio {@link BufferedSource},
+ * without copying the bytes into a decoder buffer first. Malformed input is replaced with {@code
+ * U+FFFD}.
+ *
+ * <p>A read returns the chars already buffered rather than blocking for more, and never splits a
+ * multi-byte sequence.
+ */
+final class Utf8SourceReader extends Reader {
+    private final BufferedSource source;
+
+    /** low half of a supplementary code point that did not fit into the previous read */
+    private char pendingLowSurrogate;
+
+    Utf8SourceReader(BufferedSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read(char[] buf, int off, int len) throws IOException {
+        if (len <= 0) {
+            return 0;
+        }
+        if (pendingLowSurrogate != 0) {
+            buf[off] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+            return 1;
+        }
+        Buffer buffer = source.buffer();
+        if (buffer.size() == 0 && source.exhausted()) {
+            return -1;
+        }
+
+        // a UTF-8 byte never decodes to more than one char, so len bytes always fit
+        long byteCount = wholeCharBytes(buffer, Math.min(buffer.size(), len));
+        if (byteCount == 0) {
+            // a single sequence is split across the buffer boundary, or the only one is too long
+            int codePoint = source.readUtf8CodePoint();
+            if (codePoint <= Character.MAX_VALUE) {
+                buf[off] = (char) codePoint;
+                return 1;
+            }
+            buf[off] = Character.highSurrogate(codePoint);
+            if (len > 1) {
+                buf[off + 1] = Character.lowSurrogate(codePoint);
+                return 2;
+            }
+            pendingLowSurrogate = Character.lowSurrogate(codePoint);
+            return 1;
+        }
+
+        String chars = buffer.readUtf8(byteCount);
+        chars.getChars(0, chars.length(), buf, off);
+        return chars.length();
+    }
+
+    /** @return the longest prefix of {@code byteCount} bytes that doesn't end in a partial sequence */
+    private static long wholeCharBytes(Buffer buffer, long byteCount) {
+        long lead = byteCount - 1;
+        while (lead > 0 && lead > byteCount - 4 && (buffer.getByte(lead) & 0xc0) == 0x80) {
+            lead--;
+        }
+        int b = buffer.getByte(lead) & 0xff;
+        int sequenceLength = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        return lead + sequenceLength <= byteCount ? byteCount : lead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,31 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+/**
+ * Phases of an HTTP call, as reported by {@link MetricsEventListener}, and the wait of its
+ * callback
+ */
+public enum HttpPhase {
+    /** DNS lookup */
+    DNS,
+
+    /** TCP connect, including the TLS handshake */
+    CONNECT,
+
+    /** TLS handshake */
+    TLS,
+
+    /** writing the request headers and body */
+    REQUEST_WRITE,
+
+    /** from the request written to the first byte of the response headers */
+    RESPONSE_WAIT,
+
+    /** reading the response headers and body */
+    RESPONSE_READ,
+
+    /**
+     * from the outcome of an asynchronous call to its callback starting on the callback executor,
+     * not part of the call latency
+     */
+    CALLBACK_WAIT
+}
@@ -0,0 +1,60 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+import com.enosiot.enos.iot_http_integration.retry.FailureType;
+
+/**
+ * Receives the metrics of the HTTP calls of a connection. Every call is identified by its action,
+ * one of {@code RequestAction} for broker calls, or {@link MetricsEventListener#TOKEN_GET_ACTION}
+ * and {@link MetricsEventListener#TOKEN_REFRESH_ACTION} for token service calls.
+ *
+ * <p>Methods are invoked on the threads executing the calls and must not block. All of them do
+ * nothing by default.
+ */
+public interface IHttpMetrics {
+    /** A call has started */
+    default void onCallStart(String action) {
+    }
+
+    /**
+     * A call has ended, after its response body has been consumed or it has failed
+     *
+     * @param action
+     * @param latencyNanos time from the start of the call
+     * @param success {@code true} if a 2xx response has been received
+     */
+    default void onCallEnd(String action, long latencyNanos, boolean success) {
+    }
+
+    /** A phase of a call has completed */
+    default void onPhase(String action, HttpPhase phase, long durationNanos) {
+    }
+
+    /** Request headers and body bytes written by a call */
+    default void onBytesSent(String action, long bytes) {
+    }
+
+    /** Response body bytes read by a call */
+    default void onBytesReceived(String action, long bytes) {
+    }
+
+    /**
+     * A form-data part of a call has been compressed
+     *
+     * @param action
+     * @param uncompressedBytes
+     * @param compressedBytes
+     * @param cpuNanos CPU time of the compressing thread, or wall time if not supported
+     */
+    default void onCompression(String action, long uncompressedBytes, long compressedBytes, long cpuNanos) {
+    }
+
+    /**
+     * A failed attempt of a call is about to be retried
+     *
+     * @param action
+     * @param failure why the attempt failed
+     * @param attempt number of the failed attempt, starting from {@code 1}
+     */
+    default void onRetry(String action, FailureType failure, int attempt) {
+    }
+}
@@ -0,0 +1,220 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+import com.enosiot.enos.iot_http_integration.retry.FailureType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics kept in memory per action, to be scraped with {@link #getActions()} or printed with
+ * {@link #dump()}
+ */
+public class InMemoryHttpMetrics implements IHttpMetrics {
+    /** Metrics of a single action */
+    public static class ActionMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final Map<HttpPhase, LatencyHistogram> phases = new EnumMap<>(HttpPhase.class);
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder compressedParts = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder compressionCpuNanos = new LongAdder();
+        private final Map<FailureType, LongAdder> retries = new EnumMap<>(FailureType.class);
+
+        ActionMetrics() {
+            for (HttpPhase phase : HttpPhase.values()) {
+                phases.put(phase, new LatencyHistogram());
+            }
+            for (FailureType failure : FailureType.values()) {
+                retries.put(failure, new LongAdder());
+            }
+        }
+
+        /** latency of the calls, from their start to their end */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public LatencyHistogram getPhase(HttpPhase phase) {
+            return phases.get(phase);
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /** @return retries of the calls, each of them also counted as a call */
+        public long getRetries() {
+            long sum = 0L;
+            for (LongAdder adder : retries.values()) {
+                sum += adder.sum();
+            }
+            return sum;
+        }
+
+        public long getRetries(FailureType failure) {
+            return retries.get(failure).sum();
+        }
+
+        public long getCompressedParts() {
+            return compressedParts.sum();
+        }
+
+        /** @return compressed size of the compressed parts over their original size */
+        public double getCompressionRatio() {
+            long uncompressed = uncompressedBytes.sum();
+            return uncompressed == 0 ? 1.0 : (double) compressedBytes.sum() / uncompressed;
+        }
+
+        public long getCompressionCpuTime(TimeUnit unit) {
+            return unit.convert(compressionCpuNanos.sum(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final ConcurrentHashMap<String, ActionMetrics> actions = new ConcurrentHashMap<>();
+
+    /** @return metrics by action, sorted by action */
+    public Map<String, ActionMetrics> getActions() {
+        return Collections.unmodifiableMap(new TreeMap<>(actions));
+    }
+
+    /** @return metrics of an action, {@code null} if it has not been called */
+    public ActionMetrics getAction(String action) {
+        return actions.get(action);
+    }
+
+    /** @return a table of the metrics, latencies in milliseconds */
+    public String dump() {
+        StringBuilder builder = new StringBuilder(String.format(
+                "%-22s %9s %8s %8s %9s %9s %9s %9s %12s %12s%n",
+                "action", "calls", "failed", "inflight", "mean", "p50", "p99", "max", "sent", "received"));
+        for (Map.Entry<String, ActionMetrics> entry : getActions().entrySet()) {
+            ActionMetrics metrics = entry.getValue();
+            LatencyHistogram latency = metrics.getLatency();
+            builder.append(String.format(
+                    "%-22s %9d %8d %8d %9d %9d %9d %9d %12d %12d%n",
+                    entry.getKey(),
+                    metrics.getCalls(),
+                    metrics.getFailures(),
+                    metrics.getInFlight(),
+                    latency.getMean(TimeUnit.MILLISECONDS),
+                    latency.getPercentile(0.5, TimeUnit.MILLISECONDS),
+                    latency.getPercentile(0.99, TimeUnit.MILLISECONDS),
+                    latency.getMax(TimeUnit.MILLISECONDS),
+                    metrics.getBytesSent(),
+                    metrics.getBytesReceived()));
+            if (metrics.getRetries() > 0) {
+                StringBuilder byFailure = new StringBuilder();
+                for (FailureType failure : FailureType.values()) {
+                    long count = metrics.getRetries(failure);
+                    if (count > 0) {
+                        byFailure.append(byFailure.length() == 0 ? "" : ", ")
+                                .append(failure.name().toLowerCase())
+                                .append(' ')
+                                .append(count);
+                    }
+                }
+                builder.append(String.format(
+                        "  %-20s %9d    %s%n", "retries", metrics.getRetries(), byFailure));
+            }
+            if (metrics.getCompressedParts() > 0) {
+                builder.append(String.format(
+                        "  %-20s %9d    ratio %.3f, cpu %d ms%n",
+                        "compression",
+                        metrics.getCompressedParts(),
+                        metrics.getCompressionRatio(),
+                        metrics.getCompressionCpuTime(TimeUnit.MILLISECONDS)));
+            }
+            for (HttpPhase phase : HttpPhase.values()) {
+                LatencyHistogram histogram = metrics.getPhase(phase);
+                if (histogram.getCount() > 0) {
+                    builder.append(String.format(
+                            "  %-20s %9d %8s %8s %9d %9d %9d %9d%n",
+                            phase.name().toLowerCase(),
+                            histogram.getCount(),
+                            "",
+                            "",
+                            histogram.getMean(TimeUnit.MILLISECONDS),
+                            histogram.getPercentile(0.5, TimeUnit.MILLISECONDS),
+                            histogram.getPercentile(0.99, TimeUnit.MILLISECONDS),
+                            histogram.getMax(TimeUnit.MILLISECONDS)));
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void onCallStart(String action) {
+        actionMetrics(action).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void onCallEnd(String action, long latencyNanos, boolean success) {
+        ActionMetrics metrics = actionMetrics(action);
+        metrics.inFlight.decrementAndGet();
+        metrics.latency.record(latencyNanos);
+        if (!success) {
+            metrics.failures.increment();
+        }
+    }
+
+    @Override
+    public void onPhase(String action, HttpPhase phase, long durationNanos) {
+        actionMetrics(action).getPhase(phase).record(durationNanos);
+    }
+
+    @Override
+    public void onBytesSent(String action, long bytes) {
+        actionMetrics(action).bytesSent.add(bytes);
+    }
+
+    @Override
+    public void onBytesReceived(String action, long bytes) {
+        actionMetrics(action).bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void onCompression(String action, long uncompressedBytes, long compressedBytes, long cpuNanos) {
+        ActionMetrics metrics = actionMetrics(action);
+        metrics.compressedParts.increment();
+        metrics.uncompressedBytes.add(uncompressedBytes);
+        metrics.compressedBytes.add(compressedBytes);
+        metrics.compressionCpuNanos.add(cpuNanos);
+    }
+
+    @Override
+    public void onRetry(String action, FailureType failure, int attempt) {
+        actionMetrics(action).retries.get(failure).increment();
+    }
+
+    private ActionMetrics actionMetrics(String action) {
+        ActionMetrics metrics = actions.get(action);
+        return metrics != null ? metrics : actions.computeIfAbsent(action, k -> new ActionMetrics());
+    }
+}
@@ -0,0 +1,89 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, four per power of two of microseconds,
+ * which bounds the relative error of the percentiles to 25%. Latencies above 2^36 us (about
+ * 19 hours) are counted in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(value)));
+        count.increment();
+        sumNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMean(TimeUnit unit) {
+        long n = count.sum();
+        return n == 0 ? 0L : unit.convert(sumNanos.sum() / n, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param quantile between 0 and 1, such as {@code 0.99}
+     * @return upper bound of the bucket holding the quantile
+     */
+    public long getPercentile(double quantile, TimeUnit unit) {
+        long n = 0L;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(Math.min(1.0, Math.max(0.0, quantile)) * n);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1L, rank)) {
+                return unit.convert(Math.min(upperBoundMicros(i), getMax(TimeUnit.MICROSECONDS)), TimeUnit.MICROSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < 1) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        // position within [2^exponent, 2^(exponent + 1))
+        int sub = exponent < 2
+                ? (int) (micros - (1L << exponent)) * SUB_BUCKETS >> exponent
+                : (int) ((micros >> (exponent - 2)) & (SUB_BUCKETS - 1));
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        int exponent = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return (1L << exponent) + (((long) (sub + 1) << exponent) / SUB_BUCKETS);
+    }
+}
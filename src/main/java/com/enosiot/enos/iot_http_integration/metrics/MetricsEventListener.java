@@ -0,0 +1,199 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+import lombok.NonNull;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+/**
+ * OkHttp event listener reporting calls to an {@link IHttpMetrics}, split into the {@link
+ * HttpPhase}s. The action of a call is taken from the {@code action} query parameter of broker
+ * calls, or from the path of token service calls. Events are forwarded to the listener the client
+ * has been configured with.
+ */
+public class MetricsEventListener extends EventListener {
+    public static final String TOKEN_GET_ACTION = "getToken";
+    public static final String TOKEN_REFRESH_ACTION = "refreshToken";
+
+    /** action of calls that are neither broker nor token service calls, such as lark uploads */
+    public static final String OTHER_ACTION = "other";
+
+    /**
+     * Create a factory of listeners reporting to {@code metrics}
+     *
+     * @param metrics
+     * @param delegate factory of the listeners events are forwarded to, usually {@code
+     *     client.eventListenerFactory()}
+     */
+    public static EventListener.Factory factory(
+            @NonNull IHttpMetrics metrics, @NonNull EventListener.Factory delegate) {
+        return call -> new MetricsEventListener(metrics, delegate.create(call), actionOf(call.request()));
+    }
+
+    /** @return action of a call, as reported to the metrics */
+    public static String actionOf(Request request) {
+        String action = request.url().queryParameter("action");
+        if (action != null) {
+            return action;
+        }
+        String path = request.url().encodedPath();
+        if (path.endsWith("/token/get")) {
+            return TOKEN_GET_ACTION;
+        }
+        if (path.endsWith("/token/refresh")) {
+            return TOKEN_REFRESH_ACTION;
+        }
+        return OTHER_ACTION;
+    }
+
+    private final IHttpMetrics metrics;
+    private final EventListener delegate;
+    private final String action;
+
+    private long callStartNanos;
+    private long dnsStartNanos;
+    private long connectStartNanos;
+    private long secureConnectStartNanos;
+    private long requestStartNanos;
+    private long requestEndNanos;
+    private long responseStartNanos;
+    private boolean success;
+
+    private MetricsEventListener(IHttpMetrics metrics, EventListener delegate, String action) {
+        this.metrics = metrics;
+        this.delegate = delegate;
+        this.action = action;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStartNanos = System.nanoTime();
+        metrics.onCallStart(action);
+        delegate.callStart(call);
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStartNanos = System.nanoTime();
+        delegate.dnsStart(call, domainName);
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        metrics.onPhase(action, HttpPhase.DNS, System.nanoTime() - dnsStartNanos);
+        delegate.dnsEnd(call, domainName, inetAddressList);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStartNanos = System.nanoTime();
+        delegate.connectStart(call, inetSocketAddress, proxy);
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStartNanos = System.nanoTime();
+        delegate.secureConnectStart(call);
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        metrics.onPhase(action, HttpPhase.TLS, System.nanoTime() - secureConnectStartNanos);
+        delegate.secureConnectEnd(call, handshake);
+    }
+
+    @Override
+    public void connectEnd(
+            Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        metrics.onPhase(action, HttpPhase.CONNECT, System.nanoTime() - connectStartNanos);
+        delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+    }
+
+    @Override
+    public void connectFailed(
+            Call call,
+            InetSocketAddress inetSocketAddress,
+            Proxy proxy,
+            Protocol protocol,
+            IOException ioe) {
+        metrics.onPhase(action, HttpPhase.CONNECT, System.nanoTime() - connectStartNanos);
+        delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        delegate.connectionAcquired(call, connection);
+    }
+
+    @Override
+    public void connectionReleased(Call call, Connection connection) {
+        delegate.connectionReleased(call, connection);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStartNanos = System.nanoTime();
+        delegate.requestHeadersStart(call);
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestEndNanos = System.nanoTime();
+        metrics.onBytesSent(action, request.headers().byteCount());
+        delegate.requestHeadersEnd(call, request);
+    }
+
+    @Override
+    public void requestBodyStart(Call call) {
+        delegate.requestBodyStart(call);
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestEndNanos = System.nanoTime();
+        metrics.onBytesSent(action, byteCount);
+        delegate.requestBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        responseStartNanos = System.nanoTime();
+        metrics.onPhase(action, HttpPhase.REQUEST_WRITE, requestEndNanos - requestStartNanos);
+        metrics.onPhase(action, HttpPhase.RESPONSE_WAIT, responseStartNanos - requestEndNanos);
+        delegate.responseHeadersStart(call);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        success = response.isSuccessful();
+        delegate.responseHeadersEnd(call, response);
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        delegate.responseBodyStart(call);
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        metrics.onPhase(action, HttpPhase.RESPONSE_READ, System.nanoTime() - responseStartNanos);
+        metrics.onBytesReceived(action, byteCount);
+        delegate.responseBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        metrics.onCallEnd(action, System.nanoTime() - callStartNanos, success);
+        delegate.callEnd(call);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        metrics.onCallEnd(action, System.nanoTime() - callStartNanos, false);
+        delegate.callFailed(call, ioe);
+    }
+}
@@ -0,0 +1,11 @@
+package com.enosiot.enos.iot_http_integration.metrics;
+
+/**
+ * Metrics discarding everything, the default of a connection
+ */
+public final class NoopHttpMetrics implements IHttpMetrics {
+    public static final NoopHttpMetrics INSTANCE = new NoopHttpMetrics();
+
+    private NoopHttpMetrics() {
+    }
+}
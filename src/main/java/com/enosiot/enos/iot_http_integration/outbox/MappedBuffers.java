@@ -0,0 +1,71 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmapping of memory-mapped files, which the JDK otherwise only does once a buffer has been
+ * garbage collected. Until then the file can't be deleted on Windows, and its disk space is not
+ * released on other systems.
+ */
+final class MappedBuffers {
+    private static final Unmapper UNMAPPER = unmapper();
+
+    private MappedBuffers() {
+    }
+
+    /** @return whether buffers can be unmapped explicitly on this JVM */
+    static boolean isUnmapSupported() {
+        return UNMAPPER != null;
+    }
+
+    /**
+     * Unmap a buffer at once. Neither the buffer nor its duplicates may be accessed afterwards,
+     * that would crash the JVM.
+     *
+     * @return whether the buffer has been unmapped, otherwise it is once garbage collected
+     */
+    static boolean unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER == null) {
+            return false;
+        }
+        try {
+            UNMAPPER.unmap(buffer);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    private static Unmapper unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+import com.google.common.base.Preconditions;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Durable, segmented write-ahead log of encoded integration requests, used to store requests
+ * while the broker is unreachable.
+ *
+ * <p>Records are appended to memory-mapped segment files. A record is framed as its length, the
+ * CRC32 of its body and the body itself (request action and message), and the length is written
+ * last, so a record torn by a crash fails the check and marks the end of the log on recovery.
+ *
+ * <p>The read position is kept in a checkpoint file, replaced atomically each time a record is
+ * committed. Segments behind the checkpoint are deleted. The total size of the segments is
+ * bounded by {@code maxDiskBytes}, and the {@link OverflowPolicy} decides what happens when a
+ * new segment would exceed it.
+ *
+ * <p>Segments are unmapped as soon as they are deleted or the log is closed, rather than once
+ * the garbage collector gets to them, so that their files can be deleted on Windows and their
+ * disk space is released when they leave the quota. On a JVM that does not allow unmapping,
+ * this is left to the garbage collector.
+ */
+@Slf4j
+public class Outbox implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+
+    /** length and CRC32 of the record body */
+    private static final int RECORD_HEADER = 8;
+    private static final int CHECKPOINT_SIZE = 20;
+
+    private static volatile boolean unmapWarned;
+
+    public static Builder builder(@NonNull Path directory) {
+        return new Builder(directory);
+    }
+
+    public static class Builder {
+        private final Path directory;
+
+        private int segmentSize = 16 * 1024 * 1024;
+
+        private long maxDiskBytes = 1024L * 1024 * 1024;
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT_NEW;
+
+        private boolean forceOnAppend = true;
+
+        Builder(Path directory) {
+            this.directory = directory;
+        }
+
+        public Builder segmentSize(int segmentSize) {
+            Preconditions.checkArgument(segmentSize > RECORD_HEADER, "segmentSize is too small");
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /** Quota of the segment files, must hold at least two segments */
+        public Builder maxDiskBytes(long maxDiskBytes) {
+            this.maxDiskBytes = maxDiskBytes;
+            return this;
+        }
+
+        public Builder overflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Whether each append is forced to the storage device. Without it, appended records
+         * survive a crash of the process but not of the operating system.
+         */
+        public Builder forceOnAppend(boolean forceOnAppend) {
+            this.forceOnAppend = forceOnAppend;
+            return this;
+        }
+
+        public Outbox build() throws IOException {
+            Preconditions.checkArgument(
+                    maxDiskBytes >= 2L * segmentSize, "maxDiskBytes must hold two segments");
+            return new Outbox(this);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxDiskBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final boolean forceOnAppend;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private long readSegmentId;
+    private int readOffset;
+
+    private long diskBytes;
+    private long droppedRecords;
+    private boolean closed;
+
+    private Outbox(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.maxDiskBytes = builder.maxDiskBytes;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.forceOnAppend = builder.forceOnAppend;
+
+        Files.createDirectories(directory);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            segments.values().forEach(Outbox::unmap);
+            throw e;
+        }
+    }
+
+    /**
+     * Append an encoded request to the log
+     *
+     * @param requestAction action parameter of the request API
+     * @param message encoded JSON message
+     * @throws OutboxFullException if the quota is used up and new records are rejected
+     * @throws IOException
+     */
+    public synchronized void append(@NonNull String requestAction, @NonNull byte[] message)
+            throws IOException {
+        checkOpen();
+        byte[] action = requestAction.getBytes(UTF_8);
+        int length = 2 + action.length + message.length;
+        int recordSize = RECORD_HEADER + length;
+
+        Segment tail = segments.lastEntry().getValue();
+        if (tail.limit + recordSize > tail.buffer.capacity()) {
+            tail = rollSegment(recordSize);
+        }
+
+        int position = tail.limit;
+        ByteBuffer body = tail.buffer.duplicate();
+        body.position(position + RECORD_HEADER);
+        body.putShort((short) action.length);
+        body.put(action);
+        body.put(message);
+
+        // length goes last, a record is not visible before it is complete
+        tail.buffer.putInt(position + 4, crc(tail.buffer, position + RECORD_HEADER, length));
+        tail.buffer.putInt(position, length);
+        if (forceOnAppend) {
+            tail.buffer.force();
+        }
+        tail.limit += recordSize;
+    }
+
+    /**
+     * @return the oldest record not committed yet, {@code null} if the log is drained
+     * @throws IOException
+     */
+    public synchronized OutboxRecord peek() throws IOException {
+        checkOpen();
+        while (true) {
+            Segment segment = segments.get(readSegmentId);
+            if (readOffset < segment.limit) {
+                return readRecord(segment, readOffset);
+            }
+            Long next = segments.higherKey(readSegmentId);
+            if (next == null) {
+                return null;
+            }
+            advanceTo(next);
+        }
+    }
+
+    /**
+     * Move the checkpoint past a record once it has been delivered. Committing a record that
+     * has already been committed or dropped has no effect.
+     *
+     * @param record the record returned by {@link #peek()}
+     * @throws IOException
+     */
+    public synchronized void commit(@NonNull OutboxRecord record) throws IOException {
+        checkOpen();
+        if (record.getSegmentId() != readSegmentId || record.getOffset() != readOffset) {
+            return;
+        }
+        readOffset = record.getNextOffset();
+        Long next = segments.higherKey(readSegmentId);
+        if (next != null && readOffset >= segments.get(readSegmentId).limit) {
+            advanceTo(next);
+        } else {
+            writeCheckpoint();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments.tailMap(readSegmentId, true).values()) {
+            int start = segment.id == readSegmentId ? readOffset : 0;
+            if (start < segment.limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return bytes allocated by the segment files */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /** @return records discarded by {@link OverflowPolicy#DROP_OLDEST} since the log was opened */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            unmap(segment);
+        }
+    }
+
+    private void checkOpen() {
+        Preconditions.checkState(!closed, "outbox is closed");
+    }
+
+    private OutboxRecord readRecord(Segment segment, int offset) {
+        int length = segment.buffer.getInt(offset);
+        ByteBuffer body = segment.buffer.duplicate();
+        body.position(offset + RECORD_HEADER);
+        byte[] action = new byte[body.getShort()];
+        body.get(action);
+        byte[] message = new byte[length - 2 - action.length];
+        body.get(message);
+        return new OutboxRecord(
+                segment.id,
+                offset,
+                offset + RECORD_HEADER + length,
+                new String(action, UTF_8),
+                message);
+    }
+
+    private Segment rollSegment(int recordSize) throws IOException {
+        int size = Math.max(segmentSize, recordSize);
+        while (diskBytes + size > maxDiskBytes) {
+            if (overflowPolicy == OverflowPolicy.REJECT_NEW || segments.size() <= 1) {
+                throw new OutboxFullException(
+                        "outbox quota of " + maxDiskBytes + " bytes is used up in " + directory);
+            }
+            dropOldest();
+        }
+
+        long id = segments.lastKey() + 1;
+        Segment segment = openSegment(id, size);
+        segments.put(id, segment);
+        diskBytes += size;
+        return segment;
+    }
+
+    private void dropOldest() throws IOException {
+        Segment oldest = segments.firstEntry().getValue();
+        int start = oldest.id == readSegmentId ? readOffset : 0;
+        long dropped = countRecords(oldest, start);
+        droppedRecords += dropped;
+        log.warn("outbox quota exceeded, dropped {} records of segment {}", dropped, oldest.id);
+
+        if (oldest.id == readSegmentId) {
+            advanceTo(segments.higherKey(readSegmentId));
+        } else {
+            deleteSegment(oldest);
+        }
+    }
+
+    /** Move the read position to the start of a later segment and delete the segments before */
+    private void advanceTo(long segmentId) throws IOException {
+        readSegmentId = segmentId;
+        readOffset = 0;
+        writeCheckpoint();
+
+        List<Segment> consumed = new ArrayList<>(segments.headMap(segmentId).values());
+        for (Segment segment : consumed) {
+            deleteSegment(segment);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        diskBytes -= segment.buffer.capacity();
+        unmap(segment);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("failed to delete outbox segment {}", segment.path, e);
+        }
+    }
+
+    /** The segment must not be accessed afterwards */
+    private static void unmap(Segment segment) {
+        if (!MappedBuffers.unmap(segment.buffer) && !unmapWarned) {
+            unmapWarned = true;
+            log.warn("outbox segments can't be unmapped on this JVM, they are once garbage collected");
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        buffer.putLong(readSegmentId).putInt(readOffset);
+        buffer.putLong(crc(buffer, 0, 12));
+        buffer.flip();
+
+        Path temp = directory.resolve(CHECKPOINT_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /** @return segment id and offset of the checkpoint, {@code null} if missing or corrupted */
+    private long[] readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.capacity() != CHECKPOINT_SIZE || buffer.getLong(12) != crc(buffer, 0, 12)) {
+            log.warn("ignore corrupted outbox checkpoint {}", path);
+            return null;
+        }
+        return new long[] {buffer.getLong(0), buffer.getInt(8)};
+    }
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                ids.add(
+                        Long.parseLong(
+                                name.substring(
+                                        SEGMENT_PREFIX.length(),
+                                        name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        long[] checkpoint = readCheckpoint();
+        for (long id : ids) {
+            if (checkpoint != null && id < checkpoint[0]) {
+                // consumed, but not deleted before the process stopped
+                Files.deleteIfExists(segmentPath(id));
+                continue;
+            }
+            Segment segment = openSegment(id, 0);
+            segment.limit = scan(segment.buffer);
+            segments.put(id, segment);
+            diskBytes += segment.buffer.capacity();
+        }
+
+        if (segments.isEmpty()) {
+            long id = checkpoint != null ? checkpoint[0] : 0L;
+            segments.put(id, openSegment(id, segmentSize));
+            diskBytes += segmentSize;
+            readSegmentId = id;
+            readOffset = 0;
+        } else if (checkpoint != null && segments.containsKey(checkpoint[0])) {
+            readSegmentId = checkpoint[0];
+            readOffset = (int) Math.min(checkpoint[1], segments.get(readSegmentId).limit);
+        } else {
+            readSegmentId = segments.firstKey();
+            readOffset = 0;
+        }
+
+        // clear a torn tail so that it can't be mistaken for records later on
+        Segment tail = segments.lastEntry().getValue();
+        for (int i = tail.limit; i < tail.buffer.capacity(); i++) {
+            if (tail.buffer.get(i) != 0) {
+                for (int j = tail.limit; j < tail.buffer.capacity(); j++) {
+                    tail.buffer.put(j, (byte) 0);
+                }
+                tail.buffer.force();
+                break;
+            }
+        }
+        writeCheckpoint();
+
+        log.info(
+                "opened outbox {} with {} segments, reading from segment {} at {}",
+                directory,
+                segments.size(),
+                readSegmentId,
+                readOffset);
+    }
+
+    /** @return end of the valid records in a segment */
+    private static int scan(ByteBuffer buffer) {
+        int position = 0;
+        int capacity = buffer.capacity();
+        while (position + RECORD_HEADER <= capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 2 || (long) position + RECORD_HEADER + length > capacity) {
+                break;
+            }
+            if (buffer.getInt(position + 4) != crc(buffer, position + RECORD_HEADER, length)) {
+                break;
+            }
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private static long countRecords(Segment segment, int start) {
+        long count = 0;
+        for (int position = start; position < segment.limit; count++) {
+            position += RECORD_HEADER + segment.buffer.getInt(position);
+        }
+        return count;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        CRC32 crc32 = new CRC32();
+        crc32.update(region);
+        return (int) crc32.getValue();
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Map a segment file
+     *
+     * @param size size of a new segment, {@code 0} to map an existing file as it is
+     */
+    private Segment openSegment(long id, int size) throws IOException {
+        Path path = segmentPath(id);
+        try (FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+            long mappedSize = size > 0 ? size : channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+            return new Segment(id, path, buffer);
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        /** end of the valid records */
+        int limit;
+
+        Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
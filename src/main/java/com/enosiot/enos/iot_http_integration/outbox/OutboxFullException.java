@@ -0,0 +1,15 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a record can't be appended because the disk quota of the outbox is used up and
+ * its policy is {@link OverflowPolicy#REJECT_NEW}
+ */
+public class OutboxFullException extends IOException {
+    private static final long serialVersionUID = 6086264812360127427L;
+
+    public OutboxFullException(String message) {
+        super(message);
+    }
+}
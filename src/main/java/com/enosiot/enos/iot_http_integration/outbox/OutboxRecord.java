@@ -0,0 +1,26 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+
+/**
+ * An encoded integration request read back from an {@link Outbox}
+ */
+@Value
+public class OutboxRecord {
+    @Getter(AccessLevel.PACKAGE)
+    long segmentId;
+
+    @Getter(AccessLevel.PACKAGE)
+    int offset;
+
+    @Getter(AccessLevel.PACKAGE)
+    int nextOffset;
+
+    /** action parameter of the request API, see {@code RequestAction} */
+    String requestAction;
+
+    /** the JSON message, as encoded by {@code BaseIntegrationRequest#encode()} */
+    byte[] message;
+}
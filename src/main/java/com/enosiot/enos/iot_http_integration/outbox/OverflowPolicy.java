@@ -0,0 +1,12 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+/**
+ * What an {@link Outbox} does when appending a record would exceed its disk quota
+ */
+public enum OverflowPolicy {
+    /** Refuse the new record with an {@link OutboxFullException}, stored records are kept */
+    REJECT_NEW,
+
+    /** Discard the oldest segment, including its records not drained yet, to make room */
+    DROP_OLDEST
+}
@@ -0,0 +1,58 @@
+package com.enosiot.enos.iot_http_integration.retry;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/** Classes of failed calls, which a {@link RetryPolicy} decides to retry or not */
+public enum FailureType {
+    /** The connection to the server could not be established */
+    CONNECT,
+
+    /** Connecting, writing the request or reading the response timed out */
+    TIMEOUT,
+
+    /** Any other I/O error, such as a connection reset while the request was in flight */
+    NETWORK,
+
+    /** HTTP 5xx */
+    SERVER_ERROR,
+
+    /** HTTP 429 */
+    TOO_MANY_REQUESTS,
+
+    /** HTTP 401 or 403, the access token has been refused */
+    AUTH;
+
+    /** @return class of an I/O error */
+    public static FailureType of(IOException e) {
+        if (e instanceof ConnectException
+                || e instanceof NoRouteToHostException
+                || e instanceof UnknownHostException) {
+            return CONNECT;
+        }
+        // OkHttp reports a call timeout as an InterruptedIOException("timeout")
+        if (e instanceof SocketTimeoutException
+                || (e instanceof InterruptedIOException && "timeout".equals(e.getMessage()))) {
+            return TIMEOUT;
+        }
+        return NETWORK;
+    }
+
+    /** @return class of an HTTP status, {@code null} if it is not a failure worth retrying */
+    public static FailureType of(int httpCode) {
+        if (httpCode == 429) {
+            return TOO_MANY_REQUESTS;
+        }
+        if (httpCode == 401 || httpCode == 403) {
+            return AUTH;
+        }
+        if (httpCode >= 500 && httpCode < 600) {
+            return SERVER_ERROR;
+        }
+        return null;
+    }
+}
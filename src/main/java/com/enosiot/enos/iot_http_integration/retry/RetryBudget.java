@@ -0,0 +1,95 @@
+package com.enosiot.enos.iot_http_integration.retry;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps retries to a fraction of the traffic, so that retries cannot amplify an outage.
+ *
+ * <p>Every call deposits {@code retryRatio} into the budget and every retry withdraws one, the
+ * balance being capped at {@code maxBalance}. Besides, {@code minRetriesPerSecond} are allowed
+ * regardless of the traffic, so that a connection sending few requests can still retry them.
+ *
+ * <p>A budget can be shared by the policies of several connections to cap their retries together.
+ */
+public class RetryBudget {
+    /** balances are kept in thousandths of a retry, so that deposits add up exactly */
+    private static final long ONE_RETRY = 1000L;
+
+    private final long deposit;
+    private final double minRetriesPerSecond;
+    private final long maxBalance;
+
+    private long balance;
+    private double reserve;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param retryRatio retries allowed per call, such as {@code 0.1} for 10%
+     * @param minRetriesPerSecond retries allowed per second regardless of the traffic
+     * @param maxBalance maximum retries saved up while calls succeed
+     */
+    public RetryBudget(double retryRatio, double minRetriesPerSecond, double maxBalance) {
+        Preconditions.checkArgument(retryRatio >= 0, "retryRatio must not be negative");
+        Preconditions.checkArgument(minRetriesPerSecond >= 0, "minRetriesPerSecond must not be negative");
+        Preconditions.checkArgument(maxBalance >= 1, "maxBalance must be at least 1");
+        this.deposit = Math.round(retryRatio * ONE_RETRY);
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = Math.round(maxBalance * ONE_RETRY);
+        // starts full, a new connection may retry before it has sent any traffic
+        this.reserve = minRetriesPerSecond > 0 ? maxReserve() : 0.0;
+    }
+
+    /** @return budget of 10% of the calls plus one retry per second */
+    public static RetryBudget defaultBudget() {
+        return new RetryBudget(0.1, 1.0, 100.0);
+    }
+
+    /** @return budget that never refuses a retry */
+    public static RetryBudget unlimited() {
+        return new RetryBudget(0.0, 0.0, 1.0) {
+            @Override
+            public boolean tryRetry() {
+                return true;
+            }
+        };
+    }
+
+    /** A call, not a retry, is about to be sent */
+    public synchronized void onCall() {
+        balance = Math.min(maxBalance, balance + deposit);
+    }
+
+    /** @return {@code true} if a retry is allowed, which is then withdrawn from the budget */
+    public synchronized boolean tryRetry() {
+        refillReserve();
+        if (reserve >= 1.0) {
+            reserve -= 1.0;
+            return true;
+        }
+        if (balance >= ONE_RETRY) {
+            balance -= ONE_RETRY;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return retries currently allowed */
+    public synchronized double getBalance() {
+        refillReserve();
+        return (double) balance / ONE_RETRY + reserve;
+    }
+
+    private void refillReserve() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefillNanos = now;
+        // at most one second of minimum retries is kept
+        reserve = Math.min(maxReserve(), reserve + seconds * minRetriesPerSecond);
+    }
+
+    private double maxReserve() {
+        return Math.max(minRetriesPerSecond, 1.0);
+    }
+}
@@ -0,0 +1,163 @@
+package com.enosiot.enos.iot_http_integration.retry;
+
+import com.google.common.base.Preconditions;
+import lombok.NonNull;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which failed calls of a connection are retried and when. Retries back off exponentially
+ * with full jitter, and are capped by a {@link RetryBudget} shared by all calls of the policy.
+ *
+ * <p>Retried integration requests keep their id, so the broker can recognize duplicates.
+ *
+ * <pre>
+ * RetryPolicy policy = RetryPolicy.builder()
+ *         .maxAttempts(4)
+ *         .initialBackoff(200, TimeUnit.MILLISECONDS)
+ *         .retryOn(FailureType.CONNECT, FailureType.TIMEOUT, FailureType.SERVER_ERROR)
+ *         .build();
+ * </pre>
+ */
+public class RetryPolicy {
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return policy making up to 3 attempts, on every failure type, backing off from 100 ms to 5
+     *     seconds, within the {@link RetryBudget#defaultBudget()}
+     */
+    public static RetryPolicy defaultPolicy() {
+        return builder().build();
+    }
+
+    /** @return policy that never retries */
+    public static RetryPolicy none() {
+        return builder().maxAttempts(1).build();
+    }
+
+    public static class Builder {
+        private int maxAttempts = 3;
+
+        private long initialBackoffMillis = 100L;
+
+        private long maxBackoffMillis = 5000L;
+
+        private Set<FailureType> retryOn = EnumSet.allOf(FailureType.class);
+
+        private boolean honorRetryAfter = true;
+
+        private RetryBudget budget;
+
+        Builder() {
+        }
+
+        /** Attempts of a call including the first one, {@code 1} to disable retries */
+        public Builder maxAttempts(int maxAttempts) {
+            Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /** Backoff before the first retry, doubled on each following one */
+        public Builder initialBackoff(long backoff, TimeUnit unit) {
+            this.initialBackoffMillis = Math.max(1L, unit.toMillis(backoff));
+            return this;
+        }
+
+        public Builder maxBackoff(long backoff, TimeUnit unit) {
+            this.maxBackoffMillis = Math.max(1L, unit.toMillis(backoff));
+            return this;
+        }
+
+        /** Failure types that are retried, all of them by default */
+        public Builder retryOn(@NonNull FailureType first, FailureType... others) {
+            this.retryOn = EnumSet.of(first, others);
+            return this;
+        }
+
+        /**
+         * Wait at least as long as the {@code Retry-After} header of a 429 or 503 response, up to
+         * the maximum backoff
+         */
+        public Builder honorRetryAfter(boolean honorRetryAfter) {
+            this.honorRetryAfter = honorRetryAfter;
+            return this;
+        }
+
+        /** Budget capping the retries, a new {@link RetryBudget#defaultBudget()} if not set */
+        public Builder budget(@NonNull RetryBudget budget) {
+            this.budget = budget;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Set<FailureType> retryOn;
+    private final boolean honorRetryAfter;
+    private final RetryBudget budget;
+
+    private RetryPolicy(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(builder.maxBackoffMillis, initialBackoffMillis);
+        this.retryOn = Collections.unmodifiableSet(EnumSet.copyOf(builder.retryOn));
+        this.honorRetryAfter = builder.honorRetryAfter;
+        this.budget = builder.budget != null ? builder.budget : RetryBudget.defaultBudget();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getMaxBackoff(TimeUnit unit) {
+        return unit.convert(maxBackoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Set<FailureType> getRetryOn() {
+        return retryOn;
+    }
+
+    public boolean isHonorRetryAfter() {
+        return honorRetryAfter;
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Decide whether a failed attempt is retried, withdrawing the retry from the budget if so
+     *
+     * @param failure
+     * @param attempt number of the failed attempt, starting from {@code 1}
+     * @return {@code true} if the call must be retried
+     */
+    public boolean shouldRetry(FailureType failure, int attempt) {
+        return attempt < maxAttempts && retryOn.contains(failure) && budget.tryRetry();
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting from {@code 1}
+     * @return random delay before the next attempt, up to the exponential backoff
+     */
+    public long backoffMillis(int attempt) {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffMillis);
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+}
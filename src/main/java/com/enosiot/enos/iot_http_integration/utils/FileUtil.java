@@ -1,6 +1,9 @@
 package com.enosiot.enos.iot_http_integration.utils;
 
+import com.enosiot.enos.iot_http_integration.message.FilePayload;
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.Source;
 import org.apache.commons.collections.MapUtils;
 
 import java.io.File;
@@ -8,14 +11,57 @@ import java.io.IOException;
 import java.util.Map;
 
 /**
+ * Transfers files to and from pre-signed URLs. The returned {@link Response} must be closed by
+ * the caller, otherwise its connection can't be reused.
+ *
  * @author mengyuantan
  */
 public class FileUtil {
+    /** Shared by the transfers that are not given a client, so they share one connection pool */
+    private static class TransferClientHolder {
+        private static final OkHttpClient CLIENT = new OkHttpClient();
+    }
+
+    public static OkHttpClient getTransferClient() {
+        return TransferClientHolder.CLIENT;
+    }
+
     public static Response uploadFile(String serverURL, File file, Map<String, String> headers) throws IOException {
-        OkHttpClient client = new OkHttpClient().newBuilder()
-                .build();
+        return uploadFile(getTransferClient(), serverURL, file, headers);
+    }
+
+    public static Response uploadFile(OkHttpClient client, String serverURL, File file, Map<String, String> headers) throws IOException {
+        MediaType mediaType = MediaType.parse("application/octet-stream");
+        return upload(client, serverURL, RequestBody.create(mediaType, file), headers);
+    }
+
+    /**
+     * Upload the content of a payload, which is read once more and never staged on disk
+     */
+    public static Response uploadFile(OkHttpClient client, String serverURL, FilePayload payload, Map<String, String> headers) throws IOException {
         MediaType mediaType = MediaType.parse("application/octet-stream");
-        RequestBody body = RequestBody.create(mediaType, file);
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return payload.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try (Source source = payload.open()) {
+                    sink.writeAll(source);
+                }
+            }
+        };
+        return upload(client, serverURL, body, headers);
+    }
+
+    private static Response upload(OkHttpClient client, String serverURL, RequestBody body, Map<String, String> headers) throws IOException {
         Request.Builder builder = new Request.Builder();
         if (MapUtils.isNotEmpty(headers)) {
             headers.forEach(builder::addHeader);
@@ -29,13 +75,16 @@ public class FileUtil {
     }
 
     public static Response downloadFile(String url) throws IOException {
-        OkHttpClient okHttpClient = new OkHttpClient();
+        return downloadFile(getTransferClient(), url);
+    }
+
+    public static Response downloadFile(OkHttpClient client, String url) throws IOException {
         Request httpRequest = new Request.Builder()
                 .url(url)
                 .get()
                 .build();
 
-        Call call = okHttpClient.newCall(httpRequest);
+        Call call = client.newCall(httpRequest);
         return call.execute();
     }
 }
@@ -0,0 +1,76 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.iot_http_integration.testkit.LatencyDistribution;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class AttributeShadowTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+    private static final DeviceInfo DEVICE = new DeviceInfo().setAssetId("asset");
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+    private AttributeShadow shadow;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+        connection = new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .build();
+        shadow = AttributeShadow.builder().build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        shadow.close();
+        server.close();
+    }
+
+    @Test
+    public void testPublishesOnlyChangedAttributes() throws Exception {
+        assertTrue(shadow.publish(connection, attributes(1, "fixed")).isSuccess());
+        assertNull(shadow.publish(connection, attributes(1, "fixed")));
+        assertTrue(shadow.publish(connection, attributes(2, "fixed")).isSuccess());
+        assertEquals(
+                shadow.changed(DEVICE, attributes(2, "other").get(DEVICE)), Collections.singletonMap("b", "other"));
+        assertEquals(server.getMessageCount(), 2L);
+    }
+
+    @Test
+    public void testForgetsAttributesPublishedConcurrently() throws Exception {
+        assertTrue(shadow.publish(connection, attributes(0, "fixed")).isSuccess());
+
+        // both are compared to the first publish, the broker keeps whichever arrives last
+        server.setFaults(FaultProfile.builder().latency(LatencyDistribution.fixed(50)).build());
+        CompletableFuture<IntegrationResponse> first = shadow.publishAsync(connection, attributes(1, "fixed"));
+        CompletableFuture<IntegrationResponse> second = shadow.publishAsync(connection, attributes(2, "fixed"));
+        assertTrue(first.get(10, TimeUnit.SECONDS).isSuccess());
+        assertTrue(second.get(10, TimeUnit.SECONDS).isSuccess());
+
+        for (int value : new int[] {1, 2}) {
+            Map<String, Object> changed = shadow.changed(DEVICE, attributes(value, "fixed").get(DEVICE));
+            assertEquals(changed, Collections.singletonMap("a", value));
+        }
+    }
+
+    private static Map<DeviceInfo, Map<String, Object>> attributes(int a, String b) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("a", a);
+        values.put("b", b);
+        return Collections.singletonMap(DEVICE, values);
+    }
+}
@@ -0,0 +1,100 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.iot_http_integration.testkit.LatencyDistribution;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class BoundedPublisherTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+        server.setFaults(FaultProfile.builder().latency(LatencyDistribution.fixed(20)).build());
+        connection = new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testSendsQueuedRequestsFromExecutor() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        BoundedPublisher publisher = BoundedPublisher.builder(connection)
+                .maxInFlightRequests(1)
+                .saturationPolicy(BoundedPublisher.SaturationPolicy.QUEUE)
+                .executor(command -> {
+                    executed.incrementAndGet();
+                    ForkJoinPool.commonPool().execute(command);
+                })
+                .build();
+
+        List<CompletableFuture<IntegrationResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(publisher.publish(request(i), null));
+        }
+        for (CompletableFuture<IntegrationResponse> future : futures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+        // the first request fits at once and is sent by the caller
+        assertEquals(executed.get(), 4);
+        assertEquals(server.getMessageCount(), 5L);
+    }
+
+    @Test
+    public void testFailsQueuedRequestsTheExecutorRejects() throws Exception {
+        BoundedPublisher publisher = BoundedPublisher.builder(connection)
+                .maxInFlightRequests(1)
+                .saturationPolicy(BoundedPublisher.SaturationPolicy.QUEUE)
+                .executor(command -> {
+                    throw new RejectedExecutionException("shut down");
+                })
+                .build();
+
+        CompletableFuture<IntegrationResponse> first = publisher.publish(request(0), null);
+        CompletableFuture<IntegrationResponse> second = publisher.publish(request(1), null);
+        CompletableFuture<IntegrationResponse> third = publisher.publish(request(2), null);
+        assertTrue(first.get(10, TimeUnit.SECONDS).isSuccess());
+        for (CompletableFuture<IntegrationResponse> queued : Arrays.asList(second, third)) {
+            try {
+                queued.get(10, TimeUnit.SECONDS);
+                fail("a rejected request should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        assertEquals(publisher.getInFlightRequests(), 0);
+    }
+
+    private static IntegrationMeasurepointPostRequest request(int i) {
+        return IntegrationMeasurepointPostRequest.builder()
+                .addMeasurepoint(new DeviceInfo().setAssetId("asset"), 1000L + i, Collections.singletonMap("temp", i))
+                .build();
+    }
+}
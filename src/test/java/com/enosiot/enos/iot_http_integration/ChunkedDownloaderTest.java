@@ -0,0 +1,144 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.retry.RetryBudget;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class ChunkedDownloaderTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+    private ChunkedDownloader downloader;
+    private Path target;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).seed(1L).start();
+        connection =
+                new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                        .setRetryPolicy(
+                                RetryPolicy.builder()
+                                        .maxAttempts(5)
+                                        .initialBackoff(1, TimeUnit.MILLISECONDS)
+                                        .budget(RetryBudget.unlimited())
+                                        .build())
+                        .build();
+        downloader = ChunkedDownloader.builder(connection)
+                .chunkSize(64 * 1024)
+                .parallelism(4)
+                .initialBackoff(1, TimeUnit.MILLISECONDS)
+                .build();
+        target = Files.createTempDirectory("download").resolve("target.bin");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testDownloadsFirmwareInChunks() throws Exception {
+        byte[] content = content(1000 * 1000 + 7);
+        server.putFirmware("firmware", content);
+
+        assertEquals(downloader.downloadFirmwareFile("firmware", target, null), content.length);
+        assertEquals(Files.readAllBytes(target), content);
+        assertFalse(Files.exists(target.resolveSibling("target.bin.part")));
+        // the size probe and 16 chunks
+        assertEquals(server.getRequestCount("downloadFirmwareFile"), 17L);
+    }
+
+    @Test
+    public void testDownloadsFileOfKnownSize() throws Exception {
+        byte[] content = content(300 * 1000);
+        server.putFile("enos-connect://file.bin", content);
+
+        long size = downloader.downloadFile(
+                new DeviceInfo().setAssetId("asset"), "enos-connect://file.bin", FileCategory.FEATURE, target, null);
+        assertEquals(size, content.length);
+        assertEquals(Files.readAllBytes(target), content);
+        assertEquals(server.getRequestCount("getFileInfo"), 1L);
+    }
+
+    @Test
+    public void testRetriesFailedChunks() throws Exception {
+        byte[] content = content(1000 * 1000);
+        server.putFirmware("firmware", content);
+        server.setFaults(FaultProfile.builder().errorRate(0.2).disconnectRate(0.1).build());
+
+        assertEquals(downloader.downloadFirmwareFile("firmware", target, null), content.length);
+        assertEquals(Files.readAllBytes(target), content);
+        assertTrue(server.getErrorCount() + server.getDisconnectCount() > 0);
+    }
+
+    @Test
+    public void testRetriesSingleStreamWithoutRanges() throws Exception {
+        byte[] content = content(300 * 1000);
+        server.putFirmware("firmware", content);
+        server.setServeRanges(false);
+        server.setFaults(FaultProfile.builder().errorRate(0.5).build());
+        // retried by the downloader alone
+        HttpConnection connection =
+                new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                        .setRetryPolicy(RetryPolicy.none())
+                        .build();
+        ChunkedDownloader downloader = ChunkedDownloader.builder(connection)
+                .maxRetries(10)
+                .initialBackoff(1, TimeUnit.MILLISECONDS)
+                .build();
+
+        assertEquals(downloader.downloadFirmwareFile("firmware", target, null), content.length);
+        assertEquals(Files.readAllBytes(target), content);
+        assertTrue(server.getErrorCount() > 0);
+    }
+
+    @Test
+    public void testFetchesChunksFromGivenExecutor() throws Exception {
+        byte[] content = content(500 * 1000);
+        server.putFirmware("firmware", content);
+        AtomicInteger tasks = new AtomicInteger();
+        ChunkedDownloader downloader = ChunkedDownloader.builder(connection)
+                .chunkSize(64 * 1024)
+                .parallelism(3)
+                .executor(command -> {
+                    tasks.incrementAndGet();
+                    ForkJoinPool.commonPool().execute(command);
+                })
+                .build();
+
+        assertEquals(downloader.downloadFirmwareFile("firmware", target, null), content.length);
+        assertEquals(Files.readAllBytes(target), content);
+        // a task per parallel fetch, rather than per chunk
+        assertEquals(tasks.get(), 3);
+    }
+
+    @Test
+    public void testDownloadsEmptyFile() throws Exception {
+        server.putFirmware("empty", new byte[0]);
+
+        assertEquals(downloader.downloadFirmwareFile("empty", target, null), 0L);
+        assertEquals(Files.size(target), 0L);
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,73 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.FileInfoResponse;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class FileMetadataCacheTest {
+    private static final FileMetadataCache.Key KEY = FileMetadataCache.key(
+            "orgId", FileCategory.FEATURE, new DeviceInfo().setAssetId("asset"), "enos-connect://a.txt");
+
+    private FileMetadataCache cache;
+    private AtomicInteger loads;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = FileMetadataCache.builder().build();
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void testCachesSuccessfulFileInfo() throws Exception {
+        FileInfoResponse response = fileInfo(FileInfoResponse.SUCCESS_CODE);
+        assertSame(cache.getFileInfo(KEY, () -> load(response)), response);
+        assertSame(cache.getFileInfo(KEY, () -> load(response)), response);
+        assertEquals(loads.get(), 1);
+        assertSame(cache.getFileInfoIfPresent(KEY), response);
+    }
+
+    @Test
+    public void testReturnsUnsuccessfulFileInfoUncached() throws Exception {
+        FileInfoResponse response = fileInfo(404);
+        assertSame(cache.getFileInfo(KEY, () -> load(response)), response);
+        assertSame(cache.getFileInfo(KEY, () -> load(response)), response);
+        assertEquals(loads.get(), 2);
+        assertNull(cache.getFileInfoIfPresent(KEY));
+    }
+
+    @Test
+    public void testReturnsMissingFileInfoUncached() throws Exception {
+        // an empty response body decodes to null
+        assertNull(cache.getFileInfo(KEY, () -> load(null)));
+        assertNull(cache.getFileInfo(KEY, () -> load(null)));
+        assertEquals(loads.get(), 2);
+
+        cache.putFileInfo(KEY, null);
+        assertNull(cache.getFileInfoIfPresent(KEY));
+        assertEquals(cache.size(), 0L);
+    }
+
+    @Test
+    public void testReturnsMissingDownloadUrlUncached() throws Exception {
+        assertNull(cache.getDownloadUrl(KEY, () -> load(null)));
+        assertEquals(cache.getDownloadUrl(KEY, () -> load("https://lark/a")), "https://lark/a");
+        assertEquals(cache.getDownloadUrl(KEY, () -> load("https://lark/b")), "https://lark/a");
+        assertEquals(loads.get(), 2);
+    }
+
+    private <T> T load(T value) {
+        loads.incrementAndGet();
+        return value;
+    }
+
+    private static FileInfoResponse fileInfo(int code) {
+        FileInfoResponse response = new FileInfoResponse();
+        response.setCode(code);
+        return response;
+    }
+}
@@ -0,0 +1,96 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class FirmwareCacheTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private Path directory;
+    private FirmwareCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+        HttpConnection connection =
+                new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId").build();
+        directory = Files.createTempDirectory("firmware");
+        cache = FirmwareCache.builder(connection, directory).build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testDownloadsOnceAndServesFromDisk() throws Exception {
+        byte[] content = content(200 * 1000);
+        server.putFirmware("firmware", content);
+        String md5 = md5(content);
+
+        try (FirmwareImage image = cache.open("firmware", md5.toUpperCase())) {
+            assertEquals(readAll(image), content);
+        }
+        try (FirmwareImage image = cache.open("firmware", null)) {
+            assertEquals(readAll(image), content);
+        }
+        assertEquals(server.getRequestCount("downloadFirmwareFile"), 1L);
+        assertEquals(cache.missCount(), 1L);
+        assertEquals(cache.hitCount(), 1L);
+        assertEquals(cache.getDiskBytes(), content.length);
+        assertTrue(cache.contains("firmware"));
+    }
+
+    @Test
+    public void testRejectsImageOfOtherMd5() throws Exception {
+        byte[] content = content(1000);
+        server.putFirmware("firmware", content);
+
+        try {
+            cache.open("firmware", md5(new byte[1]));
+            fail("the image does not match the MD5");
+        } catch (EnosException expected) {
+            // mismatch
+        }
+        assertFalse(cache.contains("firmware"));
+        assertEquals(cache.size(), 0);
+
+        // the lock of the firmware was released
+        try (FirmwareImage image = cache.open("firmware", md5(content))) {
+            assertEquals(readAll(image), content);
+        }
+    }
+
+    private static byte[] readAll(FirmwareImage image) throws Exception {
+        byte[] bytes = new byte[(int) image.channel().size()];
+        image.map().duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static String md5(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class MeasurepointBatchPublisherTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+        connection = new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testPublishesFullBatches() throws Exception {
+        MeasurepointBatchPublisher publisher = MeasurepointBatchPublisher.builder(connection)
+                .maxPoints(5)
+                .maxLinger(1, TimeUnit.MINUTES)
+                .build();
+        List<CompletableFuture<IntegrationResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            DeviceInfo deviceInfo = new DeviceInfo().setAssetId("asset-" + i);
+            futures.add(publisher.submit(deviceInfo, 1000L, Collections.singletonMap("temp", i)));
+        }
+        for (CompletableFuture<IntegrationResponse> future : futures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+        assertEquals(server.getMessageCount(), 2L);
+        publisher.close();
+    }
+
+    @Test
+    public void testFailsSubmitAfterClose() throws Exception {
+        MeasurepointBatchPublisher publisher = MeasurepointBatchPublisher.builder(connection).build();
+        CompletableFuture<IntegrationResponse> pending =
+                publisher.submit(new DeviceInfo().setAssetId("asset"), 1000L, Collections.singletonMap("temp", 1));
+        publisher.close();
+        assertTrue(pending.get(10, TimeUnit.SECONDS).isSuccess());
+
+        CompletableFuture<IntegrationResponse> late =
+                publisher.submit(new DeviceInfo().setAssetId("asset"), 2000L, Collections.singletonMap("temp", 2));
+        try {
+            late.get(10, TimeUnit.SECONDS);
+            fail("a value submitted after close should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(server.getMessageCount(), 1L);
+    }
+}
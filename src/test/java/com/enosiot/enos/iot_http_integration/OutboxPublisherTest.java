@@ -0,0 +1,152 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.outbox.Outbox;
+import com.enosiot.enos.iot_http_integration.outbox.OutboxRecord;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+public class OutboxPublisherTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+    private Outbox outbox;
+    private Outbox deadLetter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+        connection = new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .setRetryPolicy(RetryPolicy.none())
+                .build();
+        outbox = Outbox.builder(Files.createTempDirectory("outbox")).build();
+        deadLetter = Outbox.builder(Files.createTempDirectory("dead-letter")).build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        outbox.close();
+        deadLetter.close();
+        server.close();
+    }
+
+    @Test
+    public void testReplaysStoredRequests() throws Exception {
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        server.setMessageListener((action, message) -> ids.add(message.get("id").getAsString()));
+        server.setFaults(FaultProfile.builder().disconnectRate(1.0).build());
+
+        try (OutboxPublisher publisher = publisher()) {
+            IntegrationMeasurepointPostRequest first = request("first");
+            IntegrationMeasurepointPostRequest second = request("second");
+            assertNull(publisher.publish(first));
+            // stored behind the first one to keep their order
+            assertNull(publisher.publish(second));
+
+            server.setFaults(FaultProfile.none());
+            waitFor(() -> ids.size() == 2);
+            assertEquals(ids, Arrays.asList(first.getId(), second.getId()));
+            assertTrue(outbox.isEmpty());
+            assertEquals(publisher.getMovedAsideCount(), 0L);
+        }
+    }
+
+    @Test
+    public void testStoresRequestsWithIdsUniqueAcrossRestarts() throws Exception {
+        server.setFaults(FaultProfile.builder().disconnectRate(1.0).build());
+
+        try (OutboxPublisher publisher = publisher()) {
+            IntegrationMeasurepointPostRequest published = request("published");
+            IntegrationMeasurepointPostRequest stored = request("stored");
+            assertNull(publisher.publish(published));
+            publisher.store(stored);
+
+            // not the ids of the connection, which start over with a new process
+            UUID.fromString(published.getId());
+            UUID.fromString(stored.getId());
+            assertNotEquals(published.getId(), stored.getId());
+        }
+    }
+
+    @Test
+    public void testMovesAsideRecordThatKeepsFailing() throws Exception {
+        server.setFaults(FaultProfile.builder().errorRate(1.0).build());
+
+        try (OutboxPublisher publisher = publisher()) {
+            assertNull(publisher.publish(request("failing")));
+
+            waitFor(() -> outbox.isEmpty());
+            assertEquals(publisher.getMovedAsideCount(), 1L);
+            // the failed publish and 3 replays
+            assertEquals(server.getRequestCount("postMeasurepoint"), 4L);
+        }
+        assertTrue(messageOf(deadLetter.peek()).contains("failing"));
+    }
+
+    @Test
+    public void testMovesAsideRefusedRecord() throws Exception {
+        server.setFaults(FaultProfile.builder().errorRate(1.0).errorCode(400).build());
+
+        try (OutboxPublisher publisher = publisher()) {
+            publisher.store(request("refused"));
+            waitFor(() -> outbox.isEmpty());
+            assertEquals(publisher.getMovedAsideCount(), 1L);
+            assertEquals(server.getRequestCount("postMeasurepoint"), 1L);
+
+            server.setFaults(FaultProfile.none());
+            publisher.store(request("accepted"));
+            waitFor(() -> outbox.isEmpty());
+            assertEquals(publisher.getMovedAsideCount(), 1L);
+            assertEquals(server.getMessageCount(), 1L);
+        }
+        assertTrue(messageOf(deadLetter.peek()).contains("refused"));
+    }
+
+    private OutboxPublisher publisher() {
+        return OutboxPublisher.builder(connection, outbox)
+                .initialBackoff(1, TimeUnit.MILLISECONDS)
+                .maxBackoff(10, TimeUnit.MILLISECONDS)
+                .idleInterval(10, TimeUnit.MILLISECONDS)
+                .maxReplayAttempts(3)
+                .deadLetter(deadLetter)
+                .build();
+    }
+
+    private static IntegrationMeasurepointPostRequest request(String assetId) {
+        return IntegrationMeasurepointPostRequest.builder()
+                .addMeasurepoint(new DeviceInfo().setAssetId(assetId), 1000L, Collections.singletonMap("temp", 1.0))
+                .build();
+    }
+
+    private static String messageOf(OutboxRecord record) {
+        assertNotNull(record);
+        return new String(record.getMessage(), UTF_8);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10L);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.gson.JsonObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+public class PartCompressorTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).start();
+    }
+
+    @AfterMethod
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testPublishesGzipMessageAndFile() throws Exception {
+        testPublishesCompressed(CompressionCodec.GZIP);
+    }
+
+    @Test
+    public void testPublishesDeflateMessageAndFile() throws Exception {
+        testPublishesCompressed(CompressionCodec.DEFLATE);
+    }
+
+    private void testPublishesCompressed(CompressionCodec codec) throws Exception {
+        AtomicReference<JsonObject> received = new AtomicReference<>();
+        server.setMessageListener((action, message) -> received.set(message));
+
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        File file = Files.createTempFile("attachment", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+
+        char[] chars = new char[4096];
+        Arrays.fill(chars, 'y');
+        String text = new String(chars);
+        Map<String, Object> values = new HashMap<>();
+        values.put("text", text);
+        values.put("file", file);
+
+        HttpConnection connection =
+                new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                        .setCompression(codec)
+                        .setCompressionThreshold(0)
+                        .setCompressFiles(true)
+                        .build();
+        IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                .addMeasurepoint(new DeviceInfo().setAssetId("asset"), 1000L, values)
+                .build();
+        assertTrue(connection.publish(request, null).isSuccess());
+
+        // the broker undoes the encoding of both parts
+        JsonObject message = received.get();
+        assertNotNull(message);
+        assertEquals(message.get("id").getAsString(), request.getId());
+        assertTrue(message.toString().contains(text));
+
+        String filename = message.getAsJsonObject("files").entrySet().iterator().next().getKey();
+        assertEquals(server.getFile("enos-connect://" + filename), content);
+        assertTrue(server.getEncodedMessageBytes() < server.getMessageBytes());
+    }
+}
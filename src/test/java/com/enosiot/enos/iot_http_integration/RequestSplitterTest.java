@@ -0,0 +1,182 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.BaseIntegrationRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.SplitIntegrationResponse;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class RequestSplitterTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+    private HttpConnection connection;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).seed(1L).start();
+        connection = new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .setRetryPolicy(RetryPolicy.none())
+                .build();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testKeepsRequestWithinLimits() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(5, false);
+        List<BaseIntegrationRequest> parts = RequestSplitter.builder(connection).build().split(request);
+        assertEquals(parts, Collections.singletonList(request));
+    }
+
+    @Test
+    public void testSplitsAtEntries() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(10, false);
+        List<BaseIntegrationRequest> parts = RequestSplitter.builder(connection).maxPoints(6).build().split(request);
+
+        // 2 values per device
+        assertEquals(parts.size(), 4);
+        List<Object> entries = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            BaseIntegrationRequest part = parts.get(i);
+            assertEquals(part.getId(), request.getId() + "-" + i);
+            assertEquals(part.getMethod(), request.getMethod());
+            assertTrue(part.<List<?>>getParams().size() <= 3);
+            entries.addAll(part.getParams());
+        }
+        assertEquals(entries, request.getParams());
+    }
+
+    @Test
+    public void testAttachesFilesToTheirEntries() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(5, true);
+        List<BaseIntegrationRequest> parts = RequestSplitter.builder(connection).maxFiles(2).build().split(request);
+
+        assertEquals(parts.size(), 3);
+        List<UploadFileInfo> files = new ArrayList<>();
+        for (BaseIntegrationRequest part : parts) {
+            assertTrue(part.getFiles().size() <= 2);
+            for (UploadFileInfo fileInfo : part.getFiles()) {
+                assertTrue(String.valueOf(part.<Object>getParams()).contains(fileInfo.getFilename()));
+            }
+            files.addAll(part.getFiles());
+        }
+        assertEquals(files, request.getFiles());
+    }
+
+    @Test
+    public void testAttachesUnreferencedFilesWithinTheCap() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(4, true);
+        for (int i = 0; i < 3; i++) {
+            request.getFiles().add(fileInfo("unreferenced-" + i));
+        }
+        List<BaseIntegrationRequest> parts =
+                RequestSplitter.builder(connection).maxPoints(2).maxFiles(2).build().split(request);
+
+        // a part per entry, each with room for one more file
+        assertEquals(parts.size(), 4);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(parts.get(i).getFiles().size(), 2);
+            assertEquals(parts.get(i).getFiles().get(1).getFilename(), "unreferenced-" + i);
+        }
+        assertEquals(parts.get(3).getFiles().size(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testFailsWithoutRoomForUnreferencedFiles() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(4, true);
+        request.getFiles().add(fileInfo("unreferenced"));
+        RequestSplitter.builder(connection).maxFiles(2).build().split(request);
+    }
+
+    @Test
+    public void testMergesResponsesOfParts() throws Exception {
+        IntegrationMeasurepointPostRequest request = request(10, false);
+        SplitIntegrationResponse response =
+                RequestSplitter.builder(connection).maxPoints(4).maxConcurrency(2).build().publish(request);
+
+        assertTrue(response.isSuccess());
+        assertEquals(response.getRequestId(), request.getId());
+        assertEquals(response.getParentRequestId(), request.getId());
+        assertEquals(response.getParts().size(), 5);
+        assertEquals(response.getMsg(), "published in 5 parts");
+        assertTrue(response.getFailedRequests().isEmpty());
+        assertEquals(server.getMessageCount(), 5L);
+    }
+
+    @Test
+    public void testReportsFailedParts() throws Exception {
+        server.setFaults(FaultProfile.builder().errorRate(0.5).build());
+        IntegrationMeasurepointPostRequest request = request(10, false);
+        SplitIntegrationResponse response =
+                RequestSplitter.builder(connection).maxPoints(2).build().publish(request);
+
+        List<SplitIntegrationResponse.Part> failed = response.getFailedParts();
+        assertEquals(response.getParts().size(), 10);
+        assertEquals(failed.size(), server.getErrorCount());
+        assertEquals(response.getFailedRequests().size(), failed.size());
+        assertFalse(failed.isEmpty());
+        assertFalse(response.isSuccess());
+        assertEquals(response.getCode(), 503);
+        assertTrue(response.getMsg().startsWith(failed.size() + " of 10 parts failed, part " + failed.get(0).getIndex()));
+        for (SplitIntegrationResponse.Part part : failed) {
+            assertNull(part.getResponse());
+            assertNotNull(part.getFailure());
+            assertSame(response.getParts().get(part.getIndex()), part);
+        }
+    }
+
+    /** a request of an entry per device with 2 values, the second a file if asked */
+    private static IntegrationMeasurepointPostRequest request(int entries, boolean withFiles) throws Exception {
+        IntegrationMeasurepointPostRequest.Builder builder = IntegrationMeasurepointPostRequest.builder();
+        for (int i = 0; i < entries; i++) {
+            Map<String, Object> values = new HashMap<>();
+            values.put("temp", i);
+            if (withFiles) {
+                values.put("file", tempFile("file-" + i));
+            } else {
+                values.put("pressure", i * 10);
+            }
+            builder.addMeasurepoint(new DeviceInfo().setAssetId("asset-" + i), 1000L + i, values);
+        }
+        IntegrationMeasurepointPostRequest request = builder.build();
+        request.setId("request");
+        return request;
+    }
+
+    private static UploadFileInfo fileInfo(String filename) throws Exception {
+        UploadFileInfo fileInfo = new UploadFileInfo();
+        fileInfo.setFilename(filename);
+        fileInfo.setOriginalFilename(filename);
+        fileInfo.setFile(tempFile(filename));
+        fileInfo.setAssetId("asset-0");
+        return fileInfo;
+    }
+
+    private static File tempFile(String content) throws Exception {
+        File file = Files.createTempFile("split", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes());
+        return file;
+    }
+}
@@ -0,0 +1,127 @@
+package com.enosiot.enos.iot_http_integration;
+
+import com.enosiot.enos.iot_http_integration.message.IntegrationMeasurepointPostRequest;
+import com.enosiot.enos.iot_http_integration.message.IntegrationResponse;
+import com.enosiot.enos.iot_http_integration.retry.RetryBudget;
+import com.enosiot.enos.iot_http_integration.retry.RetryPolicy;
+import com.enosiot.enos.iot_http_integration.testkit.FakeEnosServer;
+import com.enosiot.enos.iot_http_integration.testkit.FaultProfile;
+import com.enosiot.enos.iot_mqtt_sdk.core.exception.EnosException;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class RetryingCallExecutorTest {
+    private static final String APP_KEY = "appKey";
+    private static final String APP_SECRET = "appSecret";
+
+    private FakeEnosServer server;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        server = FakeEnosServer.builder().credentials(APP_KEY, APP_SECRET).seed(1L).start();
+    }
+
+    @AfterMethod
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testRetriesServerErrors() throws Exception {
+        server.setFaults(FaultProfile.builder().errorRate(0.3).build());
+        HttpConnection connection = connect(
+                RetryPolicy.builder()
+                        .maxAttempts(10)
+                        .initialBackoff(1, TimeUnit.MILLISECONDS)
+                        .budget(RetryBudget.unlimited())
+                        .build());
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(connection.publish(request(i), null).isSuccess());
+        }
+        assertTrue(server.getErrorCount() > 0);
+        assertEquals(server.getMessageCount(), 20L);
+    }
+
+    @Test
+    public void testBudgetCapsRetries() throws Exception {
+        server.setFaults(FaultProfile.builder().errorRate(1.0).build());
+        HttpConnection connection = connect(
+                RetryPolicy.builder()
+                        .maxAttempts(5)
+                        .initialBackoff(1, TimeUnit.MILLISECONDS)
+                        .budget(new RetryBudget(0.1, 0.0, 10.0))
+                        .build());
+
+        for (int i = 0; i < 20; i++) {
+            try {
+                connection.publish(request(i), null);
+                fail("publish should have failed");
+            } catch (EnosException e) {
+                assertEquals(e.getErrorCode(), 503);
+            }
+        }
+        // 20 calls deposit 2 retries, instead of the 80 the policy alone would allow
+        assertEquals(server.getRequestCount("postMeasurepoint"), 22L);
+    }
+
+    @Test
+    public void testBudgetStartsFull() {
+        RetryBudget budget = new RetryBudget(0.1, 1.0, 100.0);
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void testRenewsRefusedTokenAsync() throws Exception {
+        HttpConnection connection = connect(RetryPolicy.defaultPolicy());
+        server.revokeTokens();
+
+        IntegrationResponse response = connection.publishAsync(request(0), null).get(10, TimeUnit.SECONDS);
+        assertTrue(response.isSuccess());
+        assertEquals(server.getUnauthorizedCount(), 1L);
+    }
+
+    @Test
+    public void testFailsCallbacksTheExecutorRejects() throws Exception {
+        HttpConnection connection =
+                new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                        .setCallbackExecutor(command -> {
+                            throw new RejectedExecutionException("shut down");
+                        })
+                        .build();
+
+        try {
+            connection.publishAsync(request(0), null).get(10, TimeUnit.SECONDS);
+            fail("a rejected callback should fail the call");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause != null && !(cause instanceof RejectedExecutionException)) {
+                cause = cause.getCause();
+            }
+            assertNotNull(cause, String.valueOf(e.getCause()));
+        }
+        assertEquals(server.getMessageCount(), 1L);
+    }
+
+    private HttpConnection connect(RetryPolicy retryPolicy) throws EnosException {
+        return new HttpConnection.Builder(server.getUrl(), server.getUrl(), APP_KEY, APP_SECRET, "orgId")
+                .setRetryPolicy(retryPolicy)
+                .build();
+    }
+
+    private static IntegrationMeasurepointPostRequest request(int i) {
+        return IntegrationMeasurepointPostRequest.builder()
+                .addMeasurepoint(new DeviceInfo().setAssetId("asset"), 1000L + i, Collections.singletonMap("temp", i))
+                .build();
+    }
+}
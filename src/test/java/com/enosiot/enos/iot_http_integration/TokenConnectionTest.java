@@ -0,0 +1,61 @@
+package com.enosiot.enos.iot_http_integration;
+
+import okhttp3.OkHttpClient;
+import org.testng.annotations.Test;
+
+import java.util.Calendar;
+
+import static org.testng.Assert.*;
+
+public class TokenConnectionTest {
+    private static final OkHttpClient CLIENT = new OkHttpClient();
+
+    @Test
+    public void testBuildsWithInitialToken() {
+        Calendar expireTime = Calendar.getInstance();
+        expireTime.add(Calendar.HOUR, 2);
+        Calendar refreshTime = Calendar.getInstance();
+        refreshTime.add(Calendar.HOUR, 1);
+
+        TokenConnection connection = builder()
+                .accessToken("token")
+                .expireTime(expireTime)
+                .refreshTime(refreshTime)
+                .build();
+        assertEquals(connection.getAccessToken(), "token");
+        assertEquals(connection.getExpireTime().getTimeInMillis(), expireTime.getTimeInMillis());
+        assertEquals(connection.getRefreshTime().getTimeInMillis(), refreshTime.getTimeInMillis());
+        assertFalse(connection.needGetToken());
+        assertFalse(connection.needRefreshToken());
+    }
+
+    @Test
+    public void testBuildsWithoutToken() {
+        TokenConnection connection = builder().build();
+        assertNull(connection.getCurrentToken());
+        assertNull(connection.getAccessToken());
+        assertTrue(connection.needGetToken());
+    }
+
+    @Test
+    public void testEqualsBySettingsAndToken() {
+        Calendar expireTime = Calendar.getInstance();
+        TokenConnection connection = builder().accessToken("token").expireTime(expireTime).build();
+        TokenConnection same = builder().accessToken("token").expireTime(expireTime).build();
+        assertEquals(connection, same);
+        assertEquals(connection.hashCode(), same.hashCode());
+        assertNotEquals(connection, builder().accessToken("other").expireTime(expireTime).build());
+        assertNotEquals(connection, builder().build());
+
+        assertTrue(connection.toString().contains("accessToken=token"));
+        assertFalse(connection.toString().contains("secret"));
+    }
+
+    private static TokenConnection.TokenConnectionBuilder builder() {
+        return TokenConnection.builder()
+                .tokenServerUrl("http://localhost")
+                .appKey("key")
+                .appSecret("secret")
+                .okHttpClient(CLIENT);
+    }
+}
@@ -0,0 +1,155 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_mqtt_sdk.message.upstream.tsl.UploadFileInfo;
+import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
+import com.enosiot.enos.sdk.data.DeviceInfo;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import okio.Buffer;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+/** The streamed encoding must be the bytes Gson used to encode the message to */
+public class JsonValueWriterTest {
+    private static final JsonParser PARSER = new JsonParser();
+
+    @DataProvider
+    public Object[][] values() {
+        Map<String, Object> withNulls = new LinkedHashMap<>();
+        withNulls.put("a", null);
+        withNulls.put("b", 1);
+        withNulls.put("c", null);
+
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("list", Arrays.asList(1, "two", null, Arrays.asList(3.5, false)));
+        inner.put("empty", new LinkedHashMap<>());
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("inner", inner);
+        nested.put("array", new Object[] {"x", 2L, null});
+
+        return new Object[][] {
+            {null},
+            {withNulls},
+            {Arrays.asList(null, null)},
+            {nested},
+            {Collections.singletonMap(7, "key of another type")},
+            {Arrays.asList(0, -1, Integer.MAX_VALUE, Long.MIN_VALUE, 1.0, 0.1, 1e20, -0.0, 1.5f)},
+            {Arrays.asList(new BigDecimal("1.10"), new BigInteger("123456789012345678901234567890"))},
+            {new int[] {1, 2}},
+            {new long[] {Long.MAX_VALUE}},
+            {new double[] {1.0, 2.5e-10}},
+            {new float[] {0.1f}},
+            {new boolean[] {true, false}},
+            {new char[] {'a', '"'}},
+            {'c'},
+            {true},
+            {"plain"},
+            {"quotes \" and \\ and / and \n\r\t\b\f \u0000\u001f\u007f"},
+            {"html <a href='x'>&amp;</a> = escaped"},
+            {"line separators \u2028 \u2029"},
+            {"non-ASCII: température, 温度, Ωμέγα"},
+            {"surrogate pair: 😀 and 𝄞"},
+            {"unpaired high \uD83D in the middle"},
+            {"unpaired low \uDE00 in the middle"},
+            {"trailing high \uD83D"},
+            {"\uDE00\uD83D reversed pair"},
+            {Collections.singletonMap("k😀", "\uD83D")},
+        };
+    }
+
+    @Test(dataProvider = "values")
+    public void testWritesWhatGsonWrote(Object value) throws Exception {
+        byte[] expected = GsonUtil.toJson(value).getBytes(UTF_8);
+        byte[] actual = write(value);
+        assertEquals(new String(actual, UTF_8), new String(expected, UTF_8));
+        assertEquals(actual, expected);
+        assertEquals(JsonValueWriter.encodedLength(value), expected.length);
+    }
+
+    @Test
+    public void testLongStringsSplitAcrossWrites() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append(i % 3 == 0 ? "😀" : i % 3 == 1 ? "é" : "x");
+        }
+        String value = text.toString();
+        assertEquals(write(value), GsonUtil.toJson(value).getBytes(UTF_8));
+    }
+
+    @Test
+    public void testEncodesMessageLikeGsonPayload() throws Exception {
+        File file = Files.createTempFile("attachment", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), "content <&>".getBytes(UTF_8));
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("temp", 1.5);
+        values.put("text", "温度 😀");
+        Map<String, Object> struct = new LinkedHashMap<>();
+        struct.put("list", Arrays.asList(1, null));
+        struct.put("missing", null);
+        values.put("struct", struct);
+        values.put("file", file);
+        IntegrationMeasurepointPostRequest request = IntegrationMeasurepointPostRequest.builder()
+                .addMeasurepoint(new DeviceInfo().setAssetId("asset"), 1000L, values)
+                .build();
+        request.setId("1");
+        request.setVersion("1.0");
+
+        // the previous encoding, a map handed to Gson
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("id", request.getId());
+        payload.put("version", request.getVersion());
+        payload.put("method", request.getMethod());
+        payload.put("params", request.<Object>getParams());
+        Map<String, Object> files = new HashMap<>();
+        for (UploadFileInfo fileInfo : request.getFiles()) {
+            Map<String, String> map = new HashMap<>();
+            map.put("featureId", fileInfo.getFeatureId());
+            map.put("fileName", fileInfo.getFilename());
+            map.put("originalFilename", fileInfo.getOriginalFilename());
+            map.put("fileLength", String.valueOf(file.length()));
+            map.put("fileExt", ".txt");
+            map.put("assetId", fileInfo.getAssetId());
+            map.put("md5", md5(file));
+            files.put(fileInfo.getFilename(), map);
+        }
+        payload.put("files", files);
+        payload.put("isRealtimeIntegration", request.isRealtimeIntegration());
+
+        String encoded = new String(request.encode(), UTF_8);
+        assertEquals(PARSER.parse(encoded), PARSER.parse(GsonUtil.toJson(payload)));
+        assertFalse(encoded.contains("missing"));
+    }
+
+    private static byte[] write(Object value) throws Exception {
+        Buffer buffer = new Buffer();
+        JsonWriter writer = JsonValueWriter.newWriter(buffer);
+        JsonValueWriter.write(writer, value);
+        writer.flush();
+        return buffer.readByteArray();
+    }
+
+    private static String md5(File file) throws Exception {
+        byte[] digest = MessageDigest.getInstance("MD5").digest(Files.readAllBytes(file.toPath()));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,226 @@
+package com.enosiot.enos.iot_http_integration.message;
+
+import com.enosiot.enos.iot_http_integration.TokenResponse;
+import com.enosiot.enos.iot_mqtt_sdk.util.GsonUtil;
+import com.google.gson.JsonParseException;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+/** The streamed decoding must bind what Gson used to bind the responses to */
+public class ResponseDecoderTest {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @DataProvider
+    public Object[][] integrationResponses() {
+        return new Object[][] {
+            {"{\"code\":0,\"msg\":\"OK\",\"requestId\":\"1\"}"},
+            {"{\"code\":0,\"msg\":\"OK\",\"requestId\":\"1\",\"data\":{\"uriInfoList\":["
+                    + "{\"fileUri\":\"enos-connect://a.txt\",\"uploadUrl\":\"https://lark/a?x=1&y=2\","
+                    + "\"filename\":\"a.txt\",\"headers\":{\"Content-Type\":\"text/plain\",\"x-null\":null}},"
+                    + "{\"fileUri\":\"enos-connect://温度.txt\",\"filename\":null}]}}"},
+            {"{\"code\":400,\"msg\":\"invalid measurepoint: 温度 😀\",\"requestId\":null,\"data\":null}"},
+            {"{\"code\":\"503\",\"msg\":42,\"unknown\":{\"nested\":[1,{\"a\":true}]},\"data\":{\"other\":1}}"},
+            // lenient, as Gson#fromJson is
+            {"{code:0,'msg':'single quoted',requestId:abc}"},
+            {"  \n{\"code\":0}\n"},
+        };
+    }
+
+    @Test(dataProvider = "integrationResponses")
+    public void testDecodesIntegrationResponse(String json) throws Exception {
+        IntegrationResponse expected = GsonUtil.fromJson(json, IntegrationResponse.class);
+        assertEquals(decode(json, IntegrationResponse.class), expected);
+        assertEquals(decodeInChunks(json, IntegrationResponse.class), expected);
+    }
+
+    @DataProvider
+    public Object[][] fileInfoResponses() {
+        return new Object[][] {
+            {"{\"code\":0,\"msg\":\"OK\",\"requestId\":\"r\",\"data\":{\"orgId\":\"o\",\"category\":\"feature\","
+                    + "\"fileUri\":\"enos-connect://a\",\"originalFilename\":\"données.bin\",\"fileSize\":5000000000,"
+                    + "\"md5\":\"d41d8cd98f00b204e9800998ecf8427e\",\"signMethod\":\"sha256\",\"sign\":\"s\","
+                    + "\"createTime\":1600000000000,\"extra\":[]}}"},
+            {"{\"code\":0,\"data\":{\"fileSize\":null,\"createTime\":\"1600000000000\"}}"},
+            {"{\"code\":404,\"msg\":\"file not found\",\"data\":null}"},
+        };
+    }
+
+    @Test(dataProvider = "fileInfoResponses")
+    public void testDecodesFileInfoResponse(String json) throws Exception {
+        FileInfoResponse expected = GsonUtil.fromJson(json, FileInfoResponse.class);
+        assertEquals(decode(json, FileInfoResponse.class), expected);
+        assertEquals(decodeInChunks(json, FileInfoResponse.class), expected);
+    }
+
+    @DataProvider
+    public Object[][] fileDownloadResponses() {
+        return new Object[][] {
+            {"{\"code\":0,\"msg\":\"OK\",\"requestId\":12,\"data\":\"https://lark/download?token=a&b=c\"}"},
+            {"{\"code\":0,\"requestId\":\"12\",\"data\":\"url\"}"},
+            {"{\"code\":403,\"msg\":\"no permission\",\"requestId\":null,\"data\":null}"},
+        };
+    }
+
+    @Test(dataProvider = "fileDownloadResponses")
+    public void testDecodesFileDownloadResponse(String json) throws Exception {
+        FileDownloadResponse expected = GsonUtil.fromJson(json, FileDownloadResponse.class);
+        assertFileDownloadResponse(decode(json, FileDownloadResponse.class), expected);
+        assertFileDownloadResponse(decodeInChunks(json, FileDownloadResponse.class), expected);
+    }
+
+    @Test
+    public void testDecodesNonNumericDownloadRequestIdAsZero() throws Exception {
+        // Gson fails on these, the broker may send any string
+        for (String requestId : new String[] {"\"abc\"", "\"\"", "12345678901"}) {
+            String json = "{\"code\":0,\"requestId\":" + requestId + ",\"data\":\"url\"}";
+            FileDownloadResponse response = decode(json, FileDownloadResponse.class);
+            assertEquals(response.getRequestId(), 0);
+            assertEquals(response.getData(), "url");
+        }
+    }
+
+    @DataProvider
+    public Object[][] tokenResponses() {
+        return new Object[][] {
+            {"{\"status\":0,\"msg\":\"Success\",\"business\":\"0\",\"data\":{\"accessToken\":\"t\",\"expire\":7199}}"},
+            {"{\"status\":401,\"msg\":\"invalid signature\",\"business\":\"1\",\"data\":null}"},
+            {"{\"status\":\"0\",\"data\":{\"accessToken\":\"t\",\"expire\":\"60\",\"refresh\":true}}"},
+        };
+    }
+
+    @Test(dataProvider = "tokenResponses")
+    public void testDecodesTokenResponse(String json) throws Exception {
+        TokenResponse expected = GsonUtil.fromJson(json, TokenResponse.class);
+        assertEquals(decode(json, TokenResponse.class), expected);
+        assertEquals(decodeInChunks(json, TokenResponse.class), expected);
+    }
+
+    @Test
+    public void testDecodesEmptyBodyToNull() throws Exception {
+        for (String json : new String[] {"", " \n\t"}) {
+            assertNull(GsonUtil.fromJson(json, IntegrationResponse.class));
+            assertNull(decode(json, IntegrationResponse.class));
+            assertNull(decode(json, FileInfoResponse.class));
+            assertNull(decode(json, FileDownloadResponse.class));
+            assertNull(decode(json, TokenResponse.class));
+        }
+    }
+
+    @Test
+    public void testDecodesJsonNullToNull() throws Exception {
+        assertNull(GsonUtil.fromJson("null", IntegrationResponse.class));
+        assertNull(decode("null", IntegrationResponse.class));
+    }
+
+    @DataProvider
+    public Object[][] invalidBodies() {
+        return new Object[][] {
+            {"<html><body>502 Bad Gateway</body></html>"},
+            {"[1,2]"},
+            {"{\"code\":\"not a number\"}"},
+            {"{\"code\":0,\"data\":{\"uriInfoList\":{}}}"},
+        };
+    }
+
+    @Test(dataProvider = "invalidBodies")
+    public void testFailsOnInvalidBodyLikeGson(String json) throws Exception {
+        try {
+            GsonUtil.fromJson(json, IntegrationResponse.class);
+            fail("Gson should have failed");
+        } catch (JsonParseException expected) {
+            // both fail
+        }
+        try {
+            decode(json, IntegrationResponse.class);
+            fail("decoding should have failed");
+        } catch (JsonParseException expected) {
+            // both fail
+        }
+    }
+
+    @Test
+    public void testDecodesOtherCharsetsAndByteOrderMark() throws Exception {
+        String json = "{\"code\":0,\"msg\":\"température\"}";
+        IntegrationResponse expected = GsonUtil.fromJson(json, IntegrationResponse.class);
+
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        ResponseBody body = ResponseBody.create(
+                MediaType.parse("application/json; charset=iso-8859-1"), json.getBytes(latin1));
+        assertEquals(ResponseDecoder.decode(body, IntegrationResponse.class), expected);
+
+        Buffer withBom = new Buffer().write(new byte[] {(byte) 0xef, (byte) 0xbb, (byte) 0xbf}).writeUtf8(json);
+        assertEquals(ResponseDecoder.decode(ResponseBody.create(JSON, -1, withBom), IntegrationResponse.class), expected);
+
+        // no charset, decoded as UTF-8
+        ResponseBody noCharset = ResponseBody.create(MediaType.parse("application/json"), json.getBytes(UTF_8));
+        assertEquals(ResponseDecoder.decode(noCharset, IntegrationResponse.class), expected);
+    }
+
+    @Test
+    public void testDecodesLongMultiByteTextSplitAcrossReads() throws Exception {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            msg.append(i % 4 == 0 ? "😀" : i % 4 == 1 ? "é" : i % 4 == 2 ? "温" : "x");
+        }
+        String json = "{\"code\":1,\"msg\":\"" + msg + "\"}";
+        IntegrationResponse expected = GsonUtil.fromJson(json, IntegrationResponse.class);
+        assertEquals(decode(json, IntegrationResponse.class), expected);
+        assertEquals(decodeInChunks(json, IntegrationResponse.class), expected);
+    }
+
+    @Test
+    public void testClosesBody() throws Exception {
+        boolean[] closed = new boolean[1];
+        Buffer buffer = new Buffer().writeUtf8("{\"code\":0");
+        ResponseBody body = ResponseBody.create(JSON, -1, Okio.buffer(new ForwardingSource(buffer) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        }));
+        try {
+            ResponseDecoder.decode(body, IntegrationResponse.class);
+            fail("a truncated body should fail");
+        } catch (IOException | JsonParseException expected) {
+            // truncated
+        }
+        assertTrue(closed[0]);
+    }
+
+    private static <T> T decode(String json, Class<T> type) throws IOException {
+        return ResponseDecoder.decode(ResponseBody.create(JSON, json.getBytes(UTF_8)), type);
+    }
+
+    /** decode from a source returning a few bytes at a time, splitting multi-byte sequences */
+    private static <T> T decodeInChunks(String json, Class<T> type) throws IOException {
+        Buffer content = new Buffer().writeUtf8(json);
+        ForwardingSource chunked = new ForwardingSource(content) {
+            long reads;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                return super.read(sink, Math.min(byteCount, 1 + reads++ % 5));
+            }
+        };
+        return ResponseDecoder.decode(ResponseBody.create(JSON, -1, Okio.buffer(chunked)), type);
+    }
+
+    private static void assertFileDownloadResponse(FileDownloadResponse actual, FileDownloadResponse expected) {
+        assertEquals(actual.getRequestId(), expected.getRequestId());
+        assertEquals(actual.getCode(), expected.getCode());
+        assertEquals(actual.getMsg(), expected.getMsg());
+        assertEquals(actual.getData(), expected.getData());
+    }
+}
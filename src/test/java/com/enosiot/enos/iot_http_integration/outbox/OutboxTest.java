@@ -0,0 +1,96 @@
+package com.enosiot.enos.iot_http_integration.outbox;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+public class OutboxTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("outbox");
+    }
+
+    @Test
+    public void testUnmapsOnThisJvm() {
+        assertTrue(MappedBuffers.isUnmapSupported());
+    }
+
+    @Test
+    public void testDeletesConsumedSegments() throws Exception {
+        Outbox outbox = Outbox.builder(directory).segmentSize(SEGMENT_SIZE).build();
+        for (int i = 0; i < 20; i++) {
+            outbox.append("action", message(i));
+        }
+        assertTrue(segmentFiles().size() > 1);
+
+        for (int i = 0; i < 20; i++) {
+            OutboxRecord record = outbox.peek();
+            assertEquals(record.getMessage(), message(i));
+            outbox.commit(record);
+        }
+        assertNull(outbox.peek());
+        assertEquals(segmentFiles().size(), 1);
+        assertEquals(outbox.getDiskBytes(), SEGMENT_SIZE);
+        outbox.close();
+    }
+
+    @Test
+    public void testDropsOldestSegmentsWithinQuota() throws Exception {
+        Outbox outbox = Outbox.builder(directory)
+                .segmentSize(SEGMENT_SIZE)
+                .maxDiskBytes(3 * SEGMENT_SIZE)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            outbox.append("action", message(i));
+            assertTrue(outbox.getDiskBytes() <= 3 * SEGMENT_SIZE);
+            assertEquals(segmentFiles().size() * (long) SEGMENT_SIZE, outbox.getDiskBytes());
+        }
+        assertTrue(outbox.getDroppedRecords() > 0);
+        outbox.close();
+    }
+
+    @Test
+    public void testReopensClosedOutbox() throws Exception {
+        Outbox outbox = Outbox.builder(directory).segmentSize(SEGMENT_SIZE).build();
+        for (int i = 0; i < 20; i++) {
+            outbox.append("action", message(i));
+        }
+        outbox.commit(outbox.peek());
+        outbox.close();
+        outbox.close();
+
+        Outbox reopened = Outbox.builder(directory).segmentSize(SEGMENT_SIZE).build();
+        for (int i = 1; i < 20; i++) {
+            OutboxRecord record = reopened.peek();
+            assertEquals(record.getMessage(), message(i));
+            reopened.commit(record);
+        }
+        assertTrue(reopened.isEmpty());
+        reopened.close();
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*")) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private static byte[] message(int i) {
+        return ("{\"id\":\"" + i + "\",\"padding\":\"0123456789012345678901234567890123456789\"}").getBytes(UTF_8);
+    }
+}
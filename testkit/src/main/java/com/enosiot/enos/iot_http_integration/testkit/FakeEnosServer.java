@@ -0,0 +1,686 @@
+package com.enosiot.enos.iot_http_integration.testkit;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.ByteString;
+
+import javax.net.ServerSocketFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process stand-in for the EnOS HTTP integration broker and the APIM token service, serving
+ * the endpoints {@code HttpConnection} and {@code TokenConnection} call:
+ *
+ * <ul>
+ *   <li>{@code /apim-token-service/v2.0/token/get} and {@code /token/refresh}
+ *   <li>{@code /connect-service/v2.1/integration}, with or without {@code useLark}
+ *   <li>{@code /connect-service/v2.1/files}: delete, getFileInfo, download, getDownloadUrl
+ *   <li>{@code /connect-service/v2.5/files}: downloadFirmwareFile
+ * </ul>
+ *
+ * <p>Downloads honor {@code Range} headers. In lark mode, files are not sent to the broker but
+ * uploaded to the URLs returned in its response, which the fake serves as well. Compressed parts
+ * are decoded according to their {@code Content-Encoding}.
+ *
+ * <p>A {@link FaultProfile} injects latency, errors, disconnections, 429 throttling and bandwidth
+ * limits into broker calls, and can be changed while a test runs.
+ *
+ * <pre>
+ * try (FakeEnosServer server = FakeEnosServer.builder()
+ *         .faults(FaultProfile.builder().latency(LatencyDistribution.logNormal(20, 200)).build())
+ *         .start()) {
+ *     HttpConnection connection = new HttpConnection.Builder(
+ *             server.getUrl(), server.getUrl(), "appKey", "appSecret", "orgId").build();
+ *     ...
+ * }
+ * </pre>
+ */
+public final class FakeEnosServer implements Closeable {
+    static final String TOKEN_PATH_PREFIX = "/apim-token-service/v2.0/token/";
+    static final String INTEGRATION_PATH = "/connect-service/v2.1/integration";
+    static final String FILES_PATH = "/connect-service/v2.1/files";
+    static final String FILES_V25_PATH = "/connect-service/v2.5/files";
+    static final String LARK_UPLOAD_PATH = "/lark/upload";
+    static final String LARK_DOWNLOAD_PATH = "/lark/download";
+
+    private static final String ACCESS_TOKEN_HEADER = "apim-accesstoken";
+    private static final String MESSAGE_PART = "enos-message";
+    private static final String FILE_URI_SCHEME = "enos-connect://";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /** an instance rather than the static methods of Gson 2.8.6, to run with the Gson of the SDK */
+    private static final JsonParser PARSER = new JsonParser();
+
+    /** Receives the integration messages the fake accepts */
+    public interface MessageListener {
+        /**
+         * @param action {@code action} query parameter, such as {@code postMeasurepoint}
+         * @param message decoded {@code enos-message} part
+         */
+        void onMessage(String action, JsonObject message);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private String appKey;
+
+        private String appSecret;
+
+        private int tokenExpireSeconds = 7200;
+
+        private LatencyDistribution tokenLatency = LatencyDistribution.none();
+
+        private FaultProfile faults = FaultProfile.none();
+
+        private long seed = System.nanoTime();
+
+        private Builder() {
+        }
+
+        /** Check the signature of token requests against these credentials, not checked if unset */
+        public Builder credentials(String appKey, String appSecret) {
+            this.appKey = appKey;
+            this.appSecret = appSecret;
+            return this;
+        }
+
+        /** Lifetime of the issued access tokens */
+        public Builder tokenExpireSeconds(int tokenExpireSeconds) {
+            if (tokenExpireSeconds <= 0) {
+                throw new IllegalArgumentException("tokenExpireSeconds must be positive");
+            }
+            this.tokenExpireSeconds = tokenExpireSeconds;
+            return this;
+        }
+
+        public Builder tokenLatency(LatencyDistribution tokenLatency) {
+            if (tokenLatency == null) {
+                throw new NullPointerException("tokenLatency");
+            }
+            this.tokenLatency = tokenLatency;
+            return this;
+        }
+
+        public Builder faults(FaultProfile faults) {
+            if (faults == null) {
+                throw new NullPointerException("faults");
+            }
+            this.faults = faults;
+            return this;
+        }
+
+        /** Seed of the random faults and latencies, to make a run reproducible */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /** Start the server on a free local port */
+        public FakeEnosServer start() throws IOException {
+            FakeEnosServer server = new FakeEnosServer(this);
+            server.server.start();
+            return server;
+        }
+    }
+
+    private static final class StoredFile {
+        final byte[] content;
+        final String originalFilename;
+        final long createTime = System.currentTimeMillis();
+
+        StoredFile(byte[] content, String originalFilename) {
+            this.content = content;
+            this.originalFilename = originalFilename;
+        }
+    }
+
+    private final MockWebServer server = new MockWebServer();
+    private final String appKey;
+    private final String appSecret;
+    private final int tokenExpireSeconds;
+    private final LatencyDistribution tokenLatency;
+    private final Random random;
+
+    private volatile FaultProfile faults;
+    private volatile MessageListener messageListener;
+    private volatile boolean serveRanges = true;
+
+    /** live access tokens and their expire time in millis */
+    private final Map<String, Long> tokens = new ConcurrentHashMap<>();
+    private final AtomicLong tokenSequence = new AtomicLong();
+
+    private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> firmwares = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong disconnectCount = new AtomicLong();
+    private final AtomicLong unauthorizedCount = new AtomicLong();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong messageBytes = new AtomicLong();
+    private final AtomicLong encodedMessageBytes = new AtomicLong();
+
+    /** token bucket of the 429 throttling */
+    private double throttleTokens;
+    private long throttleRefillNanos = System.nanoTime();
+
+    private FakeEnosServer(Builder builder) {
+        this.appKey = builder.appKey;
+        this.appSecret = builder.appSecret;
+        this.tokenExpireSeconds = builder.tokenExpireSeconds;
+        this.tokenLatency = builder.tokenLatency;
+        this.faults = builder.faults;
+        this.random = new Random(builder.seed);
+        this.server.setDispatcher(new FakeDispatcher());
+        this.server.setServerSocketFactory(new NoDelayServerSocketFactory());
+    }
+
+    /** @return base URL of both the integration broker and the token service */
+    public String getUrl() {
+        String url = server.url("/").toString();
+        return url.substring(0, url.length() - 1);
+    }
+
+    public FaultProfile getFaults() {
+        return faults;
+    }
+
+    /** Replace the faults, taking effect from the next call */
+    public void setFaults(FaultProfile faults) {
+        if (faults == null) {
+            throw new NullPointerException("faults");
+        }
+        this.faults = faults;
+    }
+
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /** Honor {@code Range} headers of downloads, or answer them with the whole content */
+    public void setServeRanges(boolean serveRanges) {
+        this.serveRanges = serveRanges;
+    }
+
+    /** Store a file, to be downloaded with its file URI */
+    public void putFile(String fileUri, byte[] content) {
+        files.put(fileUri, new StoredFile(content, fileUri.substring(fileUri.lastIndexOf('/') + 1)));
+    }
+
+    /** @return content of a stored or uploaded file, {@code null} if there is none */
+    public byte[] getFile(String fileUri) {
+        StoredFile file = files.get(fileUri);
+        return file == null ? null : file.content;
+    }
+
+    public void putFirmware(String firmwareId, byte[] content) {
+        firmwares.put(firmwareId, content);
+    }
+
+    /** Invalidate every issued access token, so that the following broker calls get a 401 */
+    public void revokeTokens() {
+        tokens.clear();
+    }
+
+    /** @return calls of an action, including the failed ones */
+    public long getRequestCount(String action) {
+        AtomicLong count = requestCounts.get(action);
+        return count == null ? 0L : count.get();
+    }
+
+    /** @return calls of every action and of the token service */
+    public long getRequestCount() {
+        return requestCounts.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    public long getUnauthorizedCount() {
+        return unauthorizedCount.get();
+    }
+
+    /** @return integration messages accepted */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    /** @return decoded size of the accepted messages */
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+
+    /** @return size of the accepted messages as sent, compressed or not */
+    public long getEncodedMessageBytes() {
+        return encodedMessageBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private class FakeDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            // the server records every request, drop one per call to keep memory flat under load
+            server.takeRequest(0L, TimeUnit.NANOSECONDS);
+
+            HttpUrl url = request.getRequestUrl();
+            String path = url.encodedPath();
+            try {
+                if (path.startsWith(TOKEN_PATH_PREFIX)) {
+                    count(path.substring(path.lastIndexOf('/') + 1) + "Token");
+                    return delay(token(request, path), tokenLatency);
+                }
+                if (path.equals(LARK_UPLOAD_PATH) || path.equals(LARK_DOWNLOAD_PATH)) {
+                    count(path);
+                    return shape(lark(request, path, url), faults);
+                }
+
+                String action = url.queryParameter("action");
+                count(action);
+                FaultProfile profile = faults;
+                MockResponse injected = injectFault(profile);
+                if (injected != null) {
+                    return shape(injected, profile);
+                }
+                if (!isAuthorized(request)) {
+                    unauthorizedCount.incrementAndGet();
+                    return shape(error(401, "invalid access token"), profile);
+                }
+
+                MockResponse response;
+                if (path.equals(INTEGRATION_PATH)) {
+                    response = integration(request, action, url);
+                } else if (path.equals(FILES_PATH)) {
+                    response = files(request, action, url);
+                } else if (path.equals(FILES_V25_PATH)
+                        && "downloadFirmwareFile".equals(action)) {
+                    byte[] firmware = firmwares.get(String.valueOf(url.queryParameter("firmwareId")));
+                    response = firmware == null ? error(404, "firmware not found") : ranged(request, firmware);
+                } else {
+                    response = error(404, "unknown endpoint " + path);
+                }
+                return shape(response, profile);
+            } catch (IOException | RuntimeException e) {
+                return error(400, String.valueOf(e.getMessage()));
+            }
+        }
+
+        @Override
+        public MockResponse peek() {
+            // the peeked response throttles the request body, before it is dispatched
+            MockResponse response = super.peek();
+            long bytesPerSecond = faults.getBytesPerSecond();
+            return bytesPerSecond > 0 ? throttle(response, bytesPerSecond) : response;
+        }
+    }
+
+    /**
+     * MockWebServer writes headers and body separately, which Nagle's algorithm and delayed ACKs
+     * would turn into 40 ms of latency per response
+     */
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = new Socket();
+                    implAccept(socket);
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port));
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port), backlog);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address)
+                throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        }
+    }
+
+    private void count(String action) {
+        String key = action == null ? "unknown" : action;
+        AtomicLong count = requestCounts.get(key);
+        if (count == null) {
+            count = requestCounts.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    private MockResponse injectFault(FaultProfile profile) {
+        if (profile.getMaxRequestsPerSecond() > 0 && !tryAcquireThrottle(profile.getMaxRequestsPerSecond())) {
+            throttledCount.incrementAndGet();
+            return error(429, "too many requests")
+                    .setHeader("Retry-After", profile.getRetryAfterSeconds());
+        }
+        if (profile.getDisconnectRate() > 0 && random.nextDouble() < profile.getDisconnectRate()) {
+            disconnectCount.incrementAndGet();
+            return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+        if (profile.getErrorRate() > 0 && random.nextDouble() < profile.getErrorRate()) {
+            errorCount.incrementAndGet();
+            return error(profile.getErrorCode(), "injected error");
+        }
+        return null;
+    }
+
+    private synchronized boolean tryAcquireThrottle(double maxRequestsPerSecond) {
+        long now = System.nanoTime();
+        double refill = (now - throttleRefillNanos) / 1e9 * maxRequestsPerSecond;
+        throttleRefillNanos = now;
+        // bursts of up to one second worth of calls are let through
+        throttleTokens = Math.min(Math.max(1.0, maxRequestsPerSecond), throttleTokens + refill);
+        if (throttleTokens < 1.0) {
+            return false;
+        }
+        throttleTokens -= 1.0;
+        return true;
+    }
+
+    private boolean isAuthorized(RecordedRequest request) {
+        String token = request.getHeader(ACCESS_TOKEN_HEADER);
+        Long expireAt = token == null ? null : tokens.get(token);
+        return expireAt != null && expireAt > System.currentTimeMillis();
+    }
+
+    private MockResponse shape(MockResponse response, FaultProfile profile) {
+        delay(response, profile.getLatency());
+        long bytesPerSecond = profile.getBytesPerSecond();
+        return bytesPerSecond > 0 ? throttle(response, bytesPerSecond) : response;
+    }
+
+    private MockResponse delay(MockResponse response, LatencyDistribution latency) {
+        long millis = latency.sampleMillis(random);
+        return millis > 0 ? response.setHeadersDelay(millis, TimeUnit.MILLISECONDS) : response;
+    }
+
+    private static MockResponse throttle(MockResponse response, long bytesPerSecond) {
+        // 100 ms periods keep the transfer smooth
+        return response.throttleBody(Math.max(1L, bytesPerSecond / 10), 100L, TimeUnit.MILLISECONDS);
+    }
+
+    // ======== token service =========
+
+    private MockResponse token(RecordedRequest request, String path) {
+        JsonObject body = PARSER.parse(request.getBody().readUtf8()).getAsJsonObject();
+        if (appKey != null) {
+            String timestamp = string(body, "timestamp");
+            String encryption = string(body, "encryption");
+            if (!appKey.equals(string(body, "appKey"))
+                    || encryption == null
+                    || !encryption.equalsIgnoreCase(sha256(appKey + timestamp + appSecret))) {
+                JsonObject refused = new JsonObject();
+                refused.addProperty("status", 1);
+                refused.addProperty("msg", "invalid app key or signature");
+                return json(200, refused);
+            }
+        }
+        if (path.endsWith("/refresh")) {
+            String previous = string(body, "accessToken");
+            if (previous == null || !tokens.containsKey(previous)) {
+                JsonObject refused = new JsonObject();
+                refused.addProperty("status", 1);
+                refused.addProperty("msg", "access token to refresh is invalid");
+                return json(200, refused);
+            }
+        }
+
+        String accessToken = "fake-token-" + tokenSequence.incrementAndGet();
+        tokens.put(accessToken, System.currentTimeMillis() + tokenExpireSeconds * 1000L);
+
+        JsonObject data = new JsonObject();
+        data.addProperty("accessToken", accessToken);
+        data.addProperty("expire", tokenExpireSeconds);
+        JsonObject response = new JsonObject();
+        response.addProperty("status", 0);
+        response.addProperty("msg", "Success");
+        response.addProperty("business", "0");
+        response.add("data", data);
+        return json(200, response);
+    }
+
+    // ======== integration broker =========
+
+    private MockResponse integration(RecordedRequest request, String action, HttpUrl url)
+            throws IOException {
+        List<MultipartParser.Part> parts =
+                MultipartParser.parse(request.getHeader("Content-Type"), request.getBody());
+        MultipartParser.Part messagePart = null;
+        for (MultipartParser.Part part : parts) {
+            if (MESSAGE_PART.equals(part.name)) {
+                messagePart = part;
+            }
+        }
+        if (messagePart == null) {
+            return error(400, "missing " + MESSAGE_PART + " part");
+        }
+        JsonObject message =
+                PARSER.parse(new String(messagePart.content, UTF_8)).getAsJsonObject();
+        messageCount.incrementAndGet();
+        messageBytes.addAndGet(messagePart.content.length);
+        encodedMessageBytes.addAndGet(messagePart.encodedLength);
+
+        boolean useLark = "true".equals(url.queryParameter("useLark"));
+        JsonArray uriInfos = new JsonArray();
+        JsonElement fileInfos = message.get("files");
+        if (fileInfos != null && fileInfos.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : fileInfos.getAsJsonObject().entrySet()) {
+                String filename = entry.getKey();
+                String fileUri = FILE_URI_SCHEME + filename;
+                String originalFilename = string(entry.getValue().getAsJsonObject(), "originalFilename");
+                if (useLark) {
+                    JsonObject uriInfo = new JsonObject();
+                    uriInfo.addProperty("fileUri", fileUri);
+                    uriInfo.addProperty("uploadUrl", larkUrl(LARK_UPLOAD_PATH, fileUri));
+                    uriInfo.addProperty("filename", filename);
+                    uriInfo.add("headers", new JsonObject());
+                    uriInfos.add(uriInfo);
+                    // registered now, the content arrives with the upload
+                    files.put(fileUri, new StoredFile(new byte[0], originalFilename));
+                    continue;
+                }
+                for (MultipartParser.Part part : parts) {
+                    if (filename.equals(part.filename)) {
+                        files.put(fileUri, new StoredFile(part.content, originalFilename));
+                    }
+                }
+            }
+        }
+
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.onMessage(action, message);
+        }
+
+        JsonObject response = success(string(message, "id"));
+        if (useLark) {
+            JsonObject data = new JsonObject();
+            data.add("uriInfoList", uriInfos);
+            response.add("data", data);
+        }
+        return json(200, response);
+    }
+
+    private MockResponse files(RecordedRequest request, String action, HttpUrl url) {
+        String fileUri = String.valueOf(url.queryParameter("fileUri"));
+        StoredFile file = files.get(fileUri);
+        if ("delete".equals(action)) {
+            return file != null && files.remove(fileUri) != null
+                    ? json(200, success(null))
+                    : error(404, "file not found");
+        }
+        if (file == null) {
+            return error(404, "file not found");
+        }
+        switch (String.valueOf(action)) {
+            case "download":
+                return ranged(request, file.content);
+            case "getFileInfo":
+                JsonObject meta = new JsonObject();
+                meta.addProperty("orgId", url.queryParameter("orgId"));
+                meta.addProperty("category", url.queryParameter("category"));
+                meta.addProperty("fileUri", fileUri);
+                meta.addProperty("originalFilename", file.originalFilename);
+                meta.addProperty("fileSize", file.content.length);
+                meta.addProperty("md5", ByteString.of(file.content).md5().hex());
+                meta.addProperty("createTime", file.createTime);
+                JsonObject info = success(null);
+                info.add("data", meta);
+                return json(200, info);
+            case "getDownloadUrl":
+                JsonObject downloadUrl = success(null);
+                downloadUrl.addProperty("data", larkUrl(LARK_DOWNLOAD_PATH, fileUri));
+                return json(200, downloadUrl);
+            default:
+                return error(400, "unknown action " + action);
+        }
+    }
+
+    private MockResponse lark(RecordedRequest request, String path, HttpUrl url) {
+        String fileUri = String.valueOf(url.queryParameter("fileUri"));
+        StoredFile file = files.get(fileUri);
+        if (path.equals(LARK_UPLOAD_PATH)) {
+            if (!"PUT".equals(request.getMethod())) {
+                return new MockResponse().setResponseCode(405);
+            }
+            files.put(fileUri, new StoredFile(
+                    request.getBody().readByteArray(),
+                    file == null ? fileUri.substring(fileUri.lastIndexOf('/') + 1) : file.originalFilename));
+            return new MockResponse().setResponseCode(200);
+        }
+        return file == null ? new MockResponse().setResponseCode(404) : ranged(request, file.content);
+    }
+
+    private String larkUrl(String path, String fileUri) {
+        return server.url(path).newBuilder().addQueryParameter("fileUri", fileUri).build().toString();
+    }
+
+    /** Serve content, honoring a single {@code bytes=} range */
+    private MockResponse ranged(RecordedRequest request, byte[] content) {
+        String range = request.getHeader("Range");
+        int length = content.length;
+        if (range == null || !serveRanges) {
+            return new MockResponse()
+                    .setHeader("Accept-Ranges", "bytes")
+                    .setBody(new Buffer().write(content));
+        }
+        Matcher matcher = RANGE.matcher(range.trim());
+        long start;
+        long end;
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            return unsatisfiable(length);
+        }
+        if (matcher.group(1).isEmpty()) {
+            // suffix range, the last n bytes
+            start = Math.max(0L, length - Long.parseLong(matcher.group(2)));
+            end = length - 1L;
+        } else {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? length - 1L : Math.min(length - 1L, Long.parseLong(matcher.group(2)));
+        }
+        if (start >= length || start > end) {
+            return unsatisfiable(length);
+        }
+        return new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Accept-Ranges", "bytes")
+                .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length)
+                .setBody(new Buffer().write(content, (int) start, (int) (end - start + 1)));
+    }
+
+    private static MockResponse unsatisfiable(int length) {
+        return new MockResponse()
+                .setResponseCode(416)
+                .setHeader("Content-Range", "bytes */" + length);
+    }
+
+    private static JsonObject success(String requestId) {
+        JsonObject response = new JsonObject();
+        response.addProperty("code", 0);
+        response.addProperty("msg", "OK");
+        if (requestId != null) {
+            response.addProperty("requestId", requestId);
+        }
+        return response;
+    }
+
+    private static MockResponse error(int httpCode, String msg) {
+        JsonObject response = new JsonObject();
+        response.addProperty("code", httpCode);
+        response.addProperty("msg", msg);
+        return json(httpCode, response);
+    }
+
+    private static MockResponse json(int httpCode, JsonObject body) {
+        return new MockResponse()
+                .setResponseCode(httpCode)
+                .setHeader("Content-Type", "application/json;charset=UTF-8")
+                .setBody(body.toString());
+    }
+
+    private static String string(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    private static String sha256(String content) {
+        return ByteString.encodeUtf8(content).sha256().hex();
+    }
+}
@@ -0,0 +1,151 @@
+package com.enosiot.enos.iot_http_integration.testkit;
+
+/**
+ * Faults the fake server injects into broker calls. Token service calls only get the latency.
+ *
+ * <p>Faults are applied in this order: throttling, disconnection, server error, then latency and
+ * bandwidth on whatever response remains.
+ */
+public final class FaultProfile {
+    private static final FaultProfile NONE = builder().build();
+
+    public static FaultProfile none() {
+        return NONE;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private LatencyDistribution latency = LatencyDistribution.none();
+
+        private double errorRate = 0.0;
+
+        private int errorCode = 503;
+
+        private double disconnectRate = 0.0;
+
+        private double maxRequestsPerSecond = 0.0;
+
+        private long retryAfterSeconds = 1L;
+
+        private long bytesPerSecond = 0L;
+
+        private Builder() {
+        }
+
+        /** Latency added before the response headers */
+        public Builder latency(LatencyDistribution latency) {
+            if (latency == null) {
+                throw new NullPointerException("latency");
+            }
+            this.latency = latency;
+            return this;
+        }
+
+        /** Fraction of the calls answered with {@code errorCode} */
+        public Builder errorRate(double errorRate) {
+            this.errorRate = checkRate(errorRate);
+            return this;
+        }
+
+        /** HTTP status of the injected errors, 503 by default */
+        public Builder errorCode(int errorCode) {
+            this.errorCode = errorCode;
+            return this;
+        }
+
+        /** Fraction of the calls whose connection is closed without any response */
+        public Builder disconnectRate(double disconnectRate) {
+            this.disconnectRate = checkRate(disconnectRate);
+            return this;
+        }
+
+        /**
+         * Calls above this rate are answered with 429 and a {@code Retry-After} header, {@code 0}
+         * for no limit
+         */
+        public Builder maxRequestsPerSecond(double maxRequestsPerSecond) {
+            if (maxRequestsPerSecond < 0) {
+                throw new IllegalArgumentException("maxRequestsPerSecond must not be negative");
+            }
+            this.maxRequestsPerSecond = maxRequestsPerSecond;
+            return this;
+        }
+
+        public Builder retryAfterSeconds(long retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        /**
+         * Bandwidth of each connection, applied to both request and response bodies, {@code 0}
+         * for no limit
+         */
+        public Builder bytesPerSecond(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("bytesPerSecond must not be negative");
+            }
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public FaultProfile build() {
+            return new FaultProfile(this);
+        }
+
+        private static double checkRate(double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("rate must be within [0, 1]");
+            }
+            return rate;
+        }
+    }
+
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final int errorCode;
+    private final double disconnectRate;
+    private final double maxRequestsPerSecond;
+    private final long retryAfterSeconds;
+    private final long bytesPerSecond;
+
+    private FaultProfile(Builder builder) {
+        this.latency = builder.latency;
+        this.errorRate = builder.errorRate;
+        this.errorCode = builder.errorCode;
+        this.disconnectRate = builder.disconnectRate;
+        this.maxRequestsPerSecond = builder.maxRequestsPerSecond;
+        this.retryAfterSeconds = builder.retryAfterSeconds;
+        this.bytesPerSecond = builder.bytesPerSecond;
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public double getDisconnectRate() {
+        return disconnectRate;
+    }
+
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,53 @@
+package com.enosiot.enos.iot_http_integration.testkit;
+
+import java.util.Random;
+
+/** Distribution the latency the fake server adds to a response is drawn from */
+public interface LatencyDistribution {
+    /** @return a latency in milliseconds, not negative */
+    long sampleMillis(Random random);
+
+    static LatencyDistribution none() {
+        return random -> 0L;
+    }
+
+    static LatencyDistribution fixed(long millis) {
+        checkNotNegative(millis);
+        return random -> millis;
+    }
+
+    static LatencyDistribution uniform(long minMillis, long maxMillis) {
+        checkNotNegative(minMillis);
+        if (maxMillis < minMillis) {
+            throw new IllegalArgumentException("maxMillis must not be less than minMillis");
+        }
+        return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis + 1));
+    }
+
+    static LatencyDistribution exponential(double meanMillis) {
+        checkNotNegative(meanMillis);
+        return random -> Math.round(-meanMillis * Math.log(1.0 - random.nextDouble()));
+    }
+
+    /**
+     * Log-normal distribution, the usual shape of service latency with a long tail
+     *
+     * @param medianMillis
+     * @param p99Millis 99th percentile, at least the median
+     */
+    static LatencyDistribution logNormal(double medianMillis, double p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("need 0 < medianMillis <= p99Millis");
+        }
+        double mu = Math.log(medianMillis);
+        // 2.326 is the z-score of the 99th percentile
+        double sigma = (Math.log(p99Millis) - mu) / 2.326;
+        return random -> Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+    }
+
+    static void checkNotNegative(double value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("latency must not be negative");
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.enosiot.enos.iot_http_integration.testkit;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+
+/** Splits a {@code multipart/form-data} body into its parts, undoing their Content-Encoding */
+final class MultipartParser {
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+    private static final Pattern NAME = Pattern.compile("[; ]name=\"([^\"]*)\"");
+    private static final Pattern FILENAME = Pattern.compile("filename=\"([^\"]*)\"");
+    private static final ByteString CRLF = ByteString.encodeUtf8("\r\n");
+    private static final ByteString DASH_DASH = ByteString.encodeUtf8("--");
+
+    static final class Part {
+        final String name;
+        final String filename;
+        final String contentEncoding;
+        final long encodedLength;
+        final byte[] content;
+
+        Part(String name, String filename, String contentEncoding, long encodedLength, byte[] content) {
+            this.name = name;
+            this.filename = filename;
+            this.contentEncoding = contentEncoding;
+            this.encodedLength = encodedLength;
+            this.content = content;
+        }
+    }
+
+    private MultipartParser() {
+    }
+
+    static List<Part> parse(String contentType, Buffer body) throws IOException {
+        Matcher boundaryMatcher = BOUNDARY.matcher(contentType == null ? "" : contentType);
+        if (!boundaryMatcher.find()) {
+            throw new ProtocolException("not a multipart body: " + contentType);
+        }
+        ByteString dashBoundary = ByteString.encodeUtf8("--" + boundaryMatcher.group(1));
+        ByteString delimiter = ByteString.encodeUtf8("\r\n--" + boundaryMatcher.group(1));
+
+        long start = body.indexOf(dashBoundary);
+        if (start < 0) {
+            throw new ProtocolException("missing boundary");
+        }
+        body.skip(start + dashBoundary.size());
+
+        List<Part> parts = new ArrayList<>();
+        while (true) {
+            if (body.rangeEquals(0, DASH_DASH)) {
+                return parts;
+            }
+            if (!body.rangeEquals(0, CRLF)) {
+                throw new ProtocolException("malformed boundary");
+            }
+            body.skip(CRLF.size());
+
+            String name = null;
+            String filename = null;
+            String contentEncoding = null;
+            String line;
+            while (!(line = body.readUtf8LineStrict()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String header = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if (header.equals("content-disposition")) {
+                    name = unquote(NAME, value);
+                    filename = unquote(FILENAME, value);
+                } else if (header.equals("content-encoding")) {
+                    contentEncoding = value.toLowerCase(Locale.ROOT);
+                }
+            }
+
+            long end = body.indexOf(delimiter);
+            if (end < 0) {
+                throw new ProtocolException("unterminated part " + name);
+            }
+            Buffer encoded = new Buffer();
+            body.read(encoded, end);
+            body.skip(delimiter.size());
+            parts.add(new Part(name, filename, contentEncoding, end, decode(encoded, contentEncoding)));
+        }
+    }
+
+    private static String unquote(Pattern pattern, String value) {
+        Matcher matcher = pattern.matcher(value);
+        if (!matcher.find()) {
+            return null;
+        }
+        // quotes and line breaks are percent-encoded by the form-data writers
+        return matcher.group(1).replace("%22", "\"").replace("%0A", "\n").replace("%0D", "\r");
+    }
+
+    private static byte[] decode(Buffer encoded, String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.equals("identity")) {
+            return encoded.readByteArray();
+        }
+        Source source;
+        if (contentEncoding.equals("gzip")) {
+            source = new GzipSource(encoded);
+        } else if (contentEncoding.equals("deflate")) {
+            source = new InflaterSource(encoded, new Inflater());
+        } else {
+            throw new ProtocolException("unsupported Content-Encoding " + contentEncoding);
+        }
+        try (BufferedSource decoded = Okio.buffer(source)) {
+            return decoded.readByteArray();
+        }
+    }
+}